@@ -2,12 +2,28 @@ import cycling.CyclingPortal;
 import cycling.CyclingPortalInterface;
 import cycling.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 
@@ -432,6 +448,22 @@ public class CyclingPortalInterfaceTestApp {
 		}
 		results.put("segmentsRemovedSuccessfully", segmentsRemovedSuccessfully);
 
+		String namesResolvedSuccessfully = "FAILED";
+		try {
+			CyclingPortal namedPortal = new CyclingPortal();
+			int newRace = namedPortal.createRace("ValidRaceF", "This is valid");
+			int newTeam = namedPortal.createTeam("ValidTeamF", "This is valid");
+			namedPortal.removeRaceById(newRace);
+			int newerRace = namedPortal.createRace("ValidRaceF", "This is valid");
+			if (namedPortal.getRaceIdByName("ValidRaceF") == newerRace && namedPortal.getTeamIdByName("ValidTeamF") == newTeam) {
+				namesResolvedSuccessfully = "Passed";
+			}
+		} catch (InvalidNameException | IllegalNameException | IDNotRecognisedException | NameNotRecognisedException e) {
+			e.printStackTrace(new PrintWriter(sw));
+			namesResolvedSuccessfully += "\n" + sw.toString();
+		}
+		results.put("namesResolvedSuccessfully", namesResolvedSuccessfully);
+
 		return results;
 	}
 
@@ -630,6 +662,159 @@ public class CyclingPortalInterfaceTestApp {
 		results.put("ridersRankedSuccessfully", ridersRankedSuccessfully);
 		results.put("ridersTimedSuccessfully", ridersTimedSuccessfully);
 
+		String ridersRankedOutOfOrder = "FAILED";
+		try {
+			int newTeam = portal.createTeam("Team8B", "Team Description");
+			int newRider1 = portal.createRider(newTeam, "RiderC2", 2000);
+			int newRider2 = portal.createRider(newTeam, "RiderD2", 2000);
+			int newRider3 = portal.createRider(newTeam, "RiderE2", 2000);
+			int newRace = portal.createRace("Race8B", "Race Description");
+			int newStage = portal.addStageToRace(newRace, "Stage8B", "Stage Description", 10, LocalDateTime.now(), StageType.TT);
+			portal.concludeStagePreparation(newStage);
+			LocalTime[] checkpoints1 = {LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 2)};
+			portal.registerRiderResultsInStage(newStage, newRider1, checkpoints1);
+			LocalTime[] checkpoints2 = {LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 0)};
+			portal.registerRiderResultsInStage(newStage, newRider2, checkpoints2);
+			LocalTime[] checkpoints3 = {LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 1)};
+			portal.registerRiderResultsInStage(newStage, newRider3, checkpoints3);
+			int[] ranks = portal.getRidersRankInStage(newStage);
+			if (ranks[0] == newRider2 && ranks[1] == newRider3 && ranks[2] == newRider1) {
+				ridersRankedOutOfOrder = "Passed";
+			}
+		} catch (InvalidLengthException | InvalidNameException | IllegalNameException | IDNotRecognisedException | InvalidStageStateException | DuplicatedResultException | InvalidCheckpointsException e) {
+			e.printStackTrace(new PrintWriter(sw));
+			ridersRankedOutOfOrder += "\n" + sw.toString();
+		}
+		results.put("ridersRankedOutOfOrder", ridersRankedOutOfOrder);
+
+		String classificationCachedSuccessfully = "FAILED";
+		try {
+			CyclingPortal cachedPortal = new CyclingPortal();
+			int newTeam = cachedPortal.createTeam("Team8C", "Team Description");
+			int newRider1 = cachedPortal.createRider(newTeam, "RiderC3", 2000);
+			int newRider2 = cachedPortal.createRider(newTeam, "RiderD3", 2000);
+			int newRace = cachedPortal.createRace("Race8C", "Race Description");
+			int newStage = cachedPortal.addStageToRace(newRace, "Stage8C", "Stage Description", 10, LocalDateTime.now(), StageType.FLAT);
+			cachedPortal.concludeStagePreparation(newStage);
+			LocalTime[] checkpoints1 = {LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 2)};
+			cachedPortal.registerRiderResultsInStage(newStage, newRider1, checkpoints1);
+			cachedPortal.getRidersRankInStage(newStage);
+			cachedPortal.getRankedAdjustedElapsedTimesInStage(newStage);
+			boolean reused = cachedPortal.getClassificationCacheMisses() == 1 && cachedPortal.getClassificationCacheHits() == 1;
+			LocalTime[] checkpoints2 = {LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 0)};
+			cachedPortal.registerRiderResultsInStage(newStage, newRider2, checkpoints2);
+			int[] ranks = cachedPortal.getRidersRankInStage(newStage);
+			if (reused && cachedPortal.getClassificationCacheMisses() == 2 && ranks[0] == newRider2) {
+				classificationCachedSuccessfully = "Passed";
+			}
+		} catch (InvalidLengthException | InvalidNameException | IllegalNameException | IDNotRecognisedException | InvalidStageStateException | DuplicatedResultException | InvalidCheckpointsException e) {
+			e.printStackTrace(new PrintWriter(sw));
+			classificationCachedSuccessfully += "\n" + sw.toString();
+		}
+		results.put("classificationCachedSuccessfully", classificationCachedSuccessfully);
+
+		String batchResultsRegisteredSuccessfully = "FAILED";
+		try {
+			CyclingPortal batchPortal = new CyclingPortal();
+			int newTeam = batchPortal.createTeam("Team8D", "Team Description");
+			int newRider1 = batchPortal.createRider(newTeam, "RiderC4", 2000);
+			int newRider2 = batchPortal.createRider(newTeam, "RiderD4", 2000);
+			int newRider3 = batchPortal.createRider(newTeam, "RiderE4", 2000);
+			int newRace = batchPortal.createRace("Race8D", "Race Description");
+			int newStage = batchPortal.addStageToRace(newRace, "Stage8D", "Stage Description", 10, LocalDateTime.now(), StageType.FLAT);
+			batchPortal.concludeStagePreparation(newStage);
+			LocalTime[][] checkpoints = {
+				{LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 9)},
+				{LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 0)}
+			};
+			batchPortal.registerStageResults(newStage, new int[] {newRider1, newRider2}, checkpoints);
+			boolean rejected = false;
+			try {
+				// The second rider already has results, so neither row may be applied.
+				LocalTime[][] duplicate = {
+					{LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 5)},
+					{LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 5)}
+				};
+				batchPortal.registerStageResults(newStage, new int[] {newRider3, newRider2}, duplicate);
+			} catch (DuplicatedResultException e) {
+				rejected = true;
+			}
+			int[] ranks = batchPortal.getRidersRankInStage(newStage);
+			if (rejected && ranks.length == 2 && ranks[0] == newRider2 && ranks[1] == newRider1) {
+				batchResultsRegisteredSuccessfully = "Passed";
+			}
+		} catch (InvalidLengthException | InvalidNameException | IllegalNameException | IDNotRecognisedException | InvalidStageStateException | DuplicatedResultException | InvalidCheckpointsException e) {
+			e.printStackTrace(new PrintWriter(sw));
+			batchResultsRegisteredSuccessfully += "\n" + sw.toString();
+		}
+		results.put("batchResultsRegisteredSuccessfully", batchResultsRegisteredSuccessfully);
+
+		String checkpointsStreamedSuccessfully = "FAILED";
+		try {
+			CyclingPortal streamPortal = new CyclingPortal();
+			int newTeam = streamPortal.createTeam("Team8E", "Team Description");
+			int newRider1 = streamPortal.createRider(newTeam, "RiderC5", 2000);
+			int newRider2 = streamPortal.createRider(newTeam, "RiderD5", 2000);
+			int newRace = streamPortal.createRace("Race8E", "Race Description");
+			int newStage = streamPortal.addStageToRace(newRace, "Stage8E", "Stage Description", 10, LocalDateTime.now(), StageType.FLAT);
+			streamPortal.addIntermediateSprintToStage(newStage, 5);
+			streamPortal.concludeStagePreparation(newStage);
+			streamPortal.registerRiderCheckpointInStage(newStage, newRider1, 0, LocalTime.of(14, 0, 0));
+			streamPortal.registerRiderCheckpointInStage(newStage, newRider2, 0, LocalTime.of(14, 0, 0));
+			streamPortal.registerRiderCheckpointInStage(newStage, newRider2, 1, LocalTime.of(14, 30, 0));
+			boolean duplicateRejected = false;
+			try {
+				streamPortal.registerRiderCheckpointInStage(newStage, newRider2, 1, LocalTime.of(14, 31, 0));
+			} catch (DuplicatedResultException e) {
+				duplicateRejected = true;
+			}
+			boolean completed = streamPortal.registerRiderCheckpointInStage(newStage, newRider2, 2, LocalTime.of(15, 0, 0));
+			// Rider 1 has no finish time yet, so only rider 2 is ranked.
+			int[] ranks = streamPortal.getRidersRankInStage(newStage);
+			LocalTime[] riderResults = streamPortal.getRiderResultsInStage(newStage, newRider2);
+			if (duplicateRejected && completed && ranks.length == 1 && ranks[0] == newRider2
+					&& riderResults[0].equals(LocalTime.of(14, 30, 0)) && riderResults[1].equals(LocalTime.of(1, 0, 0))) {
+				checkpointsStreamedSuccessfully = "Passed";
+			}
+		} catch (InvalidLengthException | InvalidNameException | IllegalNameException | IDNotRecognisedException | InvalidStageStateException | DuplicatedResultException | InvalidCheckpointsException | InvalidLocationException | InvalidStageTypeException e) {
+			e.printStackTrace(new PrintWriter(sw));
+			checkpointsStreamedSuccessfully += "\n" + sw.toString();
+		}
+		results.put("checkpointsStreamedSuccessfully", checkpointsStreamedSuccessfully);
+
+		String partialResultsDroppedByFullResults = "FAILED";
+		try {
+			// Two portals that differ only in a start time streamed for one rider
+			// before their full results were registered.
+			long[] sizes = new long[2];
+			for (int p = 0; p < sizes.length; p++) {
+				CyclingPortal partialPortal = new CyclingPortal();
+				int newTeam = partialPortal.createTeam("Team8F", "Team Description");
+				int newRider1 = partialPortal.createRider(newTeam, "RiderC6", 2000);
+				int newRider2 = partialPortal.createRider(newTeam, "RiderD6", 2000);
+				int newRace = partialPortal.createRace("Race8F", "Race Description");
+				int newStage = partialPortal.addStageToRace(newRace, "Stage8F", "Stage Description", 10, LocalDateTime.of(2024, 8, 1, 14, 0), StageType.FLAT);
+				partialPortal.concludeStagePreparation(newStage);
+				if (p == 1) {
+					partialPortal.registerRiderCheckpointInStage(newStage, newRider1, 0, LocalTime.of(14, 0, 0));
+					partialPortal.registerRiderCheckpointInStage(newStage, newRider2, 0, LocalTime.of(14, 0, 0));
+				}
+				partialPortal.registerRiderResultsInStage(newStage, newRider1, LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 0));
+				partialPortal.registerStageResults(newStage, new int[] {newRider2},
+						new LocalTime[][] {{LocalTime.of(14, 0, 0), LocalTime.of(15, 30, 0)}});
+				partialPortal.saveCyclingPortal("portal");
+				sizes[p] = new File("portal").length();
+			}
+			// Nothing is left of the partial results once the full ones are in.
+			if (sizes[0] == sizes[1]) {
+				partialResultsDroppedByFullResults = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			partialResultsDroppedByFullResults += "\n" + sw.toString();
+		}
+		results.put("partialResultsDroppedByFullResults", partialResultsDroppedByFullResults);
+
 		String pointsCalculatedSuccessfully = "FAILED";
 		String mountainPointsCalculatedSuccessfully = "FAILED";
 		try {
@@ -905,6 +1090,942 @@ public class CyclingPortalInterfaceTestApp {
 		}
 		results.put("loadedCyclingPortalSuccessfully", loadedCyclingPortalSuccessfully);
 
+		String snapshotRoundTripPreservesResults = "FAILED";
+		try {
+			CyclingPortal original = new CyclingPortal();
+			int team = original.createTeam("SnapshotTeam", null);
+			int race = original.createRace("SnapshotRace", "Race Description");
+			int[] stages = new int[3];
+			int[] riders = new int[30];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = original.createRider(team, "Rider" + i, 1980 + i);
+			}
+			for (int s = 0; s < stages.length; s++) {
+				stages[s] = original.addStageToRace(race, "SnapshotStage" + s, "Stage Description", 120.5, LocalDateTime.of(2024, 7, s + 1, 11, 30), s == 2 ? StageType.HIGH_MOUNTAIN : StageType.FLAT);
+				original.addIntermediateSprintToStage(stages[s], 40);
+				original.addCategorizedClimbToStage(stages[s], 80D, SegmentType.C2, 6.5D, 4.25D);
+				original.concludeStagePreparation(stages[s]);
+				for (int i = 0; i < riders.length - 1; i++) {
+					int offset = (i * (s + 11)) % riders.length;
+					original.registerRiderResultsInStage(stages[s], riders[i], LocalTime.of(11, 30, 0), LocalTime.of(12, 0, offset),
+							LocalTime.of(13, 0, riders.length - offset), LocalTime.of(14, 0, 0).plusNanos(offset * 400000000L));
+				}
+			}
+			original.deleteRiderResultsInStage(stages[1], riders[3]);
+			original.registerRiderCheckpointInStage(stages[0], riders[riders.length - 1], 0, LocalTime.of(11, 30, 0));
+			original.saveCyclingPortal("portal");
+
+			CyclingPortal loaded = new CyclingPortal();
+			loaded.loadCyclingPortal("portal");
+			boolean same = original.viewRaceDetails(race).equals(loaded.viewRaceDetails(race))
+					&& Arrays.equals(original.getTeamRiders(team), loaded.getTeamRiders(team))
+					&& Arrays.equals(original.getRidersGeneralClassificationRank(race), loaded.getRidersGeneralClassificationRank(race))
+					&& Arrays.equals(original.getRidersPointClassificationRank(race), loaded.getRidersPointClassificationRank(race))
+					&& Arrays.equals(original.getRidersMountainPointsInRace(race), loaded.getRidersMountainPointsInRace(race));
+			for (int stage : stages) {
+				same &= Arrays.equals(original.getStageSegments(stage), loaded.getStageSegments(stage))
+						&& Arrays.equals(original.getRidersRankInStage(stage), loaded.getRidersRankInStage(stage))
+						&& Arrays.equals(original.getRankedAdjustedElapsedTimesInStage(stage), loaded.getRankedAdjustedElapsedTimesInStage(stage))
+						&& Arrays.equals(original.getRidersPointsInStage(stage), loaded.getRidersPointsInStage(stage))
+						&& Arrays.equals(original.getRidersMountainPointsInStage(stage), loaded.getRidersMountainPointsInStage(stage))
+						&& Arrays.equals(original.getRiderResultsInStage(stage, riders[5]), loaded.getRiderResultsInStage(stage, riders[5]));
+			}
+			// The partial result survives, so the finish completes it.
+			loaded.registerRiderCheckpointInStage(stages[0], riders[riders.length - 1], 1, LocalTime.of(12, 0, 0));
+			loaded.registerRiderCheckpointInStage(stages[0], riders[riders.length - 1], 2, LocalTime.of(13, 0, 0));
+			same &= loaded.registerRiderCheckpointInStage(stages[0], riders[riders.length - 1], 3, LocalTime.of(14, 0, 0));
+			same &= loaded.createTeam("NextTeam", "Team Description") == original.createTeam("NextTeam", "Team Description");
+			if (same) {
+				snapshotRoundTripPreservesResults = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			snapshotRoundTripPreservesResults += "\n" + sw.toString();
+		}
+		results.put("snapshotRoundTripPreservesResults", snapshotRoundTripPreservesResults);
+
+		String serializedPortalLoaded = "FAILED";
+		try {
+			CyclingPortal original = new CyclingPortal();
+			int race = original.createRace("SerializedRace", "Race Description");
+			int stage = original.addStageToRace(race, "SerializedStage", "Stage Description", 50, LocalDateTime.now(), StageType.FLAT);
+			int team = original.createTeam("SerializedTeam", "Team Description");
+			int rider = original.createRider(team, "Rider", 1990);
+			original.concludeStagePreparation(stage);
+			original.registerRiderResultsInStage(stage, rider, LocalTime.of(10, 0, 0), LocalTime.of(11, 0, 0));
+			try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream("portal"))) {
+				out.writeObject(original);
+			}
+			CyclingPortal loaded = new CyclingPortal();
+			loaded.loadCyclingPortal("portal");
+			if (Arrays.equals(loaded.getRidersRankInStage(stage), new int[] {rider})) {
+				serializedPortalLoaded = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			serializedPortalLoaded += "\n" + sw.toString();
+		}
+		results.put("serializedPortalLoaded", serializedPortalLoaded);
+
+		String firstVersionPortalLoaded = "FAILED";
+		try {
+			// A portal saved by the first version, which kept its IDs and results
+			// in HashMaps: a team with riders 1 and 2, and race 3 with stage 4 and
+			// sprint 5, where rider 1 won after rider 2's results were registered.
+			String saved = "rO0ABXNyABVjeWNsaW5nLkN5Y2xpbmdQb3J0YWyrdaCDgY2J5wIAA0kABm5leHRJZEwABXJhY2VzdAATTGphdmEvdXRpbC9I"
+					+ "YXNoTWFwO0wABXRlYW1zcQB+AAF4cAAAAAZzcgARamF2YS51dGlsLkhhc2hNYXAFB9rBwxZg0QMAAkYACmxvYWRGYWN0b3JJ"
+					+ "AAl0aHJlc2hvbGR4cD9AAAAAAAAMdwgAAAAQAAAAAXNyABFqYXZhLmxhbmcuSW50ZWdlchLioKT3gYc4AgABSQAFdmFsdWV4"
+					+ "cgAQamF2YS5sYW5nLk51bWJlcoaslR0LlOCLAgAAeHAAAAADc3IADGN5Y2xpbmcuUmFjZR21yW4NdecqAgAESQAGcmFjZUlk"
+					+ "TAALZGVzY3JpcHRpb250ABJMamF2YS9sYW5nL1N0cmluZztMAARuYW1lcQB+AAlMAAZzdGFnZXN0ABVMamF2YS91dGlsL0Fy"
+					+ "cmF5TGlzdDt4cAAAAAN0ABBSYWNlIERlc2NyaXB0aW9udAAHT2xkUmFjZXNyABNqYXZhLnV0aWwuQXJyYXlMaXN0eIHSHZnH"
+					+ "YZ0DAAFJAARzaXpleHAAAAABdwQAAAABc3IADWN5Y2xpbmcuU3RhZ2Uodv8u5LVf5wIACkQABmxlbmd0aEkABnJhY2VJZEkA"
+					+ "B3N0YWdlSWRMAAtkZXNjcmlwdGlvbnEAfgAJTAAEbmFtZXEAfgAJTAAHcmVzdWx0c3QAGUxqYXZhL3V0aWwvTGlua2VkSGFz"
+					+ "aE1hcDtMAAhzZWdtZW50c3EAfgAKTAAJc3RhcnRUaW1ldAAZTGphdmEvdGltZS9Mb2NhbERhdGVUaW1lO0wABXN0YXRlcQB+"
+					+ "AAlMAAR0eXBldAATTGN5Y2xpbmcvU3RhZ2VUeXBlO3hwQEkAAAAAAAAAAAADAAAABHQAEVN0YWdlIERlc2NyaXB0aW9udAAI"
+					+ "T2xkU3RhZ2VzcgAXamF2YS51dGlsLkxpbmtlZEhhc2hNYXA0wE5cEGzA+wIAAVoAC2FjY2Vzc09yZGVyeHEAfgADP0AAAAAA"
+					+ "AAx3CAAAABAAAAACc3EAfgAFAAAAAnNxAH4ADgAAAAN3BAAAAANzcgANamF2YS50aW1lLlNlcpVdhLobIkiyDAAAeHB3AgT1"
+					+ "eHNxAH4AG3cDBArheHNxAH4AG3cEBAsA4Xh4c3EAfgAFAAAAAXNxAH4ADgAAAAN3BAAAAANxAH4AHHNxAH4AG3cDBArgeHNx"
+					+ "AH4AG3cCBPR4eHgAc3EAfgAOAAAAAXcEAAAAAXNyABpjeWNsaW5nLkludGVybWVkaWF0ZVNwcmludAPAvhEJEgqUAgAAeHIA"
+					+ "D2N5Y2xpbmcuU2VnbWVudPzY1+zgscA1AgAERAAIbG9jYXRpb25JAAlzZWdtZW50SWRJAAdzdGFnZUlkTAAEdHlwZXQAFUxj"
+					+ "eWNsaW5nL1NlZ21lbnRUeXBlO3hwQDQAAAAAAAAAAAAFAAAABH5yABNjeWNsaW5nLlNlZ21lbnRUeXBlAAAAAAAAAAASAAB4"
+					+ "cgAOamF2YS5sYW5nLkVudW0AAAAAAAAAABIAAHhwdAAGU1BSSU5UeHNxAH4AG3cIBQAAB+YHAfV4dAATd2FpdGluZyBmb3Ig"
+					+ "cmVzdWx0c35yABFjeWNsaW5nLlN0YWdlVHlwZQAAAAAAAAAAEgAAeHEAfgApdAAERkxBVHh4c3EAfgADP0AAAAAAAAx3CAAA"
+					+ "ABAAAAABc3EAfgAFAAAAAHNyAAxjeWNsaW5nLlRlYW0xz2HoQxB5zgIABEkABnRlYW1JZEwAC2Rlc2NyaXB0aW9ucQB+AAlM"
+					+ "AARuYW1lcQB+AAlMAAZyaWRlcnNxAH4ACnhwAAAAAHQAEFRlYW0gRGVzY3JpcHRpb250AAdPbGRUZWFtc3EAfgAOAAAAAncE"
+					+ "AAAAAnNyAA1jeWNsaW5nLlJpZGVyfqKMrJGcbDYCAARJAAdyaWRlcklkSQAGdGVhbUlkSQALeWVhck9mQmlydGhMAARuYW1l"
+					+ "cQB+AAl4cAAAAAEAAAAAAAAHxnQABlJpZGVyQXNxAH4AOAAAAAIAAAAAAAAHx3QABlJpZGVyQnh4";
+			try (FileOutputStream out = new FileOutputStream("portal")) {
+				out.write(Base64.getDecoder().decode(saved));
+			}
+			CyclingPortal loaded = new CyclingPortal();
+			loaded.loadCyclingPortal("portal");
+			LocalTime[] riderResults = loaded.getRiderResultsInStage(4, 1);
+			if (Arrays.equals(loaded.getRidersRankInStage(4), new int[] {1, 2})
+					&& Arrays.equals(loaded.getRaceStages(3), new int[] {4})
+					&& riderResults[0].equals(LocalTime.of(10, 31)) && riderResults[1].equals(LocalTime.of(1, 0))
+					&& loaded.createTeam("NewTeam", "Team Description") == 6) {
+				firstVersionPortalLoaded = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			firstVersionPortalLoaded += "\n" + sw.toString();
+		}
+		results.put("firstVersionPortalLoaded", firstVersionPortalLoaded);
+
+		String mappedSnapshotLoadedLazily = "FAILED";
+		try {
+			CyclingPortal original = new CyclingPortal();
+			int team = original.createTeam("MappedTeam", null);
+			int race = original.createRace("MappedRace", "Race Description");
+			int[] stages = new int[2];
+			int[] riders = new int[10];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = original.createRider(team, "Rider" + i, 1990);
+			}
+			for (int s = 0; s < stages.length; s++) {
+				stages[s] = original.addStageToRace(race, "MappedStage" + s, "Stage Description", 80, LocalDateTime.of(2024, 8, s + 1, 10, 0), StageType.FLAT);
+				original.concludeStagePreparation(stages[s]);
+				for (int i = 0; i < riders.length; i++) {
+					original.registerRiderResultsInStage(stages[s], riders[i], LocalTime.of(10, 0, 0), LocalTime.of(12, 0, (i * (s + 3)) % riders.length * 2));
+				}
+			}
+			original.saveCyclingPortal("portal");
+
+			ConcurrentCyclingPortal loaded = new ConcurrentCyclingPortal();
+			loaded.loadCyclingPortal("portal");
+			// Change the first stage before its results are read, and save over
+			// the mapped file while the second stage's results are still unread.
+			original.deleteRiderResultsInStage(stages[0], riders[4]);
+			loaded.deleteRiderResultsInStage(stages[0], riders[4]);
+			boolean same = Arrays.equals(original.getRidersRankInStage(stages[0]), loaded.getRidersRankInStage(stages[0]));
+			loaded.saveCyclingPortal("portal");
+			CyclingPortal reloaded = new CyclingPortal();
+			reloaded.loadCyclingPortal("portal");
+			for (CyclingPortalInterface portal : new CyclingPortalInterface[] {loaded, reloaded}) {
+				same &= Arrays.equals(original.getRidersRankInStage(stages[1]), portal.getRidersRankInStage(stages[1]))
+						&& Arrays.equals(original.getRankedAdjustedElapsedTimesInStage(stages[0]), portal.getRankedAdjustedElapsedTimesInStage(stages[0]))
+						&& Arrays.equals(original.getRidersGeneralClassificationRank(race), portal.getRidersGeneralClassificationRank(race))
+						&& Arrays.equals(original.getRiderResultsInStage(stages[1], riders[7]), portal.getRiderResultsInStage(stages[1], riders[7]));
+			}
+			if (same) {
+				mappedSnapshotLoadedLazily = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			mappedSnapshotLoadedLazily += "\n" + sw.toString();
+		}
+		results.put("mappedSnapshotLoadedLazily", mappedSnapshotLoadedLazily);
+
+		String corruptSnapshotCountsRejected = "FAILED";
+		try {
+			// A snapshot header followed by a delta section whose team count is
+			// either too large for an int or larger than the section.
+			byte[][] counts = {{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+					{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}};
+			int rejected = 0;
+			for (byte[] count : counts) {
+				try (FileOutputStream out = new FileOutputStream("portal")) {
+					out.write(new byte[] {0x43, 0x59, 0x43, 0x50, 1, 0, 9, (byte) count.length});
+					out.write(count);
+				}
+				try {
+					new CyclingPortal().loadCyclingPortal("portal");
+				} catch (IOException e) {
+					rejected++;
+				}
+			}
+			if (rejected == counts.length) {
+				corruptSnapshotCountsRejected = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			corruptSnapshotCountsRejected += "\n" + sw.toString();
+		}
+		results.put("corruptSnapshotCountsRejected", corruptSnapshotCountsRejected);
+
+		String journalReplayRebuildsPortal = "FAILED";
+		try {
+			new File("portal.journal").delete();
+			ConcurrentCyclingPortal original = new ConcurrentCyclingPortal();
+			MutationJournal journal = MutationJournal.open("portal.journal", MutationJournal.SyncPolicy.ALWAYS, 0);
+			original.setJournal(journal);
+			int team = original.createTeam("JournalTeam", null);
+			int[] riders = new int[8];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = original.createRider(team, "Rider" + i, 1985 + i);
+			}
+			int race = original.createRace("JournalRace", "Race Description");
+			int first = original.addStageToRace(race, "JournalStage0", "Stage Description", 100, LocalDateTime.of(2024, 9, 1, 10, 0), StageType.FLAT);
+			original.addIntermediateSprintToStage(first, 30);
+			original.concludeStagePreparation(first);
+			for (int i = 0; i < 4; i++) {
+				original.registerRiderResultsInStage(first, riders[i], LocalTime.of(10, 0), LocalTime.of(11, i, 0), LocalTime.of(12, 0, i * 3));
+			}
+			original.saveCyclingPortal("portal");
+
+			// Changes after the snapshot are only in the journal.
+			for (int i = 4; i < riders.length; i++) {
+				original.registerRiderResultsInStage(first, riders[i], LocalTime.of(10, 0), LocalTime.of(11, i, 0), LocalTime.of(12, 0, 20 - i));
+			}
+			original.deleteRiderResultsInStage(first, riders[1]);
+			original.registerRiderCheckpointInStage(first, riders[1], 0, LocalTime.of(10, 0));
+			int second = original.addStageToRace(race, "JournalStage1", "Stage Description", 60, LocalDateTime.of(2024, 9, 2, 10, 0), StageType.HIGH_MOUNTAIN);
+			int climb = original.addCategorizedClimbToStage(second, 20D, SegmentType.HC, 8D, 6D);
+			original.addIntermediateSprintToStage(second, 40);
+			original.removeSegment(climb);
+			original.concludeStagePreparation(second);
+			original.registerStageResults(second, new int[] {riders[6], riders[2]}, new LocalTime[][] {
+					{LocalTime.of(10, 0), LocalTime.of(11, 0), LocalTime.of(12, 0)},
+					{LocalTime.of(10, 0), LocalTime.of(11, 5), LocalTime.of(11, 59)}});
+			original.removeRider(riders[7]);
+			original.setJournal(null);
+			journal.close();
+			// A record cut short by a crash is ignored.
+			try (FileOutputStream out = new FileOutputStream("portal.journal", true)) {
+				out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+			}
+
+			ConcurrentCyclingPortal recovered = new ConcurrentCyclingPortal();
+			recovered.loadCyclingPortal("portal");
+			long sequence = recovered.replayJournal("portal.journal");
+			boolean same = sequence == journal.getLastSequence()
+					&& Arrays.equals(original.getTeamRiders(team), recovered.getTeamRiders(team))
+					&& Arrays.equals(original.getRaceStages(race), recovered.getRaceStages(race))
+					&& Arrays.equals(original.getStageSegments(second), recovered.getStageSegments(second))
+					&& Arrays.equals(original.getRidersGeneralClassificationRank(race), recovered.getRidersGeneralClassificationRank(race))
+					&& Arrays.equals(original.getGeneralClassificationTimesInRace(race), recovered.getGeneralClassificationTimesInRace(race));
+			for (int stage : new int[] {first, second}) {
+				same &= Arrays.equals(original.getRidersRankInStage(stage), recovered.getRidersRankInStage(stage))
+						&& Arrays.equals(original.getRankedAdjustedElapsedTimesInStage(stage), recovered.getRankedAdjustedElapsedTimesInStage(stage));
+			}
+			// The journal carries on after the replayed changes, and the partial
+			// result survived.
+			MutationJournal reopened = MutationJournal.open("portal.journal", MutationJournal.SyncPolicy.NEVER, 0);
+			recovered.setJournal(reopened);
+			same &= reopened.getLastSequence() == sequence
+					&& recovered.registerRiderCheckpointInStage(first, riders[1], 1, LocalTime.of(11, 1))
+							== false
+					&& recovered.registerRiderCheckpointInStage(first, riders[1], 2, LocalTime.of(12, 0, 1))
+					&& recovered.createTeam("NextTeam", null) == original.createTeam("NextTeam", null)
+					&& reopened.getLastSequence() == sequence + 3;
+			reopened.close();
+			new File("portal.journal").delete();
+			if (same) {
+				journalReplayRebuildsPortal = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			journalReplayRebuildsPortal += "\n" + sw.toString();
+		}
+		results.put("journalReplayRebuildsPortal", journalReplayRebuildsPortal);
+
+		String deltaSnapshotsApplyAndCompact = "FAILED";
+		try {
+			ConcurrentCyclingPortal original = new ConcurrentCyclingPortal();
+			int team = original.createTeam("DeltaTeam", null);
+			int other = original.createTeam("OtherTeam", null);
+			int[] riders = new int[6];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = original.createRider(team, "Rider" + i, 1990);
+			}
+			int untouched = original.createRace("UntouchedRace", "Race Description");
+			int untouchedStage = original.addStageToRace(untouched, "UntouchedStage", "Stage Description", 90, LocalDateTime.of(2024, 10, 1, 10, 0), StageType.FLAT);
+			original.concludeStagePreparation(untouchedStage);
+			int race = original.createRace("DeltaRace", "Race Description");
+			int stage = original.addStageToRace(race, "DeltaStage", "Stage Description", 90, LocalDateTime.of(2024, 10, 2, 10, 0), StageType.FLAT);
+			original.concludeStagePreparation(stage);
+			for (int i = 0; i < riders.length; i++) {
+				original.registerRiderResultsInStage(untouchedStage, riders[i], LocalTime.of(10, 0), LocalTime.of(12, 0, i * 7 % 5));
+			}
+			original.saveCyclingPortal("portal");
+
+			for (int i = 0; i < 3; i++) {
+				original.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0), LocalTime.of(12, 1, i));
+			}
+			original.removeTeam(other);
+			original.saveCyclingPortalDelta("portal.delta1");
+
+			for (int i = 3; i < riders.length; i++) {
+				original.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0), LocalTime.of(12, 0, 10 - i));
+			}
+			original.removeRider(riders[5]);
+			int added = original.createRace("AddedRace", "Race Description");
+			original.saveCyclingPortalDelta("portal.delta2");
+
+			ConcurrentCyclingPortal applied = new ConcurrentCyclingPortal();
+			applied.loadCyclingPortal("portal");
+			boolean rejected = false;
+			try {
+				applied.applyCyclingPortalDelta("portal.delta2");
+			} catch (IOException e) {
+				rejected = true;
+			}
+			applied.applyCyclingPortalDelta("portal.delta1");
+			applied.applyCyclingPortalDelta("portal.delta2");
+			CyclingPortal.compactCyclingPortal("portal", "portal.delta1", "portal.delta2");
+			CyclingPortal compacted = new CyclingPortal();
+			compacted.loadCyclingPortal("portal");
+
+			boolean same = rejected;
+			for (CyclingPortalInterface portal : new CyclingPortalInterface[] {applied, compacted}) {
+				same &= Arrays.equals(original.getTeams(), portal.getTeams())
+						&& Arrays.equals(original.getRaceIds(), portal.getRaceIds())
+						&& Arrays.equals(original.getTeamRiders(team), portal.getTeamRiders(team))
+						&& Arrays.equals(original.getRidersRankInStage(stage), portal.getRidersRankInStage(stage))
+						&& Arrays.equals(original.getRidersRankInStage(untouchedStage), portal.getRidersRankInStage(untouchedStage))
+						&& Arrays.equals(original.getGeneralClassificationTimesInRace(race), portal.getGeneralClassificationTimesInRace(race))
+						&& portal.getNumberOfStages(added) == 0;
+			}
+			// Deltas saved after the compacted ones still follow on from it.
+			original.addStageToRace(added, "AddedStage", "Stage Description", 50, LocalDateTime.of(2024, 10, 3, 10, 0), StageType.TT);
+			original.saveCyclingPortalDelta("portal.delta3");
+			compacted.applyCyclingPortalDelta("portal.delta3");
+			same &= compacted.getNumberOfStages(added) == 1
+					&& compacted.createTeam("NextTeam", null) == original.createTeam("NextTeam", null);
+			for (String delta : new String[] {"portal.delta1", "portal.delta2", "portal.delta3"}) {
+				new File(delta).delete();
+			}
+			if (same) {
+				deltaSnapshotsApplyAndCompact = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			deltaSnapshotsApplyAndCompact += "\n" + sw.toString();
+		}
+		results.put("deltaSnapshotsApplyAndCompact", deltaSnapshotsApplyAndCompact);
+
+		return results;
+	}
+
+	public static HashMap<String, String> concurrencyTests() {
+		HashMap<String, String> results = new HashMap<String, String>();
+		StringWriter sw = new StringWriter();
+
+		String concurrentRacesRegisteredSuccessfully = "FAILED";
+		try {
+			ConcurrentCyclingPortal portal = new ConcurrentCyclingPortal();
+			int team = portal.createTeam("ConcurrentTeam", "Team Description");
+			int[] riders = new int[50];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+			}
+			int[] raceIds = new int[8];
+			AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			Thread[] threads = new Thread[raceIds.length];
+			for (int t = 0; t < threads.length; t++) {
+				final int index = t;
+				threads[t] = new Thread(() -> {
+					try {
+						int race = portal.createRace("ConcurrentRace" + index, "Race Description");
+						int stage = portal.addStageToRace(race, "ConcurrentStage" + index, "Stage Description", 10, LocalDateTime.now(), StageType.FLAT);
+						portal.concludeStagePreparation(stage);
+						for (int i = 0; i < riders.length; i++) {
+							LocalTime finish = LocalTime.of(15, 0, 0).plusSeconds(2 * (riders.length - i));
+							portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(14, 0, 0), finish);
+							portal.getRidersGeneralClassificationRank(race);
+						}
+						raceIds[index] = race;
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			boolean consistent = portal.getRaceIds().length == raceIds.length;
+			for (int race : raceIds) {
+				int[] ranks = portal.getRidersGeneralClassificationRank(race);
+				consistent &= ranks.length == riders.length && ranks[0] == riders[riders.length - 1];
+			}
+			if (consistent) {
+				concurrentRacesRegisteredSuccessfully = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			concurrentRacesRegisteredSuccessfully += "\n" + sw.toString();
+		}
+		results.put("concurrentRacesRegisteredSuccessfully", concurrentRacesRegisteredSuccessfully);
+
+		String concurrentResultsRegisteredSuccessfully = "FAILED";
+		try {
+			ConcurrentCyclingPortal portal = new ConcurrentCyclingPortal();
+			int team = portal.createTeam("StressTeam", "Team Description");
+			int[] riders = new int[20000];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+			}
+			int race = portal.createRace("StressRace", "Race Description");
+			int stage = portal.addStageToRace(race, "StressStage", "Stage Description", 10, LocalDateTime.now(), StageType.TT);
+			portal.concludeStagePreparation(stage);
+			// Every rider's results are submitted twice, as if by two timing mats,
+			// so exactly one of each pair must be rejected as a duplicate.
+			LocalTime start = LocalTime.of(14, 0, 0);
+			AtomicInteger next = new AtomicInteger();
+			AtomicInteger duplicates = new AtomicInteger();
+			AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			Thread[] threads = new Thread[8];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread(() -> {
+					int submission;
+					while ((submission = next.getAndIncrement()) < riders.length * 2) {
+						int i = submission / 2;
+						LocalTime finish = start.plusNanos(1000L * (riders.length - i));
+						try {
+							portal.registerRiderResultsInStage(stage, riders[i], start, finish);
+						} catch (DuplicatedResultException e) {
+							duplicates.incrementAndGet();
+						} catch (Exception e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			int[] ranks = portal.getRidersRankInStage(stage);
+			boolean consistent = duplicates.get() == riders.length && ranks.length == riders.length;
+			for (int i = 0; consistent && i < ranks.length; i++) {
+				consistent = ranks[i] == riders[riders.length - 1 - i];
+			}
+			if (consistent) {
+				concurrentResultsRegisteredSuccessfully = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			concurrentResultsRegisteredSuccessfully += "\n" + sw.toString();
+		}
+		results.put("concurrentResultsRegisteredSuccessfully", concurrentResultsRegisteredSuccessfully);
+
+		String publishedClassificationsConsistent = "FAILED";
+		try {
+			ConcurrentCyclingPortal portal = new ConcurrentCyclingPortal();
+			int team = portal.createTeam("SnapshotTeam", "Team Description");
+			int[] riders = new int[2000];
+			HashMap<Integer, Integer> finishOrder = new HashMap<Integer, Integer>();
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+				finishOrder.put(riders[i], i);
+			}
+			int race = portal.createRace("SnapshotRace", "Race Description");
+			int stage = portal.addStageToRace(race, "SnapshotStage", "Stage Description", 10, LocalDateTime.now(), StageType.TT);
+			portal.concludeStagePreparation(stage);
+			AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			Thread writer = new Thread(() -> {
+				try {
+					for (int n = 0; n < riders.length; n++) {
+						int i = (n * 7) % riders.length;
+						portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(14, 0, 0), LocalTime.of(15, 0, 0).plusSeconds(i));
+					}
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			Thread[] readers = new Thread[4];
+			for (int t = 0; t < readers.length; t++) {
+				readers[t] = new Thread(() -> {
+					try {
+						int lastLength = 0;
+						while (writer.isAlive()) {
+							// Every snapshot must be a complete, correctly ordered ranking.
+							int[] ranks = portal.getRidersRankInStage(stage);
+							for (int i = 1; i < ranks.length; i++) {
+								if (finishOrder.get(ranks[i - 1]) > finishOrder.get(ranks[i])) {
+									throw new IllegalStateException("A snapshot was out of order.");
+								}
+							}
+							int[] generalRanks = portal.getRidersGeneralClassificationRank(race);
+							if (generalRanks.length < lastLength) {
+								throw new IllegalStateException("A snapshot went backwards.");
+							}
+							lastLength = generalRanks.length;
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				});
+			}
+			writer.start();
+			for (Thread reader : readers) {
+				reader.start();
+			}
+			writer.join();
+			for (Thread reader : readers) {
+				reader.join();
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			int[] ranks = portal.getRidersGeneralClassificationRank(race);
+			if (ranks.length == riders.length && ranks[0] == riders[0] && ranks[ranks.length - 1] == riders[riders.length - 1]) {
+				publishedClassificationsConsistent = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			publishedClassificationsConsistent += "\n" + sw.toString();
+		}
+		results.put("publishedClassificationsConsistent", publishedClassificationsConsistent);
+
+		String parallelClassificationMatchesSequential = "FAILED";
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			CyclingPortal[] portals = {new CyclingPortal(), new CyclingPortal()};
+			portals[1].setClassificationPool(pool);
+			int race = 0;
+			for (CyclingPortal portal : portals) {
+				int team = portal.createTeam("ParallelTeam", "Team Description");
+				int[] riders = new int[300];
+				for (int i = 0; i < riders.length; i++) {
+					riders[i] = portal.createRider(team, "Rider" + i, 2000);
+				}
+				race = portal.createRace("ParallelRace", "Race Description");
+				for (int s = 0; s < 6; s++) {
+					int stage = portal.addStageToRace(race, "ParallelStage" + s, "Stage Description", 100, LocalDateTime.now(), StageType.FLAT);
+					portal.addIntermediateSprintToStage(stage, 40);
+					portal.addCategorizedClimbToStage(stage, 80D, SegmentType.C1, 5D, 8D);
+					portal.concludeStagePreparation(stage);
+					for (int i = 0; i < riders.length; i++) {
+						int offset = (i * (s + 7)) % riders.length;
+						portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0, 0), LocalTime.of(11, 0, 0).plusSeconds(offset),
+								LocalTime.of(12, 0, 0).plusSeconds(riders.length - offset), LocalTime.of(13, 0, 0).plusSeconds(offset / 2));
+					}
+				}
+			}
+			if (Arrays.equals(portals[0].getRidersGeneralClassificationRank(race), portals[1].getRidersGeneralClassificationRank(race))
+					&& Arrays.equals(portals[0].getGeneralClassificationTimesInRace(race), portals[1].getGeneralClassificationTimesInRace(race))
+					&& Arrays.equals(portals[0].getRidersPointsInRace(race), portals[1].getRidersPointsInRace(race))
+					&& Arrays.equals(portals[0].getRidersMountainPointsInRace(race), portals[1].getRidersMountainPointsInRace(race))) {
+				parallelClassificationMatchesSequential = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			parallelClassificationMatchesSequential += "\n" + sw.toString();
+		} finally {
+			pool.shutdown();
+		}
+		results.put("parallelClassificationMatchesSequential", parallelClassificationMatchesSequential);
+
+		String leaderboardFollowsResults = "FAILED";
+		ExecutorService listenerThread = Executors.newSingleThreadExecutor();
+		try {
+			ConcurrentCyclingPortal portal = new ConcurrentCyclingPortal();
+			int team = portal.createTeam("LeaderboardTeam", "Team Description");
+			int race = portal.createRace("LeaderboardRace", "Race Description");
+			int stage = portal.addStageToRace(race, "LeaderboardStage", "Stage Description", 100, LocalDateTime.now(), StageType.FLAT);
+			portal.concludeStagePreparation(stage);
+			int[] board = new int[3];
+			LocalTime[] boardTimes = new LocalTime[3];
+			AtomicInteger boardSize = new AtomicInteger();
+			portal.subscribeStageLeaderboard(stage, 3, update -> {
+				int[] positions = update.getPositions();
+				for (int i = 0; i < positions.length; i++) {
+					if (positions[i] < 3) {
+						board[positions[i]] = update.getRiderIds()[i];
+						boardTimes[positions[i]] = update.getAdjustedElapsedTimes()[i];
+					}
+				}
+				boardSize.set(update.getSize());
+			}, listenerThread);
+			int[] riders = new int[40];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+				int offset = (i * 17) % riders.length;
+				portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0, 0), LocalTime.of(12, 0, 0).plusSeconds(offset * 3));
+			}
+			int[] ranks = portal.getRidersRankInStage(stage);
+			portal.deleteRiderResultsInStage(stage, ranks[0]);
+			portal.deleteRiderResultsInStage(stage, ranks[2]);
+			portal.deleteRiderResultsInStage(stage, ranks[10]);
+			listenerThread.shutdown();
+			listenerThread.awaitTermination(10, TimeUnit.SECONDS);
+			ranks = portal.getRidersRankInStage(stage);
+			LocalTime[] times = portal.getRankedAdjustedElapsedTimesInStage(stage);
+			if (boardSize.get() == 3 && Arrays.equals(board, Arrays.copyOf(ranks, 3))
+					&& Arrays.equals(boardTimes, Arrays.copyOf(times, 3))) {
+				leaderboardFollowsResults = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			leaderboardFollowsResults += "\n" + sw.toString();
+		} finally {
+			listenerThread.shutdownNow();
+		}
+		results.put("leaderboardFollowsResults", leaderboardFollowsResults);
+
+		String failingSubscribersIsolated = "FAILED";
+		Thread.UncaughtExceptionHandler handler = Thread.currentThread().getUncaughtExceptionHandler();
+		try {
+			CyclingPortal portal = new CyclingPortal();
+			int team = portal.createTeam("IsolatedTeam", "Team Description");
+			int race = portal.createRace("IsolatedRace", "Race Description");
+			int stage = portal.addStageToRace(race, "IsolatedStage", "Stage Description", 100, LocalDateTime.now(), StageType.FLAT);
+			portal.concludeStagePreparation(stage);
+			AtomicInteger reported = new AtomicInteger();
+			Thread.currentThread().setUncaughtExceptionHandler((thread, e) -> reported.incrementAndGet());
+			ExecutorService stopped = Executors.newSingleThreadExecutor();
+			stopped.shutdown();
+			portal.subscribeStageLeaderboard(stage, 3, update -> {}, stopped);
+			// Deliveries run inline, and the listener throws on the second one.
+			AtomicInteger deliveries = new AtomicInteger();
+			AtomicInteger leader = new AtomicInteger(-1);
+			portal.subscribeStageLeaderboard(stage, 3, update -> {
+				if (deliveries.incrementAndGet() == 2) {
+					throw new IllegalStateException("Listener failed.");
+				}
+				if (update.getPositions()[0] == 0) {
+					leader.set(update.getRiderIds()[0]);
+				}
+			}, Runnable::run);
+			int[] riders = new int[6];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+				portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0, 0), LocalTime.of(12, 0, 0).minusSeconds(i * 10));
+			}
+			if (portal.getRidersRankInStage(stage).length == riders.length && reported.get() > 0
+					&& deliveries.get() > 2 && leader.get() == riders[riders.length - 1]) {
+				failingSubscribersIsolated = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			failingSubscribersIsolated += "\n" + sw.toString();
+		} finally {
+			Thread.currentThread().setUncaughtExceptionHandler(handler);
+		}
+		results.put("failingSubscribersIsolated", failingSubscribersIsolated);
+
+		String inlineSubscribersDoNotBlockStage = "FAILED";
+		try {
+			CyclingPortal portal = new CyclingPortal();
+			int team = portal.createTeam("InlineTeam", "Team Description");
+			int race = portal.createRace("InlineRace", "Race Description");
+			int stage = portal.addStageToRace(race, "InlineStage", "Stage Description", 100, LocalDateTime.now(), StageType.FLAT);
+			portal.concludeStagePreparation(stage);
+			int[] riders = new int[4];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+				portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0, 0), LocalTime.of(12, 0, i));
+			}
+			// Deliveries run on the writing thread. The leaderboard holds every
+			// rider, so each delete leaves it to be refilled from the
+			// classification, which another thread may be computing meanwhile.
+			AtomicInteger deliveries = new AtomicInteger();
+			portal.subscribeStageLeaderboard(stage, riders.length, update -> deliveries.incrementAndGet(), Runnable::run);
+			AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			Thread writer = new Thread(() -> {
+				try {
+					for (int i = 0; i < 20000; i++) {
+						portal.deleteRiderResultsInStage(stage, riders[0]);
+						portal.registerRiderResultsInStage(stage, riders[0], LocalTime.of(10, 0, 0), LocalTime.of(12, 0, i % 10));
+					}
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			});
+			Thread reader = new Thread(() -> {
+				try {
+					while (writer.isAlive()) {
+						portal.getRidersRankInStage(stage);
+					}
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			});
+			// A deadlocked thread must not keep the tests from exiting.
+			writer.setDaemon(true);
+			reader.setDaemon(true);
+			writer.start();
+			reader.start();
+			writer.join(30000);
+			reader.join(30000);
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			if (!writer.isAlive() && !reader.isAlive() && deliveries.get() > 0) {
+				inlineSubscribersDoNotBlockStage = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			inlineSubscribersDoNotBlockStage += "\n" + sw.toString();
+		}
+		results.put("inlineSubscribersDoNotBlockStage", inlineSubscribersDoNotBlockStage);
+
+		String asyncClassificationsCoalesced = "FAILED";
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger computations = new AtomicInteger();
+		AsyncCyclingPortal asyncPortal = new AsyncCyclingPortal(new ConcurrentCyclingPortal() {
+			@Override
+			public int[] getTeams() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getTeams();
+			}
+
+			@Override
+			public int[] getRidersGeneralClassificationRank(int raceId) throws IDNotRecognisedException {
+				computations.incrementAndGet();
+				return super.getRidersGeneralClassificationRank(raceId);
+			}
+		}, 1, 64);
+		try {
+			int team = asyncPortal.createTeam("AsyncTeam", "Team Description").get();
+			int race = asyncPortal.createRace("AsyncRace", "Race Description").get();
+			int stage = asyncPortal.addStageToRace(race, "AsyncStage", "Stage Description", 100, LocalDateTime.now(), StageType.FLAT).get();
+			asyncPortal.concludeStagePreparation(stage).get();
+			for (int i = 0; i < 5; i++) {
+				int rider = asyncPortal.createRider(team, "Rider" + i, 2000).get();
+				asyncPortal.registerRiderResultsInStage(stage, rider, LocalTime.of(10, 0, 0), LocalTime.of(12, 0, i * 5)).get();
+			}
+			// Hold the only thread so that the classification requests queue up.
+			CompletableFuture<int[]> blocker = asyncPortal.getTeams();
+			List<CompletableFuture<int[]>> ranks = new ArrayList<CompletableFuture<int[]>>();
+			for (int i = 0; i < 10; i++) {
+				ranks.add(asyncPortal.getRidersGeneralClassificationRank(race));
+			}
+			CompletableFuture<String> missing = asyncPortal.viewRaceDetails(race + 100);
+			release.countDown();
+			blocker.get();
+			int[] first = ranks.get(0).get();
+			boolean shared = computations.get() == 1 && first.length == 5;
+			for (CompletableFuture<int[]> rank : ranks) {
+				shared &= Arrays.equals(rank.get(), first) && (rank == ranks.get(0) || rank.get() != first);
+			}
+			boolean failed = false;
+			try {
+				missing.get();
+			} catch (ExecutionException e) {
+				failed = e.getCause() instanceof IDNotRecognisedException;
+			}
+			if (shared && failed) {
+				asyncClassificationsCoalesced = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			asyncClassificationsCoalesced += "\n" + sw.toString();
+		} finally {
+			release.countDown();
+			asyncPortal.shutdown();
+		}
+		results.put("asyncClassificationsCoalesced", asyncClassificationsCoalesced);
+
+		String seasonImportedDeterministically = "FAILED";
+		try {
+			StringBuilder season = new StringBuilder("# Test season\n");
+			for (int t = 0; t < 4; t++) {
+				season.append("TEAM\tImportTeam").append(t).append("\tTeam Description\n");
+				for (int r = 0; r < 5; r++) {
+					season.append("RIDER\tImportTeam").append(t).append("\tRider").append(t).append('x').append(r).append("\t1990\n");
+				}
+			}
+			for (int c = 0; c < 3; c++) {
+				season.append("RACE\tImportRace").append(c).append("\tRace Description\n");
+				for (int s = 0; s < 2; s++) {
+					String stage = "ImportStage" + c + "x" + s;
+					season.append("STAGE\tImportRace").append(c).append('\t').append(stage).append("\tStage Description\t100\t2024-07-0")
+							.append(s + 1).append("T10:00\tFLAT\n");
+					season.append("SPRINT\t").append(stage).append("\t50\n");
+					for (int r = 0; r < 20; r++) {
+						// Every other rider ties with the one before to exercise tie-breaking.
+						int seconds = (r / 2) * 7 % 60;
+						season.append("RESULT\t").append(stage).append("\tRider").append(r % 4).append('x').append(r / 4)
+								.append("\t10:00\t11:00\t12:00:").append(String.format("%02d", seconds)).append('\n');
+					}
+				}
+			}
+			List<String> rankings = new ArrayList<String>();
+			for (int i = 0; i < 2; i++) {
+				ConcurrentCyclingPortal portal = new ConcurrentCyclingPortal();
+				SeasonImport imported = new SeasonImporter(portal).importSeason(new StringReader(season.toString()));
+				Map<Integer, String> names = new HashMap<Integer, String>();
+				for (Map.Entry<String, Integer> rider : imported.getRiderIds().entrySet()) {
+					names.put(rider.getValue(), rider.getKey());
+				}
+				StringBuilder ranking = new StringBuilder();
+				for (int c = 0; c < 3; c++) {
+					int race = imported.getRaceIds().get("ImportRace" + c);
+					for (int rider : portal.getRidersGeneralClassificationRank(race)) {
+						ranking.append(names.get(rider)).append(' ');
+					}
+					ranking.append(Arrays.toString(portal.getRidersPointsInRace(race)));
+				}
+				// The IDs are the same on every import too.
+				ranking.append(imported.getRiderIds()).append(imported.getStageIds());
+				if (imported.getResultCount() == 120 && imported.getSegmentCount() == 6) {
+					rankings.add(ranking.toString());
+				}
+			}
+			// A repeated name is rejected rather than replacing the first record.
+			boolean rejected = false;
+			try {
+				new SeasonImporter(new ConcurrentCyclingPortal()).importSeason(new StringReader(season.toString()
+						+ "RACE\tImportRace0\tRace Description\n"));
+			} catch (IllegalArgumentException e) {
+				rejected = true;
+			}
+			if (rankings.size() == 2 && rankings.get(0).equals(rankings.get(1)) && rejected) {
+				seasonImportedDeterministically = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			seasonImportedDeterministically += "\n" + sw.toString();
+		}
+		results.put("seasonImportedDeterministically", seasonImportedDeterministically);
+
+		String concurrentClassificationsShared = "FAILED";
+		try {
+			CyclingPortal portal = new CyclingPortal();
+			int team = portal.createTeam("SharedTeam", "Team Description");
+			int race = portal.createRace("SharedRace", "Race Description");
+			int[] stages = new int[3];
+			for (int s = 0; s < stages.length; s++) {
+				stages[s] = portal.addStageToRace(race, "SharedStage" + s, "Stage Description", 100, LocalDateTime.now(), StageType.FLAT);
+				portal.concludeStagePreparation(stages[s]);
+			}
+			for (int i = 0; i < 500; i++) {
+				int rider = portal.createRider(team, "Rider" + i, 2000);
+				for (int stage : stages) {
+					portal.registerRiderResultsInStage(stage, rider, LocalTime.of(10, 0, 0), LocalTime.of(12, 0, 0).plusSeconds((i * 37 + stage) % 500));
+				}
+			}
+			long misses = portal.getClassificationCacheMisses();
+			CountDownLatch start = new CountDownLatch(1);
+			AtomicReference<int[]> expected = new AtomicReference<int[]>();
+			AtomicInteger mismatches = new AtomicInteger();
+			Thread[] readers = new Thread[8];
+			for (int t = 0; t < readers.length; t++) {
+				readers[t] = new Thread(() -> {
+					try {
+						start.await();
+						int[] ranks = portal.getRidersGeneralClassificationRank(race);
+						if (!expected.compareAndSet(null, ranks) && !Arrays.equals(expected.get(), ranks)) {
+							mismatches.incrementAndGet();
+						}
+					} catch (Exception e) {
+						mismatches.incrementAndGet();
+					}
+				});
+				readers[t].start();
+			}
+			start.countDown();
+			for (Thread reader : readers) {
+				reader.join();
+			}
+			// Each stage is computed once however many readers asked at once.
+			if (mismatches.get() == 0 && expected.get().length == 500
+					&& portal.getClassificationCacheMisses() - misses == stages.length) {
+				concurrentClassificationsShared = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			concurrentClassificationsShared += "\n" + sw.toString();
+		}
+		results.put("concurrentClassificationsShared", concurrentClassificationsShared);
+
+		String backgroundCheckpointIsPointInTime = "FAILED";
+		try {
+			ConcurrentCyclingPortal portal = new ConcurrentCyclingPortal();
+			int team = portal.createTeam("CheckpointTeam", "Team Description");
+			int race = portal.createRace("CheckpointRace", "Race Description");
+			int stage = portal.addStageToRace(race, "CheckpointStage", "Stage Description", 100, LocalDateTime.now(), StageType.FLAT);
+			portal.concludeStagePreparation(stage);
+			int[] riders = new int[400];
+			for (int i = 0; i < riders.length; i++) {
+				riders[i] = portal.createRider(team, "Rider" + i, 2000);
+			}
+			for (int i = 0; i < riders.length / 2; i++) {
+				portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0, 0), LocalTime.of(12, 0, 0).plusSeconds(i * 31 % 200));
+			}
+			int[] ranks = portal.getRidersRankInStage(stage);
+			LocalTime[] times = portal.getRankedAdjustedElapsedTimesInStage(stage);
+
+			// Hold the snapshot back until the stage has changed under it.
+			ExecutorService writer = Executors.newSingleThreadExecutor();
+			CountDownLatch changed = new CountDownLatch(1);
+			writer.execute(() -> {
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			CompletableFuture<PortalCheckpoint> pending = portal.checkpointCyclingPortal("portal", writer);
+			for (int i = riders.length / 2; i < riders.length; i++) {
+				portal.registerRiderResultsInStage(stage, riders[i], LocalTime.of(10, 0, 0), LocalTime.of(11, 0, 0).plusSeconds(i));
+			}
+			portal.deleteRiderResultsInStage(stage, riders[0]);
+			changed.countDown();
+			PortalCheckpoint checkpoint = pending.get(10, TimeUnit.SECONDS);
+			writer.shutdown();
+			CyclingPortal loaded = new CyclingPortal();
+			loaded.loadCyclingPortal("portal");
+			boolean consistent = checkpoint.getBytesWritten() == new File("portal").length()
+					&& Arrays.equals(ranks, loaded.getRidersRankInStage(stage))
+					&& Arrays.equals(times, loaded.getRankedAdjustedElapsedTimesInStage(stage));
+
+			portal.checkpointCyclingPortal("portal").get(10, TimeUnit.SECONDS);
+			loaded.loadCyclingPortal("portal");
+			consistent &= loaded.getRidersRankInStage(stage).length == riders.length - 1
+					&& Arrays.equals(portal.getRidersRankInStage(stage), loaded.getRidersRankInStage(stage));
+			if (consistent) {
+				backgroundCheckpointIsPointInTime = "Passed";
+			}
+		} catch (Exception e) {
+			e.printStackTrace(new PrintWriter(sw));
+			backgroundCheckpointIsPointInTime += "\n" + sw.toString();
+		}
+		results.put("backgroundCheckpointIsPointInTime", backgroundCheckpointIsPointInTime);
+
 		return results;
 	}
 
@@ -941,11 +2062,13 @@ public class CyclingPortalInterfaceTestApp {
 		HashMap<String, String> raceAndStageManagement = raceAndStageManagementTests();
 		HashMap<String, String> resultManagement = resultManagementTests();
 		HashMap<String, String> portalManagement = portalManagementTests();
+		HashMap<String, String> concurrency = concurrencyTests();
 		
 		printTestResults("RIDER AND TEAM MANAGEMENT", riderAndTeamManagement);
 		printTestResults("RACE AND STAGE MANAGEMENT", raceAndStageManagement);
 		printTestResults("RESULT MANAGEMENT", resultManagement);
 		printTestResults("PORTAL MANAGEMENT", portalManagement);
+		printTestResults("CONCURRENCY", concurrency);
 	}
 
 }
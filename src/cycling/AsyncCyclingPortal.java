@@ -0,0 +1,443 @@
+package cycling;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncCyclingPortal is an AsyncCyclingPortalInterface, which runs each request
+ * on a thread-safe CyclingPortalInterface using its own pool of threads.
+ * <p>
+ * The pool has a fixed number of threads and a bounded queue of waiting
+ * requests. When the queue is full, further requests fail at once with a
+ * RejectedExecutionException rather than queuing without limit, so a caller
+ * can shed load instead of building up a backlog.
+ * <p>
+ * Requests for the same stage or race classification that are waiting in the
+ * queue at the same time are coalesced: only the first is queued, and the rest
+ * share its result. A request is only coalesced with one that has not started
+ * yet, so its result still reflects every change that completed before it was
+ * made. Each caller gets its own copy of the shared result.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public class AsyncCyclingPortal implements AsyncCyclingPortalInterface {
+
+	private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private final CyclingPortalInterface portal;
+	private final ThreadPoolExecutor executor;
+	// Classification requests that are queued but not yet started, by query.
+	private final ConcurrentHashMap<Query, CompletableFuture<Object>> pendingQueries = new ConcurrentHashMap<Query, CompletableFuture<Object>>();
+
+	/**
+	 * A call into the wrapped portal, which may throw any of its exceptions.
+	 */
+	private interface PortalCall<T> {
+		T call() throws Exception;
+	}
+
+	/**
+	 * The classification queries that are coalesced.
+	 */
+	private enum Classification {
+		STAGE_RANK, STAGE_TIMES, STAGE_POINTS, STAGE_MOUNTAIN_POINTS, GENERAL_RANK, GENERAL_TIMES, RACE_POINTS,
+		RACE_MOUNTAIN_POINTS, POINTS_RANK, MOUNTAIN_POINTS_RANK
+	}
+
+	/**
+	 * A classification query of one stage or race.
+	 */
+	private static final class Query {
+		private final Classification classification;
+		private final int id;
+
+		Query(Classification classification, int id) {
+			this.classification = classification;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Query)) {
+				return false;
+			}
+			Query query = (Query) other;
+			return this.classification == query.classification && this.id == query.id;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.classification.hashCode() * 31 + this.id;
+		}
+	}
+
+	public AsyncCyclingPortal() {
+		this(new ConcurrentCyclingPortal(), Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Create an asynchronous portal wrapping another portal.
+	 *
+	 * @param portal        The portal to run requests on, which must be safe to
+	 *                      call from many threads at once unless threads is 1.
+	 * @param threads       The number of threads to run requests on.
+	 * @param queueCapacity The number of requests that can wait for a thread
+	 *                      before further requests are rejected.
+	 *
+	 */
+	public AsyncCyclingPortal(CyclingPortalInterface portal, int threads, int queueCapacity) {
+		this.portal = portal;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable, "cycling-portal-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Get the portal that requests are run on.
+	 *
+	 * @return The wrapped portal.
+	 *
+	 */
+	public CyclingPortalInterface getPortal() {
+		return this.portal;
+	}
+
+	/**
+	 * Stop accepting requests. Requests already accepted are still run.
+	 *
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Wait for the requests already accepted to finish after a shutdown.
+	 *
+	 * @param timeout The longest time to wait.
+	 * @param unit    The unit of the timeout.
+	 * @return True if every request finished, or false if the timeout passed.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 *
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Run a call on the pool.
+	 *
+	 * @param call The call to run.
+	 * @return A future of the call's result, which completes exceptionally if
+	 *         the call throws or the request is rejected.
+	 *
+	 */
+	private <T> CompletableFuture<T> submit(PortalCall<T> call) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			this.executor.execute(() -> complete(future, call));
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private static <T> void complete(CompletableFuture<T> future, PortalCall<T> call) {
+		try {
+			future.complete(call.call());
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Run a classification query on the pool, sharing the result with any
+	 * identical query that is still waiting to start.
+	 *
+	 * @param classification The classification being queried.
+	 * @param id             The ID of the stage or race.
+	 * @param call           The call that computes the classification.
+	 * @return A future of the caller's own copy of the classification.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> CompletableFuture<T> coalesce(Classification classification, int id, PortalCall<T> call) {
+		Query query = new Query(classification, id);
+		CompletableFuture<Object> shared = new CompletableFuture<Object>();
+		CompletableFuture<Object> pending = this.pendingQueries.putIfAbsent(query, shared);
+		if (pending == null) {
+			pending = shared;
+			try {
+				this.executor.execute(() -> {
+					// Later requests must not share a result computed from
+					// results they may have changed, so stop sharing first.
+					this.pendingQueries.remove(query, shared);
+					complete(shared, (PortalCall<Object>) call);
+				});
+			} catch (RejectedExecutionException e) {
+				this.pendingQueries.remove(query, shared);
+				shared.completeExceptionally(e);
+			}
+		}
+		return pending.thenApply(result -> (T) copy(result));
+	}
+
+	private static Object copy(Object result) {
+		if (result instanceof int[]) {
+			return ((int[]) result).clone();
+		}
+		if (result instanceof LocalTime[]) {
+			return ((LocalTime[]) result).clone();
+		}
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRaceIds() {
+		return submit(() -> this.portal.getRaceIds());
+	}
+
+	@Override
+	public CompletableFuture<Integer> createRace(String name, String description) {
+		return submit(() -> this.portal.createRace(name, description));
+	}
+
+	@Override
+	public CompletableFuture<String> viewRaceDetails(int raceId) {
+		return submit(() -> this.portal.viewRaceDetails(raceId));
+	}
+
+	@Override
+	public CompletableFuture<Void> removeRaceById(int raceId) {
+		return submit(() -> {
+			this.portal.removeRaceById(raceId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Integer> getNumberOfStages(int raceId) {
+		return submit(() -> this.portal.getNumberOfStages(raceId));
+	}
+
+	@Override
+	public CompletableFuture<Integer> addStageToRace(int raceId, String stageName, String description,
+			double length, LocalDateTime startTime, StageType type) {
+		return submit(() -> this.portal.addStageToRace(raceId, stageName, description, length, startTime, type));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRaceStages(int raceId) {
+		return submit(() -> this.portal.getRaceStages(raceId));
+	}
+
+	@Override
+	public CompletableFuture<Double> getStageLength(int stageId) {
+		return submit(() -> this.portal.getStageLength(stageId));
+	}
+
+	@Override
+	public CompletableFuture<Void> removeStageById(int stageId) {
+		return submit(() -> {
+			this.portal.removeStageById(stageId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Integer> addCategorizedClimbToStage(int stageId, Double location, SegmentType type,
+			Double averageGradient, Double length) {
+		return submit(() -> this.portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length));
+	}
+
+	@Override
+	public CompletableFuture<Integer> addIntermediateSprintToStage(int stageId, double location) {
+		return submit(() -> this.portal.addIntermediateSprintToStage(stageId, location));
+	}
+
+	@Override
+	public CompletableFuture<Void> removeSegment(int segmentId) {
+		return submit(() -> {
+			this.portal.removeSegment(segmentId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> concludeStagePreparation(int stageId) {
+		return submit(() -> {
+			this.portal.concludeStagePreparation(stageId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<int[]> getStageSegments(int stageId) {
+		return submit(() -> this.portal.getStageSegments(stageId));
+	}
+
+	@Override
+	public CompletableFuture<Integer> createTeam(String name, String description) {
+		return submit(() -> this.portal.createTeam(name, description));
+	}
+
+	@Override
+	public CompletableFuture<Void> removeTeam(int teamId) {
+		return submit(() -> {
+			this.portal.removeTeam(teamId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<int[]> getTeams() {
+		return submit(() -> this.portal.getTeams());
+	}
+
+	@Override
+	public CompletableFuture<int[]> getTeamRiders(int teamId) {
+		return submit(() -> this.portal.getTeamRiders(teamId));
+	}
+
+	@Override
+	public CompletableFuture<Integer> createRider(int teamID, String name, int yearOfBirth) {
+		return submit(() -> this.portal.createRider(teamID, name, yearOfBirth));
+	}
+
+	@Override
+	public CompletableFuture<Void> removeRider(int riderId) {
+		return submit(() -> {
+			this.portal.removeRider(riderId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> registerRiderResultsInStage(int stageId, int riderId, LocalTime... checkpoints) {
+		// The caller may reuse the array before the request runs.
+		LocalTime[] times = checkpoints.clone();
+		return submit(() -> {
+			this.portal.registerRiderResultsInStage(stageId, riderId, times);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<LocalTime[]> getRiderResultsInStage(int stageId, int riderId) {
+		return submit(() -> this.portal.getRiderResultsInStage(stageId, riderId));
+	}
+
+	@Override
+	public CompletableFuture<LocalTime> getRiderAdjustedElapsedTimeInStage(int stageId, int riderId) {
+		return submit(() -> this.portal.getRiderAdjustedElapsedTimeInStage(stageId, riderId));
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteRiderResultsInStage(int stageId, int riderId) {
+		return submit(() -> {
+			this.portal.deleteRiderResultsInStage(stageId, riderId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersRankInStage(int stageId) {
+		return coalesce(Classification.STAGE_RANK, stageId, () -> this.portal.getRidersRankInStage(stageId));
+	}
+
+	@Override
+	public CompletableFuture<LocalTime[]> getRankedAdjustedElapsedTimesInStage(int stageId) {
+		return coalesce(Classification.STAGE_TIMES, stageId,
+				() -> this.portal.getRankedAdjustedElapsedTimesInStage(stageId));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersPointsInStage(int stageId) {
+		return coalesce(Classification.STAGE_POINTS, stageId, () -> this.portal.getRidersPointsInStage(stageId));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersMountainPointsInStage(int stageId) {
+		return coalesce(Classification.STAGE_MOUNTAIN_POINTS, stageId,
+				() -> this.portal.getRidersMountainPointsInStage(stageId));
+	}
+
+	@Override
+	public CompletableFuture<Void> eraseCyclingPortal() {
+		return submit(() -> {
+			this.portal.eraseCyclingPortal();
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> saveCyclingPortal(String filename) {
+		return submit(() -> {
+			this.portal.saveCyclingPortal(filename);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> loadCyclingPortal(String filename) {
+		return submit(() -> {
+			this.portal.loadCyclingPortal(filename);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> removeRaceByName(String name) {
+		return submit(() -> {
+			this.portal.removeRaceByName(name);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersGeneralClassificationRank(int raceId) {
+		return coalesce(Classification.GENERAL_RANK, raceId,
+				() -> this.portal.getRidersGeneralClassificationRank(raceId));
+	}
+
+	@Override
+	public CompletableFuture<LocalTime[]> getGeneralClassificationTimesInRace(int raceId) {
+		return coalesce(Classification.GENERAL_TIMES, raceId,
+				() -> this.portal.getGeneralClassificationTimesInRace(raceId));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersPointsInRace(int raceId) {
+		return coalesce(Classification.RACE_POINTS, raceId, () -> this.portal.getRidersPointsInRace(raceId));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersMountainPointsInRace(int raceId) {
+		return coalesce(Classification.RACE_MOUNTAIN_POINTS, raceId,
+				() -> this.portal.getRidersMountainPointsInRace(raceId));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersPointClassificationRank(int raceId) {
+		return coalesce(Classification.POINTS_RANK, raceId,
+				() -> this.portal.getRidersPointClassificationRank(raceId));
+	}
+
+	@Override
+	public CompletableFuture<int[]> getRidersMountainPointClassificationRank(int raceId) {
+		return coalesce(Classification.MOUNTAIN_POINTS_RANK, raceId,
+				() -> this.portal.getRidersMountainPointClassificationRank(raceId));
+	}
+}
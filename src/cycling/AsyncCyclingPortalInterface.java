@@ -0,0 +1,396 @@
+package cycling;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous counterpart of CyclingPortalInterface. Each method does the
+ * same as the CyclingPortalInterface method of the same name, but returns at
+ * once with a future of its result instead of blocking the calling thread.
+ * <p>
+ * Where the synchronous method would throw an exception, the future completes
+ * exceptionally with that exception. A future can also complete exceptionally
+ * with a RejectedExecutionException when the portal is too busy to accept the
+ * request, or has been shut down.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public interface AsyncCyclingPortalInterface {
+
+	/**
+	 * Get the races currently created in the platform.
+	 *
+	 * @return A future of the race IDs.
+	 *
+	 */
+	CompletableFuture<int[]> getRaceIds();
+
+	/**
+	 * Create a race in the platform with the given name and description.
+	 *
+	 * @param name        Race's name.
+	 * @param description Race's description (can be null).
+	 * @return A future of the new race's ID.
+	 *
+	 */
+	CompletableFuture<Integer> createRace(String name, String description);
+
+	/**
+	 * Get the details of a race: its ID, name, description, number of stages
+	 * and total length.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the race details.
+	 *
+	 */
+	CompletableFuture<String> viewRaceDetails(int raceId);
+
+	/**
+	 * Remove a race and all its related information.
+	 *
+	 * @param raceId The ID of the race to be removed.
+	 * @return A future completed once the race is removed.
+	 *
+	 */
+	CompletableFuture<Void> removeRaceById(int raceId);
+
+	/**
+	 * Get the number of stages of a race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the number of stages.
+	 *
+	 */
+	CompletableFuture<Integer> getNumberOfStages(int raceId);
+
+	/**
+	 * Create a new stage and add it to a race.
+	 *
+	 * @param raceId      The race which the stage will be added to.
+	 * @param stageName   An identifier name for the stage.
+	 * @param description A descriptive text for the stage.
+	 * @param length      Stage length in kilometres.
+	 * @param startTime   The date and time in which the stage will be raced.
+	 * @param type        The type of the stage.
+	 * @return A future of the new stage's ID.
+	 *
+	 */
+	CompletableFuture<Integer> addStageToRace(int raceId, String stageName, String description, double length,
+			LocalDateTime startTime, StageType type);
+
+	/**
+	 * Get the stages of a race, ordered by their start times.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the stage IDs.
+	 *
+	 */
+	CompletableFuture<int[]> getRaceStages(int raceId);
+
+	/**
+	 * Get the length of a stage.
+	 *
+	 * @param stageId The ID of the stage being queried.
+	 * @return A future of the stage's length in kilometres.
+	 *
+	 */
+	CompletableFuture<Double> getStageLength(int stageId);
+
+	/**
+	 * Remove a stage and all its related data.
+	 *
+	 * @param stageId The ID of the stage being removed.
+	 * @return A future completed once the stage is removed.
+	 *
+	 */
+	CompletableFuture<Void> removeStageById(int stageId);
+
+	/**
+	 * Add a climb segment to a stage.
+	 *
+	 * @param stageId         The ID of the stage to which the climb segment is
+	 *                        being added.
+	 * @param location        The kilometre location where the climb finishes
+	 *                        within the stage.
+	 * @param type            The category of the climb.
+	 * @param averageGradient The average gradient for the climb.
+	 * @param length          The length of the climb in kilometre.
+	 * @return A future of the new segment's ID.
+	 *
+	 */
+	CompletableFuture<Integer> addCategorizedClimbToStage(int stageId, Double location, SegmentType type,
+			Double averageGradient, Double length);
+
+	/**
+	 * Add an intermediate sprint to a stage.
+	 *
+	 * @param stageId  The ID of the stage to which the intermediate sprint
+	 *                 segment is being added.
+	 * @param location The kilometre location where the intermediate sprint
+	 *                 finishes within the stage.
+	 * @return A future of the new segment's ID.
+	 *
+	 */
+	CompletableFuture<Integer> addIntermediateSprintToStage(int stageId, double location);
+
+	/**
+	 * Remove a segment from a stage.
+	 *
+	 * @param segmentId The ID of the segment to be removed.
+	 * @return A future completed once the segment is removed.
+	 *
+	 */
+	CompletableFuture<Void> removeSegment(int segmentId);
+
+	/**
+	 * Conclude the preparation of a stage, so that it waits for results.
+	 *
+	 * @param stageId The ID of the stage to be concluded.
+	 * @return A future completed once the stage is waiting for results.
+	 *
+	 */
+	CompletableFuture<Void> concludeStagePreparation(int stageId);
+
+	/**
+	 * Get the segments of a stage, ordered by their location in the stage.
+	 *
+	 * @param stageId The ID of the stage being queried.
+	 * @return A future of the segment IDs.
+	 *
+	 */
+	CompletableFuture<int[]> getStageSegments(int stageId);
+
+	/**
+	 * Create a team with the given name and description.
+	 *
+	 * @param name        The identifier name of the team.
+	 * @param description A description of the team.
+	 * @return A future of the new team's ID.
+	 *
+	 */
+	CompletableFuture<Integer> createTeam(String name, String description);
+
+	/**
+	 * Remove a team and its riders from the system.
+	 *
+	 * @param teamId The ID of the team to be removed.
+	 * @return A future completed once the team is removed.
+	 *
+	 */
+	CompletableFuture<Void> removeTeam(int teamId);
+
+	/**
+	 * Get the teams in the system.
+	 *
+	 * @return A future of the team IDs.
+	 *
+	 */
+	CompletableFuture<int[]> getTeams();
+
+	/**
+	 * Get the riders of a team.
+	 *
+	 * @param teamId The ID of the team being queried.
+	 * @return A future of the rider IDs.
+	 *
+	 */
+	CompletableFuture<int[]> getTeamRiders(int teamId);
+
+	/**
+	 * Create a rider and add them to a team.
+	 *
+	 * @param teamID      The ID rider's team.
+	 * @param name        The name of the rider.
+	 * @param yearOfBirth The year of birth of the rider.
+	 * @return A future of the new rider's ID.
+	 *
+	 */
+	CompletableFuture<Integer> createRider(int teamID, String name, int yearOfBirth);
+
+	/**
+	 * Remove a rider and all their results from the system.
+	 *
+	 * @param riderId The ID of the rider to be removed.
+	 * @return A future completed once the rider is removed.
+	 *
+	 */
+	CompletableFuture<Void> removeRider(int riderId);
+
+	/**
+	 * Record the times of a rider in a stage.
+	 *
+	 * @param stageId     The ID of the stage the result refers to.
+	 * @param riderId     The ID of the rider.
+	 * @param checkpoints An array of times at which the rider reached each of the
+	 *                    segments of the stage, including the start time and the
+	 *                    finish line.
+	 * @return A future completed once the results are registered.
+	 *
+	 */
+	CompletableFuture<Void> registerRiderResultsInStage(int stageId, int riderId, LocalTime... checkpoints);
+
+	/**
+	 * Get the times of a rider in a stage.
+	 *
+	 * @param stageId The ID of the stage the result refers to.
+	 * @param riderId The ID of the rider.
+	 * @return A future of the rider's checkpoint times and elapsed time.
+	 *
+	 */
+	CompletableFuture<LocalTime[]> getRiderResultsInStage(int stageId, int riderId);
+
+	/**
+	 * Get the adjusted elapsed time of a rider in a stage.
+	 *
+	 * @param stageId The ID of the stage the result refers to.
+	 * @param riderId The ID of the rider.
+	 * @return A future of the adjusted elapsed time, or of null if the rider has
+	 *         no results in the stage.
+	 *
+	 */
+	CompletableFuture<LocalTime> getRiderAdjustedElapsedTimeInStage(int stageId, int riderId);
+
+	/**
+	 * Remove the stage results of a rider.
+	 *
+	 * @param stageId The ID of the stage the result refers to.
+	 * @param riderId The ID of the rider.
+	 * @return A future completed once the results are removed.
+	 *
+	 */
+	CompletableFuture<Void> deleteRiderResultsInStage(int stageId, int riderId);
+
+	/**
+	 * Get the riders finished position in a stage.
+	 *
+	 * @param stageId The ID of the stage being queried.
+	 * @return A future of the rider IDs sorted by their elapsed time.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersRankInStage(int stageId);
+
+	/**
+	 * Get the adjusted elapsed times of riders in a stage.
+	 *
+	 * @param stageId The ID of the stage being queried.
+	 * @return A future of the adjusted elapsed times sorted by elapsed time.
+	 *
+	 */
+	CompletableFuture<LocalTime[]> getRankedAdjustedElapsedTimesInStage(int stageId);
+
+	/**
+	 * Get the number of points obtained by each rider in a stage.
+	 *
+	 * @param stageId The ID of the stage being queried.
+	 * @return A future of the points, ordered by the riders' elapsed times.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersPointsInStage(int stageId);
+
+	/**
+	 * Get the number of mountain points obtained by each rider in a stage.
+	 *
+	 * @param stageId The ID of the stage being queried.
+	 * @return A future of the mountain points, ordered by the riders' elapsed
+	 *         times.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersMountainPointsInStage(int stageId);
+
+	/**
+	 * Erase all data from the platform, leaving it empty.
+	 *
+	 * @return A future completed once the platform is empty.
+	 *
+	 */
+	CompletableFuture<Void> eraseCyclingPortal();
+
+	/**
+	 * Save the contents of the platform to a file.
+	 *
+	 * @param filename Location of the file to be saved.
+	 * @return A future completed once the file is written.
+	 *
+	 */
+	CompletableFuture<Void> saveCyclingPortal(String filename);
+
+	/**
+	 * Replace the contents of the platform with the contents of a file.
+	 *
+	 * @param filename Location of the file to be loaded.
+	 * @return A future completed once the file is loaded.
+	 *
+	 */
+	CompletableFuture<Void> loadCyclingPortal(String filename);
+
+	/**
+	 * Remove a race and all its related information.
+	 *
+	 * @param name The name of the race to be removed.
+	 * @return A future completed once the race is removed.
+	 *
+	 */
+	CompletableFuture<Void> removeRaceByName(String name);
+
+	/**
+	 * Get the general classification rank of riders in a race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the rider IDs sorted by their general classification.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersGeneralClassificationRank(int raceId);
+
+	/**
+	 * Get the general classification times of riders in a race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the adjusted elapsed times, sorted by the riders'
+	 *         general classification.
+	 *
+	 */
+	CompletableFuture<LocalTime[]> getGeneralClassificationTimesInRace(int raceId);
+
+	/**
+	 * Get the overall points of riders in a race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the points, sorted by the riders' general
+	 *         classification.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersPointsInRace(int raceId);
+
+	/**
+	 * Get the overall mountain points of riders in a race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the mountain points, sorted by the riders' general
+	 *         classification.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersMountainPointsInRace(int raceId);
+
+	/**
+	 * Get the ranked list of riders based on the points classification in a
+	 * race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the rider IDs sorted by their points.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersPointClassificationRank(int raceId);
+
+	/**
+	 * Get the ranked list of riders based on the mountain classification in a
+	 * race.
+	 *
+	 * @param raceId The ID of the race being queried.
+	 * @return A future of the rider IDs sorted by their mountain points.
+	 *
+	 */
+	CompletableFuture<int[]> getRidersMountainPointClassificationRank(int raceId);
+}
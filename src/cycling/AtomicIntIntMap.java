@@ -0,0 +1,135 @@
+package cycling;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed-capacity map from primitive int keys to non-negative int values, which
+ * can be read and updated by many threads at once without locking. Keys are
+ * claimed in their slot with a compare-and-set, and then the value is claimed
+ * with a second compare-and-set, so exactly one of several threads putting the
+ * same key succeeds.
+ * <p>
+ * Removing a key only clears its value, so the key keeps its slot and can be
+ * put again later. The map never grows: it holds at most capacity() distinct
+ * keys over its lifetime, and callers replace it with a larger map before that
+ * limit is reached.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+class AtomicIntIntMap {
+
+	private static final int EMPTY = Integer.MIN_VALUE;
+	private static final int MINIMUM_CAPACITY = 16;
+
+	private final AtomicIntegerArray keys;
+	// Values are stored plus one so that 0 can mark a key without a value.
+	private final AtomicIntegerArray values;
+
+	/**
+	 * Create a map with room for a number of distinct keys.
+	 *
+	 * @param maximumKeys The number of distinct keys the map must be able to hold.
+	 *
+	 */
+	public AtomicIntIntMap(int maximumKeys) {
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity < maximumKeys * 2) {
+			capacity *= 2;
+		}
+		this.keys = new AtomicIntegerArray(capacity);
+		this.values = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			this.keys.set(i, EMPTY);
+		}
+	}
+
+	/**
+	 * Get the number of distinct keys the map can hold.
+	 *
+	 * @return The map's capacity.
+	 *
+	 */
+	public int capacity() {
+		return this.keys.length() / 2;
+	}
+
+	/**
+	 * Get the value mapped to a key.
+	 *
+	 * @param key The key to look up.
+	 * @return The value for the key, or -1 if the key is not in the map.
+	 *
+	 */
+	public int get(int key) {
+		int slot = findSlot(key, false);
+		return slot < 0 ? -1 : this.values.get(slot) - 1;
+	}
+
+	/**
+	 * Map a key to a value, unless the key already has a value.
+	 *
+	 * @param key The key to map.
+	 * @param value The value to store, which must not be negative.
+	 * @return True if the value was stored, or false if the key already had
+	 *         a value.
+	 *
+	 */
+	public boolean putIfAbsent(int key, int value) {
+		assert value >= 0 && key != EMPTY;
+		int slot = findSlot(key, true);
+		return this.values.compareAndSet(slot, 0, value + 1);
+	}
+
+	/**
+	 * Remove a key's value from the map.
+	 *
+	 * @param key The key to remove.
+	 * @return The value that was mapped to the key, or -1 if there was none.
+	 *
+	 */
+	public int remove(int key) {
+		int slot = findSlot(key, false);
+		return slot < 0 ? -1 : this.values.getAndSet(slot, 0) - 1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Find the slot holding a key, optionally claiming an empty slot for it.
+	 *
+	 * @param key The key to find.
+	 * @param claim True to claim an empty slot if the key is not in the map.
+	 * @return The key's slot, or -1 if the key is not in the map and claim is
+	 *         false.
+	 *
+	 */
+	private int findSlot(int key, boolean claim) {
+		int mask = this.keys.length() - 1;
+		int slot = hash(key) & mask;
+		for (int probes = 0; probes <= mask; probes++) {
+			int current = this.keys.get(slot);
+			if (current == EMPTY) {
+				if (!claim) {
+					return -1;
+				}
+				if (this.keys.compareAndSet(slot, EMPTY, key)) {
+					return slot;
+				}
+				current = this.keys.get(slot);
+			}
+			if (current == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (claim) {
+			throw new IllegalStateException("The map was full.");
+		}
+		return -1;
+	}
+}
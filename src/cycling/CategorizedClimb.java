@@ -8,6 +8,7 @@ package cycling;
  *
  */
 public class CategorizedClimb extends Segment {
+    private static final long serialVersionUID = -7957575268653904530L;
     
     private double length;
     private double averageGradient;
@@ -27,4 +28,14 @@ public class CategorizedClimb extends Segment {
     public double getLength() {
         return this.length;
     }
+
+    /**
+	 * Get the average gradient of the climb.
+	 * 
+	 * @return The average gradient of the climb.
+	 * 
+	 */
+    public double getAverageGradient() {
+        return this.averageGradient;
+    }
 }
@@ -0,0 +1,1203 @@
+package cycling;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ConcurrentCyclingPortal is a thread-safe CyclingPortalInterface, which wraps
+ * a CyclingPortal and guards it with read-write locks.
+ * <p>
+ * The portal-wide maps of IDs and names are guarded by a catalogue lock, which
+ * is only ever held for the lookups and updates themselves. Each race and each
+ * team is guarded by one of a fixed set of striped locks. Changes to a race's
+ * stages or segments, or to a team's riders, take that race's or team's write
+ * lock. Registering and reading results take the race's read lock, and the
+ * stage itself lets many results be registered at once, so writers on
+ * different stages never block each other and writers on the same stage only
+ * contend to claim a row. Deleting results takes the race's write lock, so
+ * that a delete and a registration of the same rider are always journaled in
+ * the order they were made. Classifications are computed under the race's read
+ * lock alone, so readers never block writers on other races.
+ * <p>
+ * Whenever a writer changes a stage's results or a race's stages, it publishes
+ * new classification snapshots for the stage and the race. The stage and race
+ * ranking methods read the published snapshots without taking any lock, so they
+ * always see a consistent classification, which may lag behind results that
+ * are still being registered.
+ * <p>
+ * A race or team lock is always taken before the catalogue lock, and the
+ * catalogue lock is never held while waiting for a race or team lock.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public class ConcurrentCyclingPortal implements CyclingPortalInterface {
+
+	private static final int STRIPES = 64;
+
+	private final CyclingPortal portal;
+	private final ReentrantReadWriteLock catalogue = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock[] raceLocks = new ReentrantReadWriteLock[STRIPES];
+	private final ReentrantReadWriteLock[] teamLocks = new ReentrantReadWriteLock[STRIPES];
+	// Stages and races by ID for the lock-free readers, kept in step with the
+	// portal by the writers while they hold the catalogue's write lock.
+	private final ConcurrentHashMap<Integer, Stage> publishedStages = new ConcurrentHashMap<Integer, Stage>();
+	private final ConcurrentHashMap<Integer, Race> publishedRaces = new ConcurrentHashMap<Integer, Race>();
+	// Held while saving or starting a checkpoint, so that snapshots are saved
+	// one at a time and each delta follows on from the last. Always taken
+	// before any other lock.
+	private final Object checkpoints = new Object();
+
+	public ConcurrentCyclingPortal() {
+		this(new CyclingPortal());
+	}
+
+	public ConcurrentCyclingPortal(CyclingPortal portal) {
+		this.portal = portal;
+		for (int i = 0; i < STRIPES; i++) {
+			this.raceLocks[i] = new ReentrantReadWriteLock();
+			this.teamLocks[i] = new ReentrantReadWriteLock();
+		}
+		publishAll();
+	}
+
+	/**
+	 * Get the striped lock guarding a race.
+	 *
+	 * @param raceId Race's ID.
+	 * @return The lock for the race's stripe.
+	 *
+	 */
+	private ReentrantReadWriteLock raceLock(int raceId) {
+		return raceLocks[Math.floorMod(raceId, STRIPES)];
+	}
+
+	/**
+	 * Get the striped lock guarding a team.
+	 *
+	 * @param teamId Team's ID.
+	 * @return The lock for the team's stripe.
+	 *
+	 */
+	private ReentrantReadWriteLock teamLock(int teamId) {
+		return teamLocks[Math.floorMod(teamId, STRIPES)];
+	}
+
+	/**
+	 * Look up a stage under the catalogue's read lock.
+	 *
+	 * @param stageId Stage's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in the
+	 *                                  system.
+	 * @return The Stage object with the given ID.
+	 *
+	 */
+	private Stage lookupStage(int stageId) throws IDNotRecognisedException {
+		catalogue.readLock().lock();
+		try {
+			return portal.getStage(stageId);
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Look up a race under the catalogue's read lock.
+	 *
+	 * @param raceId Race's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any race in the
+	 *                                  system.
+	 * @return The Race object with the given ID.
+	 *
+	 */
+	private Race lookupRace(int raceId) throws IDNotRecognisedException {
+		catalogue.readLock().lock();
+		try {
+			return portal.getRace(raceId);
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Lock the race that a stage belongs to. The stage is looked up again once
+	 * the lock is held, since it may have been removed, or its ID reused after
+	 * the portal was erased or loaded, while waiting for the lock.
+	 *
+	 * @param stageId Stage's ID.
+	 * @param exclusive True to take the race's write lock, false for its read lock.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in the
+	 *                                  system.
+	 * @return The lock that is now held, which the caller must unlock.
+	 *
+	 */
+	private Lock lockRaceOfStage(int stageId, boolean exclusive) throws IDNotRecognisedException {
+		while (true) {
+			int raceId = lookupStage(stageId).getRaceId();
+			ReentrantReadWriteLock raceLock = raceLock(raceId);
+			Lock lock = exclusive ? raceLock.writeLock() : raceLock.readLock();
+			lock.lock();
+			try {
+				if (lookupStage(stageId).getRaceId() == raceId) {
+					return lock;
+				}
+			} catch (IDNotRecognisedException e) {
+				lock.unlock();
+				throw e;
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lock the race that a segment belongs to, for writing. The segment is
+	 * looked up again once the lock is held.
+	 *
+	 * @param segmentId Segment's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any segment in
+	 *                                  the system.
+	 * @return The lock that is now held, which the caller must unlock.
+	 *
+	 */
+	private Lock lockRaceOfSegment(int segmentId) throws IDNotRecognisedException {
+		while (true) {
+			int stageId = getSegmentStageId(segmentId);
+			Lock lock;
+			try {
+				lock = lockRaceOfStage(stageId, true);
+			} catch (IDNotRecognisedException e) {
+				// The stage was removed while waiting, so the segment has either
+				// gone with it or its ID has been reused; look it up again.
+				continue;
+			}
+			try {
+				if (getSegmentStageId(segmentId) == stageId) {
+					return lock;
+				}
+			} catch (IDNotRecognisedException e) {
+				lock.unlock();
+				throw e;
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the ID of the stage a segment belongs to, under the catalogue's read
+	 * lock.
+	 *
+	 * @param segmentId Segment's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any segment in
+	 *                                  the system.
+	 * @return The ID of the segment's stage.
+	 *
+	 */
+	private int getSegmentStageId(int segmentId) throws IDNotRecognisedException {
+		catalogue.readLock().lock();
+		try {
+			return portal.getSegment(segmentId).getStageId();
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Lock the team that a rider belongs to, for writing. The rider is looked
+	 * up again once the lock is held.
+	 *
+	 * @param riderId Rider's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any rider in the
+	 *                                  system.
+	 * @return The lock that is now held, which the caller must unlock.
+	 *
+	 */
+	private Lock lockTeamOfRider(int riderId) throws IDNotRecognisedException {
+		while (true) {
+			int teamId = getRiderTeamId(riderId);
+			Lock lock = teamLock(teamId).writeLock();
+			lock.lock();
+			try {
+				if (getRiderTeamId(riderId) == teamId) {
+					return lock;
+				}
+			} catch (IDNotRecognisedException e) {
+				lock.unlock();
+				throw e;
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the ID of the team a rider belongs to, under the catalogue's read lock.
+	 *
+	 * @param riderId Rider's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any rider in the
+	 *                                  system.
+	 * @return The ID of the rider's team.
+	 *
+	 */
+	private int getRiderTeamId(int riderId) throws IDNotRecognisedException {
+		catalogue.readLock().lock();
+		try {
+			return portal.getRider(riderId).getTeamId();
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Take every race and team lock and then the catalogue lock, in a fixed
+	 * order, for operations on the whole portal.
+	 *
+	 * @param exclusive True to take the write locks, false for the read locks.
+	 *
+	 */
+	private void lockAll(boolean exclusive) {
+		for (ReentrantReadWriteLock lock : raceLocks) {
+			(exclusive ? lock.writeLock() : lock.readLock()).lock();
+		}
+		for (ReentrantReadWriteLock lock : teamLocks) {
+			(exclusive ? lock.writeLock() : lock.readLock()).lock();
+		}
+		(exclusive ? catalogue.writeLock() : catalogue.readLock()).lock();
+	}
+
+	/**
+	 * Release the locks taken by lockAll, in reverse order.
+	 *
+	 * @param exclusive True if the write locks were taken.
+	 *
+	 */
+	private void unlockAll(boolean exclusive) {
+		(exclusive ? catalogue.writeLock() : catalogue.readLock()).unlock();
+		for (int i = STRIPES - 1; i >= 0; i--) {
+			(exclusive ? teamLocks[i].writeLock() : teamLocks[i].readLock()).unlock();
+		}
+		for (int i = STRIPES - 1; i >= 0; i--) {
+			(exclusive ? raceLocks[i].writeLock() : raceLocks[i].readLock()).unlock();
+		}
+	}
+
+	/**
+	 * Get a stage for a lock-free reader.
+	 *
+	 * @param stageId Stage's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in the
+	 *                                  system.
+	 * @return The Stage object with the given ID.
+	 *
+	 */
+	private Stage getPublishedStage(int stageId) throws IDNotRecognisedException {
+		Stage stage = publishedStages.get(stageId);
+		if (stage == null) {
+			String errorMessage = String.format("Stage ID '%d' did not exist.", stageId);
+			throw new IDNotRecognisedException(errorMessage);
+		}
+		return stage;
+	}
+
+	/**
+	 * Get a race for a lock-free reader.
+	 *
+	 * @param raceId Race's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any race in the
+	 *                                  system.
+	 * @return The Race object with the given ID.
+	 *
+	 */
+	private Race getPublishedRace(int raceId) throws IDNotRecognisedException {
+		Race race = publishedRaces.get(raceId);
+		if (race == null) {
+			String errorMessage = String.format("Race ID '%d' did not exist.", raceId);
+			throw new IDNotRecognisedException(errorMessage);
+		}
+		return race;
+	}
+
+	/**
+	 * Publish new classifications for a stage and its race, after the stage's
+	 * results have changed. The caller must hold the race's lock, but not the
+	 * catalogue lock.
+	 *
+	 * @param stageId Stage's ID.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in the
+	 *                                  system.
+	 *
+	 */
+	private void publishStage(int stageId) throws IDNotRecognisedException {
+		Stage stage = lookupStage(stageId);
+		stage.publishClassification();
+		lookupRace(stage.getRaceId()).publishClassification();
+	}
+
+	/**
+	 * Rebuild the published stages and races from the portal and publish all
+	 * of their classifications. Stages loaded from a snapshot whose results
+	 * have not been read yet, and their races, are left unpublished, so that
+	 * readers compute their classifications when first asked rather than
+	 * every result being read now. The caller must hold every lock.
+	 *
+	 */
+	private void publishAll() {
+		publishedStages.clear();
+		publishedRaces.clear();
+		for (int raceId : portal.getRaceIds()) {
+			try {
+				Race race = portal.getRace(raceId);
+				boolean loaded = true;
+				for (Stage stage : race.getStages()) {
+					if (stage.hasUnloadedResults()) {
+						loaded = false;
+					} else {
+						stage.publishClassification();
+					}
+					publishedStages.put(stage.getId(), stage);
+				}
+				if (loaded) {
+					race.publishClassification();
+				} else {
+					race.clearPublishedClassification();
+				}
+				publishedRaces.put(raceId, race);
+			} catch (IDNotRecognisedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Remove a race and its stages from the published races and stages. The
+	 * caller must hold the catalogue's write lock.
+	 *
+	 * @param race The Race object being removed.
+	 *
+	 */
+	private void unpublishRace(Race race) {
+		for (Stage stage : race.getStages()) {
+			publishedStages.remove(stage.getId());
+		}
+		publishedRaces.remove(race.getId());
+	}
+
+	/**
+	 * Convert times in nanoseconds to LocalTime objects.
+	 *
+	 * @param nanos The times in nanoseconds.
+	 * @return The times as LocalTime objects.
+	 *
+	 */
+	private static LocalTime[] toLocalTimes(long[] nanos) {
+		LocalTime[] times = new LocalTime[nanos.length];
+		for (int i = 0; i < nanos.length; i++) {
+			times[i] = LocalTime.ofNanoOfDay(nanos[i]);
+		}
+		return times;
+	}
+
+	/**
+	 * Set the pool that every race uses to compute its stages' classifications
+	 * in parallel.
+	 *
+	 * @param pool The ForkJoinPool to use, or null to compute the stages of a
+	 *             race one after another.
+	 *
+	 */
+	public void setClassificationPool(ForkJoinPool pool) {
+		catalogue.writeLock().lock();
+		try {
+			portal.setClassificationPool(pool);
+		} finally {
+			catalogue.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Append every later change to a journal, as CyclingPortal.setJournal does.
+	 * Each change is appended while its locks are still held, and many threads
+	 * registering results at once share the journal's writes and syncs.
+	 *
+	 * @param journal The journal to append to, or null to stop journaling.
+	 *
+	 */
+	public void setJournal(MutationJournal journal) {
+		lockAll(true);
+		try {
+			portal.setJournal(journal);
+		} finally {
+			unlockAll(true);
+		}
+	}
+
+	/**
+	 * Apply the changes in a journal that came after the portal was last
+	 * loaded, as CyclingPortal.replayJournal does, and publish the rebuilt
+	 * classifications.
+	 *
+	 * @param filename Location of the journal.
+	 * @return The sequence number of the last change the portal now holds.
+	 * @throws IOException If the journal could not be read, or does not follow
+	 *                     on from the portal.
+	 *
+	 */
+	public long replayJournal(String filename) throws IOException {
+		lockAll(true);
+		try {
+			return portal.replayJournal(filename);
+		} finally {
+			publishAll();
+			unlockAll(true);
+		}
+	}
+
+	/**
+	 * Get the number of stage classification requests across the portal that
+	 * were served from a stage's cached classification.
+	 *
+	 * @return The total number of classification cache hits.
+	 *
+	 */
+	public long getClassificationCacheHits() {
+		catalogue.readLock().lock();
+		try {
+			return portal.getClassificationCacheHits();
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of stage classification requests across the portal that
+	 * had to recompute a stage's classification.
+	 *
+	 * @return The total number of classification cache misses.
+	 *
+	 */
+	public long getClassificationCacheMisses() {
+		catalogue.readLock().lock();
+		try {
+			return portal.getClassificationCacheMisses();
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int[] getRaceIds() {
+		catalogue.readLock().lock();
+		try {
+			return portal.getRaceIds();
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int createRace(String name, String description) throws IllegalNameException, InvalidNameException {
+		catalogue.writeLock().lock();
+		try {
+			int raceId = portal.createRace(name, description);
+			publishedRaces.put(raceId, portal.getRace(raceId));
+			return raceId;
+		} catch (IDNotRecognisedException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			catalogue.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String viewRaceDetails(int raceId) throws IDNotRecognisedException {
+		Lock lock = raceLock(raceId).readLock();
+		lock.lock();
+		try {
+			catalogue.readLock().lock();
+			try {
+				return portal.viewRaceDetails(raceId);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void removeRaceById(int raceId) throws IDNotRecognisedException {
+		Lock lock = raceLock(raceId).writeLock();
+		lock.lock();
+		try {
+			catalogue.writeLock().lock();
+			try {
+				Race race = portal.getRace(raceId);
+				unpublishRace(race);
+				portal.removeRaceById(raceId);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getNumberOfStages(int raceId) throws IDNotRecognisedException {
+		Lock lock = raceLock(raceId).readLock();
+		lock.lock();
+		try {
+			return lookupRace(raceId).getStages().length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int addStageToRace(int raceId, String stageName, String description, double length, LocalDateTime startTime,
+			StageType type)
+			throws IDNotRecognisedException, IllegalNameException, InvalidNameException, InvalidLengthException {
+		Lock lock = raceLock(raceId).writeLock();
+		lock.lock();
+		try {
+			int stageId;
+			catalogue.writeLock().lock();
+			try {
+				stageId = portal.addStageToRace(raceId, stageName, description, length, startTime, type);
+				publishedStages.put(stageId, portal.getStage(stageId));
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+			lookupRace(raceId).publishClassification();
+			return stageId;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int[] getRaceStages(int raceId) throws IDNotRecognisedException {
+		Lock lock = raceLock(raceId).readLock();
+		lock.lock();
+		try {
+			return lookupRace(raceId).getStageIds();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public double getStageLength(int stageId) throws IDNotRecognisedException {
+		return lookupStage(stageId).getLength();
+	}
+
+	@Override
+	public void removeStageById(int stageId) throws IDNotRecognisedException {
+		Lock lock = lockRaceOfStage(stageId, true);
+		try {
+			Race race;
+			catalogue.writeLock().lock();
+			try {
+				race = portal.getRace(portal.getStage(stageId).getRaceId());
+				portal.removeStageById(stageId);
+				publishedStages.remove(stageId);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+			race.publishClassification();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int addCategorizedClimbToStage(int stageId, Double location, SegmentType type, Double averageGradient,
+			Double length) throws IDNotRecognisedException, InvalidLocationException, InvalidStageStateException,
+			InvalidStageTypeException {
+		Lock lock = lockRaceOfStage(stageId, true);
+		try {
+			catalogue.writeLock().lock();
+			try {
+				return portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int addIntermediateSprintToStage(int stageId, double location) throws IDNotRecognisedException,
+			InvalidLocationException, InvalidStageStateException, InvalidStageTypeException {
+		Lock lock = lockRaceOfStage(stageId, true);
+		try {
+			catalogue.writeLock().lock();
+			try {
+				return portal.addIntermediateSprintToStage(stageId, location);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void removeSegment(int segmentId) throws IDNotRecognisedException, InvalidStageStateException {
+		Lock lock = lockRaceOfSegment(segmentId);
+		try {
+			catalogue.writeLock().lock();
+			try {
+				portal.removeSegment(segmentId);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void concludeStagePreparation(int stageId) throws IDNotRecognisedException, InvalidStageStateException {
+		Lock lock = lockRaceOfStage(stageId, true);
+		try {
+			catalogue.readLock().lock();
+			try {
+				portal.concludeStagePreparation(stageId);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int[] getStageSegments(int stageId) throws IDNotRecognisedException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			return lookupStage(stageId).getSegmentIds();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int createTeam(String name, String description) throws IllegalNameException, InvalidNameException {
+		catalogue.writeLock().lock();
+		try {
+			return portal.createTeam(name, description);
+		} finally {
+			catalogue.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeTeam(int teamId) throws IDNotRecognisedException {
+		Lock lock = teamLock(teamId).writeLock();
+		lock.lock();
+		try {
+			catalogue.writeLock().lock();
+			try {
+				portal.removeTeam(teamId);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int[] getTeams() {
+		catalogue.readLock().lock();
+		try {
+			return portal.getTeams();
+		} finally {
+			catalogue.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int[] getTeamRiders(int teamId) throws IDNotRecognisedException {
+		Lock lock = teamLock(teamId).readLock();
+		lock.lock();
+		try {
+			catalogue.readLock().lock();
+			try {
+				return portal.getTeamRiders(teamId);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int createRider(int teamID, String name, int yearOfBirth)
+			throws IDNotRecognisedException, IllegalArgumentException {
+		Lock lock = teamLock(teamID).writeLock();
+		lock.lock();
+		try {
+			catalogue.writeLock().lock();
+			try {
+				return portal.createRider(teamID, name, yearOfBirth);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void removeRider(int riderId) throws IDNotRecognisedException {
+		Lock lock = lockTeamOfRider(riderId);
+		try {
+			catalogue.writeLock().lock();
+			try {
+				portal.removeRider(riderId);
+			} finally {
+				catalogue.writeLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void registerRiderResultsInStage(int stageId, int riderId, LocalTime... checkpoints)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			catalogue.readLock().lock();
+			try {
+				portal.registerRiderResultsInStage(stageId, riderId, checkpoints);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			publishStage(stageId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record the results of many riders in a stage at once, as
+	 * CyclingPortal.registerStageResults does.
+	 *
+	 * @param stageId     The ID of the stage the results refer to.
+	 * @param riderIds    The IDs of the riders who competed in the stage.
+	 * @param checkpoints The checkpoint times of each rider, in the same order
+	 *                    as the riders.
+	 * @throws IDNotRecognisedException    If the ID does not match to any rider or
+	 *                                     stage in the system.
+	 * @throws DuplicatedResultException   If a rider already has results for the
+	 *                                     stage, or appears more than once.
+	 * @throws InvalidCheckpointsException If the length of a rider's checkpoints
+	 *                                     is not equal to n+2, where n is the
+	 *                                     number of segments in the stage.
+	 * @throws InvalidStageStateException  If the stage is not "waiting for
+	 *                                     results".
+	 *
+	 */
+	public void registerStageResults(int stageId, int[] riderIds, LocalTime[][] checkpoints)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			catalogue.readLock().lock();
+			try {
+				portal.registerStageResults(stageId, riderIds, checkpoints);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			publishStage(stageId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record the results of many riders in a stage at once, with the checkpoint
+	 * times given in nanoseconds of the day.
+	 *
+	 * @param stageId     The ID of the stage the results refer to.
+	 * @param riderIds    The IDs of the riders who competed in the stage.
+	 * @param checkpoints The checkpoint times of each rider in nanoseconds of the
+	 *                    day, in the same order as the riders.
+	 * @throws IDNotRecognisedException    If the ID does not match to any rider or
+	 *                                     stage in the system.
+	 * @throws DuplicatedResultException   If a rider already has results for the
+	 *                                     stage, or appears more than once.
+	 * @throws InvalidCheckpointsException If the length of a rider's checkpoints
+	 *                                     is not equal to n+2, where n is the
+	 *                                     number of segments in the stage.
+	 * @throws InvalidStageStateException  If the stage is not "waiting for
+	 *                                     results".
+	 *
+	 */
+	public void registerStageResults(int stageId, int[] riderIds, long[][] checkpoints)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			catalogue.readLock().lock();
+			try {
+				portal.registerStageResults(stageId, riderIds, checkpoints);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			publishStage(stageId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a single checkpoint time of a rider in a stage, as
+	 * CyclingPortal.registerRiderCheckpointInStage does. The classifications
+	 * are only published again once the rider's results are complete.
+	 *
+	 * @param stageId    The ID of the stage the result refers to.
+	 * @param riderId    The ID of the rider.
+	 * @param checkpoint The index of the checkpoint, where 0 is the start, 1 to n
+	 *                   are the n segments, and n+1 is the finish.
+	 * @param time       The time the rider reached the checkpoint.
+	 * @throws IDNotRecognisedException    If the ID does not match to any rider or
+	 *                                     stage in the system.
+	 * @throws DuplicatedResultException   If the rider already has results for the
+	 *                                     stage, or a time for the checkpoint.
+	 * @throws InvalidCheckpointsException If the checkpoint index is not between 0
+	 *                                     and n+1.
+	 * @throws InvalidStageStateException  If the stage is not "waiting for
+	 *                                     results".
+	 * @return True if the time completed the rider's results.
+	 *
+	 */
+	public boolean registerRiderCheckpointInStage(int stageId, int riderId, int checkpoint, LocalTime time)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			boolean completed;
+			catalogue.readLock().lock();
+			try {
+				completed = portal.registerRiderCheckpointInStage(stageId, riderId, checkpoint, time);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			if (completed) {
+				publishStage(stageId);
+			}
+			return completed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Subscribe to the top k riders of a stage, as
+	 * CyclingPortal.subscribeStageLeaderboard does.
+	 *
+	 * @param stageId  The ID of the stage to follow.
+	 * @param k        The number of riders to follow.
+	 * @param listener The listener to send the changes to.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in
+	 *                                  the system.
+	 * @return The subscription, which can be cancelled.
+	 *
+	 */
+	public StageLeaderboard subscribeStageLeaderboard(int stageId, int k, LeaderboardListener listener)
+			throws IDNotRecognisedException {
+		return subscribeStageLeaderboard(stageId, k, listener, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Subscribe to the top k riders of a stage, delivering the changes on an
+	 * executor, as CyclingPortal.subscribeStageLeaderboard does.
+	 *
+	 * @param stageId  The ID of the stage to follow.
+	 * @param k        The number of riders to follow.
+	 * @param listener The listener to send the changes to.
+	 * @param executor The executor to deliver the changes on.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in
+	 *                                  the system.
+	 * @return The subscription, which can be cancelled.
+	 *
+	 */
+	public StageLeaderboard subscribeStageLeaderboard(int stageId, int k, LeaderboardListener listener,
+			Executor executor) throws IDNotRecognisedException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			catalogue.readLock().lock();
+			try {
+				return portal.subscribeStageLeaderboard(stageId, k, listener, executor);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public LocalTime[] getRiderResultsInStage(int stageId, int riderId) throws IDNotRecognisedException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			catalogue.readLock().lock();
+			try {
+				return portal.getRiderResultsInStage(stageId, riderId);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public LocalTime getRiderAdjustedElapsedTimeInStage(int stageId, int riderId) throws IDNotRecognisedException {
+		Lock lock = lockRaceOfStage(stageId, false);
+		try {
+			catalogue.readLock().lock();
+			Stage stage;
+			try {
+				portal.getRider(riderId);
+				stage = portal.getStage(stageId);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			return stage.getRiderAdjustedElapsedTime(riderId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteRiderResultsInStage(int stageId, int riderId) throws IDNotRecognisedException {
+		// Exclusive, so that a rider's results cannot be registered again
+		// between the delete and its journal record.
+		Lock lock = lockRaceOfStage(stageId, true);
+		try {
+			catalogue.readLock().lock();
+			try {
+				portal.deleteRiderResultsInStage(stageId, riderId);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			publishStage(stageId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int[] getRidersRankInStage(int stageId) throws IDNotRecognisedException {
+		return getPublishedStage(stageId).getPublishedClassification().getRiderIds().clone();
+	}
+
+	@Override
+	public LocalTime[] getRankedAdjustedElapsedTimesInStage(int stageId) throws IDNotRecognisedException {
+		return toLocalTimes(getPublishedStage(stageId).getPublishedClassification().getAdjustedElapsedTimes());
+	}
+
+	@Override
+	public int[] getRidersPointsInStage(int stageId) throws IDNotRecognisedException {
+		return getPublishedStage(stageId).getPublishedClassification().getPoints().clone();
+	}
+
+	@Override
+	public int[] getRidersMountainPointsInStage(int stageId) throws IDNotRecognisedException {
+		return getPublishedStage(stageId).getPublishedClassification().getMountainPoints().clone();
+	}
+
+	@Override
+	public void eraseCyclingPortal() {
+		lockAll(true);
+		try {
+			portal.eraseCyclingPortal();
+			publishAll();
+		} finally {
+			unlockAll(true);
+		}
+	}
+
+	@Override
+	public void saveCyclingPortal(String filename) throws IOException {
+		synchronized (checkpoints) {
+			portal.awaitCheckpoint();
+			lockAll(false);
+			try {
+				portal.saveCyclingPortal(filename);
+			} finally {
+				unlockAll(false);
+			}
+		}
+	}
+
+	/**
+	 * Save the races and teams changed since the last snapshot as a delta, as
+	 * CyclingPortal.saveCyclingPortalDelta does. Results can still be
+	 * registered while the delta is saved.
+	 *
+	 * @param filename Location of the file to be saved.
+	 * @throws IOException If there is a problem experienced when trying to save
+	 *                     the changes to the file.
+	 *
+	 */
+	public void saveCyclingPortalDelta(String filename) throws IOException {
+		synchronized (checkpoints) {
+			portal.awaitCheckpoint();
+			lockAll(false);
+			try {
+				portal.saveCyclingPortalDelta(filename);
+			} finally {
+				unlockAll(false);
+			}
+		}
+	}
+
+	/**
+	 * Save the portal as a binary snapshot in the background, as
+	 * CyclingPortal.checkpointCyclingPortal does, on the common fork/join pool.
+	 *
+	 * @param filename Location of the file to be saved.
+	 * @return A future of the checkpoint's outcome, which completes
+	 *         exceptionally if the snapshot could not be written.
+	 *
+	 */
+	public CompletableFuture<PortalCheckpoint> checkpointCyclingPortal(String filename) {
+		return checkpointCyclingPortal(filename, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Save the portal as a binary snapshot in the background, as
+	 * CyclingPortal.checkpointCyclingPortal does. Every change is held up only
+	 * while the portal's contents are captured, under all of the write locks,
+	 * so the snapshot is a single point in time and holds exactly the changes
+	 * journaled before it. Results registered while the snapshot is written
+	 * are left for the next one.
+	 *
+	 * @param filename Location of the file to be saved.
+	 * @param executor The executor to write the snapshot on.
+	 * @return A future of the checkpoint's outcome, which completes
+	 *         exceptionally if the snapshot could not be written.
+	 *
+	 */
+	public CompletableFuture<PortalCheckpoint> checkpointCyclingPortal(String filename, Executor executor) {
+		synchronized (checkpoints) {
+			portal.awaitCheckpoint();
+			long pauseStart = System.nanoTime();
+			lockAll(true);
+			try {
+				return portal.checkpointCyclingPortal(filename, executor, pauseStart);
+			} finally {
+				unlockAll(true);
+			}
+		}
+	}
+
+	/**
+	 * Apply a delta snapshot to the portal, as
+	 * CyclingPortal.applyCyclingPortalDelta does, and publish the rebuilt
+	 * classifications.
+	 *
+	 * @param filename Location of the delta.
+	 * @throws IOException If the delta could not be read, or does not follow on
+	 *                     from the portal's last snapshot.
+	 *
+	 */
+	public void applyCyclingPortalDelta(String filename) throws IOException {
+		lockAll(true);
+		try {
+			portal.applyCyclingPortalDelta(filename);
+			publishAll();
+		} finally {
+			unlockAll(true);
+		}
+	}
+
+	@Override
+	public void loadCyclingPortal(String filename) throws IOException, ClassNotFoundException {
+		lockAll(true);
+		try {
+			portal.loadCyclingPortal(filename);
+			publishAll();
+		} finally {
+			unlockAll(true);
+		}
+	}
+
+	@Override
+	public void removeRaceByName(String name) throws NameNotRecognisedException {
+		while (true) {
+			int raceId;
+			catalogue.readLock().lock();
+			try {
+				raceId = portal.getRaceIdByName(name);
+			} finally {
+				catalogue.readLock().unlock();
+			}
+			Lock lock = raceLock(raceId).writeLock();
+			lock.lock();
+			try {
+				catalogue.writeLock().lock();
+				try {
+					// The name may have been given to another race while waiting.
+					if (portal.getRaceIdByName(name) == raceId) {
+						unpublishRace(portal.getRace(raceId));
+						portal.removeRaceByName(name);
+						return;
+					}
+				} catch (IDNotRecognisedException e) {
+					throw new IllegalStateException(e);
+				} finally {
+					catalogue.writeLock().unlock();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public LocalTime[] getGeneralClassificationTimesInRace(int raceId) throws IDNotRecognisedException {
+		return toLocalTimes(getPublishedRace(raceId).getPublishedClassification().getTimes());
+	}
+
+	@Override
+	public int[] getRidersPointsInRace(int raceId) throws IDNotRecognisedException {
+		return getPublishedRace(raceId).getPublishedClassification().getPoints().clone();
+	}
+
+	@Override
+	public int[] getRidersMountainPointsInRace(int raceId) throws IDNotRecognisedException {
+		return getPublishedRace(raceId).getPublishedClassification().getMountainPoints().clone();
+	}
+
+	@Override
+	public int[] getRidersGeneralClassificationRank(int raceId) throws IDNotRecognisedException {
+		return getPublishedRace(raceId).getPublishedClassification().getRiderIds().clone();
+	}
+
+	@Override
+	public int[] getRidersPointClassificationRank(int raceId) throws IDNotRecognisedException {
+		return getPublishedRace(raceId).getPublishedClassification().getPointsRiderIds().clone();
+	}
+
+	@Override
+	public int[] getRidersMountainPointClassificationRank(int raceId) throws IDNotRecognisedException {
+		return getPublishedRace(raceId).getPublishedClassification().getMountainPointsRiderIds().clone();
+	}
+
+}
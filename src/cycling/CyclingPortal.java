@@ -1,16 +1,32 @@
 package cycling;
 
 import java.io.IOException;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
 import java.io.ObjectInputStream;
-import java.io.FileOutputStream;
 import java.io.ObjectOutputStream;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ObjectStreamField;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * CyclingPortal implements all of the functions in the CyclingPortalInterface.
@@ -20,10 +36,38 @@ import java.util.HashMap;
  *
  */
 public class CyclingPortal implements CyclingPortalInterface {
+
+	// Java serialization keeps the fields of the first version of the portal,
+	// so that portals saved by it can still be loaded.
+	private static final long serialVersionUID = -6091786434274031129L;
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("nextId", int.class),
+		new ObjectStreamField("races", HashMap.class),
+		new ObjectStreamField("teams", HashMap.class)
+	};
 	
-	private int nextId = 0;
-	private HashMap<Integer, Race> races = new HashMap<Integer, Race>();
-	private HashMap<Integer, Team> teams = new HashMap<Integer, Team>();
+	private AtomicInteger nextId = new AtomicInteger();
+	private IntMap<Race> races = new IntMap<Race>();
+	private IntMap<Team> teams = new IntMap<Team>();
+
+	// Indexes from ID to entity for the objects nested inside races and teams.
+	// They are derived from races and teams, so are rebuilt rather than saved.
+	private transient IntMap<Stage> stageIndex = new IntMap<Stage>();
+	private transient IntMap<Segment> segmentIndex = new IntMap<Segment>();
+	private transient IntMap<Rider> riderIndex = new IntMap<Rider>();
+	private transient NameRegistry names = new NameRegistry();
+	private transient ForkJoinPool classificationPool;
+	// The journal every change is appended to, if any, and the sequence number
+	// of the last journaled change the portal holds, which snapshots record.
+	private transient MutationJournal journal;
+	private transient long journalSequence;
+	// The ID of the last snapshot the portal was saved to or loaded from, and
+	// the races and teams changed since, which the next delta snapshot holds.
+	private transient AtomicLong checkpointId = new AtomicLong();
+	private transient Set<Integer> changedRaces = ConcurrentHashMap.newKeySet();
+	private transient Set<Integer> changedTeams = ConcurrentHashMap.newKeySet();
+	// The background checkpoint last started, which later saves wait for.
+	private transient volatile CompletableFuture<PortalCheckpoint> pendingCheckpoint;
 
 	/**
 	 * Get a Race object by its ID.
@@ -52,15 +96,12 @@ public class CyclingPortal implements CyclingPortalInterface {
 	 * 
 	 */
 	public Stage getStage(int id) throws IDNotRecognisedException {
-		for (Race race : races.values()) {
-			for (Stage stage : race.getStages()) {
-				if (stage.getId() == id) {
-					return stage;
-				}
-			}
+		Stage stage = stageIndex.get(id);
+		if (stage == null) {
+			String errorMessage = String.format("Stage ID '%d' did not exist.", id);
+			throw new IDNotRecognisedException(errorMessage);
 		}
-		String errorMessage = String.format("Stage ID '%d' did not exist.", id);
-		throw new IDNotRecognisedException(errorMessage);
+		return stage;
 	}
 
 	/**
@@ -73,17 +114,12 @@ public class CyclingPortal implements CyclingPortalInterface {
 	 * 
 	 */
 	public Segment getSegment(int id) throws IDNotRecognisedException {
-		for (Race race : races.values()) {
-			for (Stage stage : race.getStages()) {
-				for (Segment segment : stage.getSegments()) {
-					if (segment.getId() == id) {
-						return segment;
-					}
-				}
-			}
+		Segment segment = segmentIndex.get(id);
+		if (segment == null) {
+			String errorMessage = String.format("Segment ID '%d' did not exist.", id);
+			throw new IDNotRecognisedException(errorMessage);
 		}
-		String errorMessage = String.format("Segment ID '%d' did not exist.", id);
-		throw new IDNotRecognisedException(errorMessage);
+		return segment;
 	}
 
 	/**
@@ -113,50 +149,270 @@ public class CyclingPortal implements CyclingPortalInterface {
 	 * 
 	 */
 	public Rider getRider(int id) throws IDNotRecognisedException {
-		for (Team team : teams.values()) {
-			for (Rider rider : team.getRiders()) {
-				if (rider.getId() == id) {
-					return rider;
-				}
-			}
+		Rider rider = riderIndex.get(id);
+		if (rider == null) {
+			String errorMessage = String.format("Rider ID '%d' did not exist.", id);
+			throw new IDNotRecognisedException(errorMessage);
 		}
-		String errorMessage = String.format("Rider ID '%d' did not exist.", id);
-		throw new IDNotRecognisedException(errorMessage);
+		return rider;
 	}
 
 	/**
-	 * Perform checks upon a name to ensure it is unique in the system, it is not empty,
-	 * it is shorter than 30 characters, and it doesn't have any spaces.
+	 * Get the ID of a race by its name.
 	 * 
-	 * @param name Name to validate.
-	 * @throws IllegalNameException If the name already exists in the system.
-	 * @throws InvalidNameException If the name does not match the formatting required.
+	 * @param name Race's name.
+	 * @throws NameNotRecognisedException If the name does not match to any race in
+	 *                                    the system.
+	 * @return The ID of the race with the given name.
 	 * 
 	 */
-	public void validateName(String name) throws IllegalNameException, InvalidNameException {
-		boolean usedName = false;
+	public int getRaceIdByName(String name) throws NameNotRecognisedException {
+		Integer raceId = names.getRaceId(name);
+		if (raceId == null) {
+			String errorMessage = String.format("Race name '%s' did not exist.", name);
+			throw new NameNotRecognisedException(errorMessage);
+		}
+		return raceId;
+	}
+
+	/**
+	 * Get the ID of a stage by its name.
+	 * 
+	 * @param name Stage's name.
+	 * @throws NameNotRecognisedException If the name does not match to any stage in
+	 *                                    the system.
+	 * @return The ID of the stage with the given name.
+	 * 
+	 */
+	public int getStageIdByName(String name) throws NameNotRecognisedException {
+		Integer stageId = names.getStageId(name);
+		if (stageId == null) {
+			String errorMessage = String.format("Stage name '%s' did not exist.", name);
+			throw new NameNotRecognisedException(errorMessage);
+		}
+		return stageId;
+	}
+
+	/**
+	 * Get the ID of a team by its name.
+	 * 
+	 * @param name Team's name.
+	 * @throws NameNotRecognisedException If the name does not match to any team in
+	 *                                    the system.
+	 * @return The ID of the team with the given name.
+	 * 
+	 */
+	public int getTeamIdByName(String name) throws NameNotRecognisedException {
+		Integer teamId = names.getTeamId(name);
+		if (teamId == null) {
+			String errorMessage = String.format("Team name '%s' did not exist.", name);
+			throw new NameNotRecognisedException(errorMessage);
+		}
+		return teamId;
+	}
+
+	/**
+	 * Get the number of stage classification requests across the portal that
+	 * were served from a stage's cached classification.
+	 * 
+	 * @return The total number of classification cache hits.
+	 * 
+	 */
+	public long getClassificationCacheHits() {
+		long hits = 0;
+		for (Stage stage : stageIndex.values()) {
+			hits += stage.getClassificationHits();
+		}
+		return hits;
+	}
+
+	/**
+	 * Get the number of stage classification requests across the portal that
+	 * had to recompute a stage's classification.
+	 * 
+	 * @return The total number of classification cache misses.
+	 * 
+	 */
+	public long getClassificationCacheMisses() {
+		long misses = 0;
+		for (Stage stage : stageIndex.values()) {
+			misses += stage.getClassificationMisses();
+		}
+		return misses;
+	}
+
+	/**
+	 * Set the pool that every race uses to compute its stages' classifications
+	 * in parallel.
+	 * 
+	 * @param pool The ForkJoinPool to use, or null to compute the stages of a
+	 *             race one after another.
+	 * 
+	 */
+	public void setClassificationPool(ForkJoinPool pool) {
+		classificationPool = pool;
 		for (Race race : races.values()) {
-			if (race.getName().equals(name)) {
-				usedName = true;
-			}
+			race.setClassificationPool(pool);
+		}
+	}
+
+	/**
+	 * Append every later change to the portal to a journal, after it has been
+	 * made and before the method making it returns. Changes made through a
+	 * ConcurrentCyclingPortal are journaled under its locks, so the journal
+	 * holds them in the order they were made, apart from registrations of
+	 * results in the same race, which commute: each rider can only be
+	 * registered once, and deletes are never journaled out of order with them.
+	 * 
+	 * @param journal The journal to append to, or null to stop journaling.
+	 * 
+	 */
+	public void setJournal(MutationJournal journal) {
+		if (journal != null) {
+			journal.advanceTo(journalSequence);
+		}
+		this.journal = journal;
+	}
+
+	/**
+	 * Apply the changes in a journal that came after the portal was last
+	 * loaded, to rebuild the portal as it was when the journal was last
+	 * written. This is done after loading the last snapshot and before
+	 * attaching a journal, as the changes replayed are not journaled again.
+	 * 
+	 * @param filename Location of the journal.
+	 * @return The sequence number of the last change the portal now holds.
+	 * @throws IOException If the journal could not be read, or does not follow
+	 *                     on from the portal.
+	 * 
+	 */
+	public long replayJournal(String filename) throws IOException {
+		if (journal != null) {
+			throw new IllegalStateException("A journal must be replayed before one is attached.");
+		}
+		journalSequence = MutationJournal.replay(filename, this, journalSequence);
+		return journalSequence;
+	}
+
+	/**
+	 * Add a stage and all of its segments to the ID indexes, and register the
+	 * stage's name.
+	 * 
+	 * @param stage The Stage object to index.
+	 * 
+	 */
+	private void indexStage(Stage stage) {
+		stageIndex.put(stage.getId(), stage);
+		names.addStage(stage);
+		for (Segment segment : stage.getSegments()) {
+			segmentIndex.put(segment.getId(), segment);
+		}
+	}
+
+	/**
+	 * Remove a stage and all of its segments from the ID indexes, and unregister
+	 * the stage's name.
+	 * 
+	 * @param stage The Stage object to remove from the indexes.
+	 * 
+	 */
+	private void unindexStage(Stage stage) {
+		stageIndex.remove(stage.getId());
+		names.removeStage(stage);
+		for (Segment segment : stage.getSegments()) {
+			segmentIndex.remove(segment.getId());
+		}
+	}
+
+	/**
+	 * Rebuild the stage, segment and rider indexes and the name registry from
+	 * the races and teams.
+	 * 
+	 */
+	private void rebuildIndexes() {
+		stageIndex = new IntMap<Stage>();
+		segmentIndex = new IntMap<Segment>();
+		riderIndex = new IntMap<Rider>();
+		names = new NameRegistry();
+		for (Race race : races.values()) {
+			race.setClassificationPool(classificationPool);
+			names.addRace(race);
 			for (Stage stage : race.getStages()) {
-				if (stage.getName().equals(name)) {
-					usedName = true;
-				}
+				indexStage(stage);
 			}
 		}
 		for (Team team : teams.values()) {
-			if (team.getName().equals(name)) {
-				usedName = true;
-			}
+			names.addTeam(team);
 			for (Rider rider : team.getRiders()) {
-				if (rider.getName().equals(name)) {
-					usedName = true;
-				}
+				riderIndex.put(rider.getId(), rider);
+				names.addRider(rider);
 			}
 		}
+	}
+
+	/**
+	 * Remove a race, its stages and their segments from the portal.
+	 * 
+	 * @param race The Race object to remove.
+	 * 
+	 */
+	private void removeRace(Race race) {
+		for (Stage stage : race.getStages()) {
+			race.removeStage(stage);
+			unindexStage(stage);
+		}
+		races.remove(race.getId());
+		names.removeRace(race);
+		changedRaces.remove(race.getId());
+	}
+
+	/**
+	 * Record that a race has changed since the last snapshot. Changes are
+	 * recorded after they are made, so that a snapshot which takes a race out of
+	 * the changed races before writing it always holds the change.
+	 * 
+	 * @param raceId The ID of the race that changed.
+	 * 
+	 */
+	private void raceChanged(int raceId) {
+		changedRaces.add(raceId);
+	}
+
+	/**
+	 * Record that a team has changed since the last snapshot.
+	 * 
+	 * @param teamId The ID of the team that changed.
+	 * 
+	 */
+	private void teamChanged(int teamId) {
+		changedTeams.add(teamId);
+	}
+
+	/**
+	 * Record that every race and team has changed, for when the last snapshot
+	 * cannot be relied upon.
+	 * 
+	 */
+	private void allChanged() {
+		for (int raceId : races.keys()) {
+			changedRaces.add(raceId);
+		}
+		for (int teamId : teams.keys()) {
+			changedTeams.add(teamId);
+		}
+	}
 
-		if (usedName) {
+	/**
+	 * Perform checks upon a name to ensure it is unique in the system, it is not empty,
+	 * it is shorter than 30 characters, and it doesn't have any spaces.
+	 * 
+	 * @param name Name to validate.
+	 * @throws IllegalNameException If the name already exists in the system.
+	 * @throws InvalidNameException If the name does not match the formatting required.
+	 * 
+	 */
+	public void validateName(String name) throws IllegalNameException, InvalidNameException {
+		if (names.isUsed(name)) {
 			String errorMessage = String.format("The name '%s' already exists.", name);
 			throw new IllegalNameException(errorMessage);
 		}
@@ -203,22 +459,22 @@ public class CyclingPortal implements CyclingPortalInterface {
 
 	@Override
 	public int[] getRaceIds() {
-		int[] raceIds = new int[races.size()];
-		int i = 0;
-		for (int id : races.keySet()) {
-			raceIds[i] = id;
-			i++;
-		}
-		return raceIds;
+		return races.keys();
 	}
 
 	@Override
 	public int createRace(String name, String description) throws IllegalNameException, InvalidNameException {
 		validateName(name);
 
-		int raceId = nextId++;
+		int raceId = nextId.getAndIncrement();
 		Race newRace = new Race(raceId, name, description);
+		newRace.setClassificationPool(classificationPool);
 		races.put(raceId, newRace);
+		names.addRace(newRace);
+		raceChanged(raceId);
+		if (journal != null) {
+			journal.createdRace(raceId, name, description);
+		}
 		return raceId;
 	}
 
@@ -242,11 +498,10 @@ public class CyclingPortal implements CyclingPortalInterface {
 	@Override
 	public void removeRaceById(int raceId) throws IDNotRecognisedException {
 		Race race = getRace(raceId);
-		
-		for (Stage stage : race.getStages()) {
-			race.removeStage(stage);
+		removeRace(race);
+		if (journal != null) {
+			journal.removedRace(raceId);
 		}
-		races.remove(race.getId());
 	}
 
 	@Override
@@ -269,9 +524,14 @@ public class CyclingPortal implements CyclingPortalInterface {
 		if (length < 5) {
 			throw new InvalidLengthException("The stage was too short (5km minimum).");
 		}
-		int stageId = nextId++;
+		int stageId = nextId.getAndIncrement();
 		Stage stage = new Stage(raceId, stageId, stageName, description, length, startTime, type);
 		race.addStage(stage);
+		indexStage(stage);
+		raceChanged(raceId);
+		if (journal != null) {
+			journal.addedStage(stageId, raceId, stageName, description, length, startTime, type);
+		}
 
 		return stageId;
 	}
@@ -293,6 +553,11 @@ public class CyclingPortal implements CyclingPortalInterface {
 		Stage stage = getStage(stageId);
 		int raceId = stage.getRaceId();
 		races.get(raceId).removeStage(stage);
+		unindexStage(stage);
+		raceChanged(raceId);
+		if (journal != null) {
+			journal.removedStage(stageId);
+		}
 	}
 
 	@Override
@@ -302,9 +567,14 @@ public class CyclingPortal implements CyclingPortalInterface {
 
 		validateSegmentAddition(stageId, location, type, length);
 		Stage stage = getStage(stageId);
-		int segmentId = nextId++;
+		int segmentId = nextId.getAndIncrement();
 		CategorizedClimb climb = new CategorizedClimb(stageId, segmentId, length, location, averageGradient, type);
 		stage.addSegment(climb);
+		segmentIndex.put(segmentId, climb);
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.addedClimb(segmentId, stageId, location, type, averageGradient, length);
+		}
 
 		return segmentId;
 	}
@@ -315,9 +585,14 @@ public class CyclingPortal implements CyclingPortalInterface {
 		
 		validateSegmentAddition(stageId, location, SegmentType.SPRINT, 0d);
 		Stage stage = getStage(stageId);
-		int segmentId = nextId++;
+		int segmentId = nextId.getAndIncrement();
 		IntermediateSprint sprint = new IntermediateSprint(stageId, segmentId, location, SegmentType.SPRINT);
 		stage.addSegment(sprint);
+		segmentIndex.put(segmentId, sprint);
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.addedSprint(segmentId, stageId, location);
+		}
 
 		return segmentId;
 	}
@@ -329,7 +604,11 @@ public class CyclingPortal implements CyclingPortalInterface {
 		Stage stage = getStage(stageId);
 		stage.assertNotWaitingForResults();
 		stage.removeSegment(segment);
-
+		segmentIndex.remove(segmentId);
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.removedSegment(segmentId);
+		}
 	}
 
 	@Override
@@ -337,6 +616,10 @@ public class CyclingPortal implements CyclingPortalInterface {
 		Stage stage = getStage(stageId);
 		stage.assertNotWaitingForResults();
 		stage.setState("waiting for results");
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.concludedStage(stageId);
+		}
 	}
 
 	@Override
@@ -348,27 +631,35 @@ public class CyclingPortal implements CyclingPortalInterface {
 	@Override
 	public int createTeam(String name, String description) throws IllegalNameException, InvalidNameException {
 		validateName(name);
-		int teamId = nextId++;
+		int teamId = nextId.getAndIncrement();
 		Team team = new Team(teamId, name, description);
 		teams.put(teamId, team);
+		names.addTeam(team);
+		teamChanged(teamId);
+		if (journal != null) {
+			journal.createdTeam(teamId, name, description);
+		}
 		return teamId;
 	}
 
 	@Override
 	public void removeTeam(int teamId) throws IDNotRecognisedException {
-		getTeam(teamId);
+		Team team = getTeam(teamId);
+		for (Rider rider : team.getRiders()) {
+			riderIndex.remove(rider.getId());
+			names.removeRider(rider);
+		}
 		teams.remove(teamId);
+		names.removeTeam(team);
+		changedTeams.remove(teamId);
+		if (journal != null) {
+			journal.removedTeam(teamId);
+		}
 	}
 
 	@Override
 	public int[] getTeams() {
-		int[] teamIds = new int[teams.size()];
-		int i = 0;
-		for (Team team : teams.values()) {
-			teamIds[i] = team.getId();
-			i++;
-		}
-		return teamIds;
+		return teams.keys();
 	}
 
 	@Override
@@ -388,9 +679,15 @@ public class CyclingPortal implements CyclingPortalInterface {
 		}
 		Team team = getTeam(teamID);
 		
-		int riderId = nextId++;
+		int riderId = nextId.getAndIncrement();
 		Rider rider = new Rider(riderId, teamID, name, yearOfBirth);
 		team.addRider(rider);
+		riderIndex.put(riderId, rider);
+		names.addRider(rider);
+		teamChanged(teamID);
+		if (journal != null) {
+			journal.createdRider(riderId, teamID, name, yearOfBirth);
+		}
 
 		return riderId;
 	}
@@ -400,6 +697,12 @@ public class CyclingPortal implements CyclingPortalInterface {
 		Rider rider = getRider(riderId);
 		Team team = getTeam(rider.getTeamId());
 		team.removeRider(rider);
+		riderIndex.remove(riderId);
+		names.removeRider(rider);
+		teamChanged(team.getId());
+		if (journal != null) {
+			journal.removedRider(riderId);
+		}
 	}
 
 	@Override
@@ -412,13 +715,178 @@ public class CyclingPortal implements CyclingPortalInterface {
 			String errorMessage = "There were an invalid number of checkpoints.";
 			throw new InvalidCheckpointsException(errorMessage);
 		}
-		if (stage.getResults(riderId).length != 0) {
+		if (stage.hasResults(riderId)) {
 			String errorMessage = "The rider already has results for this stage.";
 			throw new DuplicatedResultException(errorMessage);
 		}
 		stage.assertWaitingForResults();
 		
-		stage.addResults(riderId, checkpoints);
+		long[] nanos = new long[checkpoints.length];
+		for (int i = 0; i < checkpoints.length; i++) {
+			nanos[i] = checkpoints[i].toNanoOfDay();
+		}
+		stage.addResults(riderId, nanos);
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.registeredResults(stageId, riderId, nanos);
+		}
+	}
+
+	/**
+	 * Record the results of many riders in a stage at once. The stage is
+	 * validated once, and either every rider's results are recorded or, if any
+	 * of them is invalid, none are.
+	 * 
+	 * @param stageId     The ID of the stage the results refer to.
+	 * @param riderIds    The IDs of the riders who competed in the stage.
+	 * @param checkpoints The checkpoint times of each rider, in the same order
+	 *                    as the riders.
+	 * @throws IDNotRecognisedException    If the ID does not match to any rider or
+	 *                                     stage in the system.
+	 * @throws DuplicatedResultException   If a rider already has results for the
+	 *                                     stage, or appears more than once.
+	 * @throws InvalidCheckpointsException If the length of a rider's checkpoints
+	 *                                     is not equal to n+2, where n is the
+	 *                                     number of segments in the stage.
+	 * @throws InvalidStageStateException  If the stage is not "waiting for
+	 *                                     results".
+	 * 
+	 */
+	public void registerStageResults(int stageId, int[] riderIds, LocalTime[][] checkpoints)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		long[][] nanos = new long[checkpoints.length][];
+		for (int i = 0; i < checkpoints.length; i++) {
+			nanos[i] = new long[checkpoints[i].length];
+			for (int j = 0; j < checkpoints[i].length; j++) {
+				nanos[i][j] = checkpoints[i][j].toNanoOfDay();
+			}
+		}
+		registerStageResults(stageId, riderIds, nanos);
+	}
+
+	/**
+	 * Record the results of many riders in a stage at once, with the checkpoint
+	 * times given in nanoseconds of the day.
+	 * 
+	 * @param stageId     The ID of the stage the results refer to.
+	 * @param riderIds    The IDs of the riders who competed in the stage.
+	 * @param checkpoints The checkpoint times of each rider in nanoseconds of the
+	 *                    day, in the same order as the riders.
+	 * @throws IDNotRecognisedException    If the ID does not match to any rider or
+	 *                                     stage in the system.
+	 * @throws DuplicatedResultException   If a rider already has results for the
+	 *                                     stage, or appears more than once.
+	 * @throws InvalidCheckpointsException If the length of a rider's checkpoints
+	 *                                     is not equal to n+2, where n is the
+	 *                                     number of segments in the stage.
+	 * @throws InvalidStageStateException  If the stage is not "waiting for
+	 *                                     results".
+	 * 
+	 */
+	public void registerStageResults(int stageId, int[] riderIds, long[][] checkpoints)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		if (riderIds.length != checkpoints.length) {
+			throw new IllegalArgumentException("There must be one set of checkpoints per rider.");
+		}
+		for (int riderId : riderIds) {
+			getRider(riderId);
+		}
+		Stage stage = getStage(stageId);
+		int checkpointCount = stage.getSegments().length+2;
+		for (long[] riderCheckpoints : checkpoints) {
+			if (riderCheckpoints.length != checkpointCount) {
+				String errorMessage = "There were an invalid number of checkpoints.";
+				throw new InvalidCheckpointsException(errorMessage);
+			}
+		}
+		stage.assertWaitingForResults();
+
+		stage.addResults(riderIds, checkpoints);
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.registeredStageResults(stageId, riderIds, checkpoints);
+		}
+	}
+
+	/**
+	 * Record a single checkpoint time of a rider in a stage, as timing systems
+	 * report them during the stage. The rider's result is only ranked once
+	 * every checkpoint time is known.
+	 * 
+	 * @param stageId    The ID of the stage the result refers to.
+	 * @param riderId    The ID of the rider.
+	 * @param checkpoint The index of the checkpoint, where 0 is the start, 1 to n
+	 *                   are the n segments, and n+1 is the finish.
+	 * @param time       The time the rider reached the checkpoint.
+	 * @throws IDNotRecognisedException    If the ID does not match to any rider or
+	 *                                     stage in the system.
+	 * @throws DuplicatedResultException   If the rider already has results for the
+	 *                                     stage, or a time for the checkpoint.
+	 * @throws InvalidCheckpointsException If the checkpoint index is not between 0
+	 *                                     and n+1.
+	 * @throws InvalidStageStateException  If the stage is not "waiting for
+	 *                                     results".
+	 * @return True if the time completed the rider's results.
+	 * 
+	 */
+	public boolean registerRiderCheckpointInStage(int stageId, int riderId, int checkpoint, LocalTime time)
+			throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+			InvalidStageStateException {
+		getRider(riderId);
+		Stage stage = getStage(stageId);
+		if (checkpoint < 0 || checkpoint >= stage.getSegments().length+2) {
+			String errorMessage = String.format("Checkpoint %d did not exist in the stage.", checkpoint);
+			throw new InvalidCheckpointsException(errorMessage);
+		}
+		stage.assertWaitingForResults();
+
+		boolean completed = stage.addCheckpoint(riderId, checkpoint, time.toNanoOfDay());
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.registeredCheckpoint(stageId, riderId, checkpoint, time.toNanoOfDay());
+		}
+		return completed;
+	}
+
+	/**
+	 * Subscribe to the top k riders of a stage. The listener is first sent the
+	 * current top riders, and then only the positions that change as results
+	 * are registered and deleted, on the common fork/join pool rather than on
+	 * the thread that changed the results.
+	 * 
+	 * @param stageId  The ID of the stage to follow.
+	 * @param k        The number of riders to follow.
+	 * @param listener The listener to send the changes to.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in
+	 *                                  the system.
+	 * @return The subscription, which can be cancelled.
+	 * 
+	 */
+	public StageLeaderboard subscribeStageLeaderboard(int stageId, int k, LeaderboardListener listener)
+			throws IDNotRecognisedException {
+		return subscribeStageLeaderboard(stageId, k, listener, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Subscribe to the top k riders of a stage, delivering the changes on an
+	 * executor. Updates for one subscription never run at the same time, even
+	 * on an executor with many threads.
+	 * 
+	 * @param stageId  The ID of the stage to follow.
+	 * @param k        The number of riders to follow.
+	 * @param listener The listener to send the changes to.
+	 * @param executor The executor to deliver the changes on.
+	 * @throws IDNotRecognisedException If the ID does not match to any stage in
+	 *                                  the system.
+	 * @return The subscription, which can be cancelled.
+	 * 
+	 */
+	public StageLeaderboard subscribeStageLeaderboard(int stageId, int k, LeaderboardListener listener,
+			Executor executor) throws IDNotRecognisedException {
+		Stage stage = getStage(stageId);
+		return stage.addLeaderboard(k, listener, executor);
 	}
 
 	@Override
@@ -443,6 +911,10 @@ public class CyclingPortal implements CyclingPortalInterface {
 		Stage stage = getStage(stageId);
 
 		stage.deleteResults(riderId);
+		raceChanged(stage.getRaceId());
+		if (journal != null) {
+			journal.deletedResults(stageId, riderId);
+		}
 	}
 
 	@Override
@@ -471,50 +943,451 @@ public class CyclingPortal implements CyclingPortalInterface {
 
 	@Override
 	public void eraseCyclingPortal() {
-		this.nextId = 0;
+		this.nextId.set(0);
 		this.teams.clear();
 		this.races.clear();
+		this.stageIndex.clear();
+		this.segmentIndex.clear();
+		this.riderIndex.clear();
+		this.names.clear();
+		this.changedRaces.clear();
+		this.changedTeams.clear();
+		if (journal != null) {
+			journal.erased();
+		}
 	}
 
+	/**
+	 * Save the portal as a binary snapshot, written a section at a time through
+	 * a file channel. See PortalSnapshot for the format. The snapshot is written
+	 * to a temporary file and then moved over the old file, as stages loaded
+	 * from the old file may still be reading their results from it.
+	 * 
+	 * @param filename Location of the file to be saved.
+	 * @throws IOException If there is a problem experienced when trying to save
+	 *                     the store contents to the file.
+	 * 
+	 */
 	@Override
 	public void saveCyclingPortal(String filename) throws IOException {
-		FileOutputStream fileOutputStream = new FileOutputStream(filename);
-		BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
+		awaitCheckpoint();
+		// Every change up to this one is already in the portal, so a snapshot
+		// written from here on holds it.
+		long sequence = journal != null ? journal.getLastSequence() : journalSequence;
+		long id = newCheckpointId();
+		changedRaces.clear();
+		changedTeams.clear();
+		try {
+			writeSnapshot(filename,
+					PortalSnapshot.full(this.nextId.get(), sequence, id, this.teams, this.races).capture());
+		} catch (IOException | RuntimeException e) {
+			allChanged();
+			throw e;
+		}
+		checkpointId.set(id);
+	}
 
-		ObjectOutputStream objectOutputStream = new ObjectOutputStream(bufferedOutputStream);
+	/**
+	 * Save the portal as a binary snapshot like saveCyclingPortal, but write it
+	 * on the common fork/join pool rather than on the calling thread.
+	 * 
+	 * @param filename Location of the file to be saved.
+	 * @return A future of the checkpoint's outcome, which completes
+	 *         exceptionally if the snapshot could not be written.
+	 * 
+	 */
+	public CompletableFuture<PortalCheckpoint> checkpointCyclingPortal(String filename) {
+		return checkpointCyclingPortal(filename, ForkJoinPool.commonPool());
+	}
 
-		objectOutputStream.writeObject(this);
-		objectOutputStream.close();
+	/**
+	 * Save the portal as a binary snapshot like saveCyclingPortal, but only
+	 * capture its contents on the calling thread, and write them on an
+	 * executor while the portal carries on changing. The capture encodes the
+	 * teams, races, stages and segments, and takes an image of each stage's
+	 * results which shares the result rows rather than copying them, so it
+	 * takes a fraction of the time of a save. Later saves and checkpoints wait
+	 * for the snapshot to be written first.
+	 * 
+	 * @param filename Location of the file to be saved.
+	 * @param executor The executor to write the snapshot on.
+	 * @return A future of the checkpoint's outcome, which completes
+	 *         exceptionally if the snapshot could not be written.
+	 * 
+	 */
+	public CompletableFuture<PortalCheckpoint> checkpointCyclingPortal(String filename, Executor executor) {
+		awaitCheckpoint();
+		return checkpointCyclingPortal(filename, executor, System.nanoTime());
 	}
 
-	@Override
-	public void loadCyclingPortal(String filename) throws IOException, ClassNotFoundException {
-		FileInputStream fileInputStream = new FileInputStream(filename);
-		BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream);
-		ObjectInputStream objectInputStream = new ObjectInputStream(bufferedInputStream);
-		CyclingPortal loadedCyclingPortal = (CyclingPortal)objectInputStream.readObject();
-		objectInputStream.close();
+	/**
+	 * Capture the portal's contents and write them on an executor. The caller
+	 * must stop the portal from changing during the call, and must already
+	 * have waited for the last checkpoint.
+	 * 
+	 * @param filename   Location of the file to be saved.
+	 * @param executor   The executor to write the snapshot on.
+	 * @param pauseStart The time the portal stopped changing, from
+	 *                   System.nanoTime.
+	 * @return A future of the checkpoint's outcome.
+	 * 
+	 */
+	CompletableFuture<PortalCheckpoint> checkpointCyclingPortal(String filename, Executor executor,
+			long pauseStart) {
+		long sequence = journal != null ? journal.getLastSequence() : journalSequence;
+		long id = newCheckpointId();
+		long previousId = checkpointId.get();
+		changedRaces.clear();
+		changedTeams.clear();
+		PortalSnapshot.Image image;
+		try {
+			image = PortalSnapshot.full(this.nextId.get(), sequence, id, this.teams, this.races).capture();
+		} catch (RuntimeException e) {
+			allChanged();
+			throw e;
+		}
+		// Deltas saved from here on follow on from this checkpoint, unless it
+		// cannot be written.
+		checkpointId.set(id);
+		long pauseNanos = System.nanoTime() - pauseStart;
+
+		CompletableFuture<PortalCheckpoint> future = new CompletableFuture<PortalCheckpoint>();
+		this.pendingCheckpoint = future;
+		try {
+			executor.execute(() -> {
+				long writeStart = System.nanoTime();
+				try {
+					long written = writeSnapshot(filename, image);
+					future.complete(new PortalCheckpoint(written, pauseNanos, System.nanoTime() - writeStart));
+				} catch (Throwable e) {
+					checkpointFailed(image, id, previousId);
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			checkpointFailed(image, id, previousId);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
 
-		this.nextId = loadedCyclingPortal.nextId;
-		this.teams = loadedCyclingPortal.teams;
-		this.races = loadedCyclingPortal.races;
+	/**
+	 * Undo a checkpoint that could not be written: every race and team it held
+	 * is marked changed again, and deltas follow on from the checkpoint before
+	 * it, unless another snapshot has been saved or loaded since.
+	 * 
+	 * @param image      The contents of the checkpoint.
+	 * @param id         The checkpoint's ID.
+	 * @param previousId The ID of the checkpoint before it.
+	 * 
+	 */
+	private void checkpointFailed(PortalSnapshot.Image image, long id, long previousId) {
+		for (int raceId : image.getRaceIds()) {
+			changedRaces.add(raceId);
+		}
+		for (int teamId : image.getTeamIds()) {
+			changedTeams.add(teamId);
+		}
+		checkpointId.compareAndSet(id, previousId);
 	}
 
+	/**
+	 * Wait for the last background checkpoint to be written, or to fail.
+	 * 
+	 */
+	void awaitCheckpoint() {
+		CompletableFuture<PortalCheckpoint> pending = this.pendingCheckpoint;
+		if (pending != null) {
+			pending.handle((checkpoint, e) -> null).join();
+		}
+	}
+
+	/**
+	 * Save only the races and teams changed since the portal's last snapshot,
+	 * whether full or a delta, as a delta snapshot. The time taken depends on
+	 * how much has changed rather than on the size of the portal. Deltas are
+	 * applied to the snapshot they follow with applyCyclingPortalDelta, and
+	 * folded into it with compactCyclingPortal.
+	 * 
+	 * @param filename Location of the file to be saved.
+	 * @throws IOException If there is a problem experienced when trying to save
+	 *                     the changes to the file.
+	 * 
+	 */
+	public void saveCyclingPortalDelta(String filename) throws IOException {
+		awaitCheckpoint();
+		long sequence = journal != null ? journal.getLastSequence() : journalSequence;
+		long id = newCheckpointId();
+		IntMap<Race> deltaRaces = new IntMap<Race>();
+		IntMap<Team> deltaTeams = new IntMap<Team>();
+		// A race or team changed from here on is recorded again, so it is in
+		// the next delta even if this one already holds the change.
+		for (Integer raceId : changedRaces) {
+			changedRaces.remove(raceId);
+			Race race = races.get(raceId);
+			if (race != null) {
+				deltaRaces.put(raceId, race);
+			}
+		}
+		for (Integer teamId : changedTeams) {
+			changedTeams.remove(teamId);
+			Team team = teams.get(teamId);
+			if (team != null) {
+				deltaTeams.put(teamId, team);
+			}
+		}
+		try {
+			writeSnapshot(filename, PortalSnapshot.delta(this.nextId.get(), sequence, id, checkpointId.get(),
+					deltaTeams, deltaRaces, this.teams.keys(), this.races.keys()).capture());
+		} catch (IOException | RuntimeException e) {
+			for (int raceId : deltaRaces.keys()) {
+				raceChanged(raceId);
+			}
+			for (int teamId : deltaTeams.keys()) {
+				teamChanged(teamId);
+			}
+			throw e;
+		}
+		checkpointId.set(id);
+	}
+
+	/**
+	 * Get a new, non-zero checkpoint ID. A portal that has never been saved or
+	 * loaded from a snapshot has the checkpoint ID zero.
+	 * 
+	 * @return The checkpoint ID.
+	 * 
+	 */
+	private static long newCheckpointId() {
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * Write a snapshot to a temporary file and move it over the given file.
+	 * 
+	 * @param filename Location of the file to be saved.
+	 * @param snapshot The captured snapshot to write.
+	 * @return The number of bytes written.
+	 * @throws IOException If the snapshot could not be written.
+	 * 
+	 */
+	private static long writeSnapshot(String filename, PortalSnapshot.Image snapshot) throws IOException {
+		Path target = Paths.get(filename).toAbsolutePath();
+		Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+		long written;
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				written = snapshot.write(channel);
+			}
+			try {
+				Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		return written;
+	}
+
+	/**
+	 * Memory-map a snapshot file and read it. The mapping stays valid after the
+	 * file is closed, and after it is replaced.
+	 * 
+	 * @param channel The file's channel.
+	 * @return The snapshot, or null if the file is not a snapshot.
+	 * @throws IOException If the file could not be read.
+	 * 
+	 */
+	private static PortalSnapshot mapSnapshot(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("The file was too large to load.");
+		}
+		ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if (!PortalSnapshot.isSnapshot(contents)) {
+			return null;
+		}
+		return PortalSnapshot.read(contents);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		HashMap<Integer, Race> savedRaces = new HashMap<Integer, Race>();
+		for (int raceId : races.keys()) {
+			savedRaces.put(raceId, races.get(raceId));
+		}
+		HashMap<Integer, Team> savedTeams = new HashMap<Integer, Team>();
+		for (int teamId : teams.keys()) {
+			savedTeams.put(teamId, teams.get(teamId));
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("nextId", nextId.get());
+		fields.put("races", savedRaces);
+		fields.put("teams", savedTeams);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		nextId = new AtomicInteger(fields.get("nextId", 0));
+		races = new IntMap<Race>();
+		for (Map.Entry<Integer, Race> entry : ((HashMap<Integer, Race>) fields.get("races", null)).entrySet()) {
+			races.put(entry.getKey(), entry.getValue());
+		}
+		teams = new IntMap<Team>();
+		for (Map.Entry<Integer, Team> entry : ((HashMap<Integer, Team>) fields.get("teams", null)).entrySet()) {
+			teams.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Load a portal from a binary snapshot, or from a file saved with Java
+	 * serialization before the binary format was introduced. A snapshot is
+	 * memory-mapped rather than read, and only its teams, riders, races, stages
+	 * and segments are read straight away; each stage reads its results from
+	 * the mapping the first time they are needed.
+	 * 
+	 * @param filename Location of the file to be loaded.
+	 * @throws IOException            If there is a problem experienced when trying
+	 *                                to load the store contents from the file,
+	 *                                or the file is a delta snapshot.
+	 * @throws ClassNotFoundException If required class files cannot be found when
+	 *                                loading.
+	 * 
+	 */
 	@Override
-	public void removeRaceByName(String name) throws NameNotRecognisedException {
-		boolean found = false;
-		for (Race race : races.values()) {
-			if (race.getName().equals(name)) {
-				races.remove(race.getId());
-				found = true;
-				break;
+	public void loadCyclingPortal(String filename) throws IOException, ClassNotFoundException {
+		if (journal != null) {
+			throw new IllegalStateException("A portal cannot be loaded while a journal is attached.");
+		}
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			PortalSnapshot snapshot = mapSnapshot(channel);
+			if (snapshot != null) {
+				if (snapshot.isDelta()) {
+					throw new IOException("The file was a delta snapshot, which must be applied to a portal.");
+				}
+				this.nextId.set(snapshot.getNextId());
+				this.journalSequence = snapshot.getJournalSequence();
+				this.checkpointId.set(snapshot.getCheckpointId());
+				this.teams = snapshot.getTeams();
+				this.races = snapshot.getRaces();
+				this.changedRaces.clear();
+				this.changedTeams.clear();
+			} else {
+				ObjectInputStream objectInputStream = new ObjectInputStream(
+						new BufferedInputStream(Channels.newInputStream(channel)));
+				CyclingPortal loadedCyclingPortal = (CyclingPortal)objectInputStream.readObject();
+				objectInputStream.close();
+
+				this.nextId.set(loadedCyclingPortal.nextId.get());
+				this.journalSequence = 0;
+				this.checkpointId.set(0);
+				this.teams = loadedCyclingPortal.teams;
+				this.races = loadedCyclingPortal.races;
+				this.changedRaces.clear();
+				this.changedTeams.clear();
+				allChanged();
 			}
 		}
+		rebuildIndexes();
+	}
 
-		if (!found) {
-			String errorMessage = String.format("Race name '%s' did not exist.", name);
-			throw new NameNotRecognisedException(errorMessage);
-		} else {
+	/**
+	 * Apply a delta snapshot saved by saveCyclingPortalDelta to the portal,
+	 * which must hold the snapshot the delta follows. The delta's races and
+	 * teams replace the portal's, and races and teams removed before the delta
+	 * was saved are removed. Like loadCyclingPortal, a delta must be applied
+	 * before a journal is attached.
+	 * 
+	 * @param filename Location of the delta.
+	 * @throws IOException If the delta could not be read, or does not follow on
+	 *                     from the portal's last snapshot.
+	 * 
+	 */
+	public void applyCyclingPortalDelta(String filename) throws IOException {
+		if (journal != null) {
+			throw new IllegalStateException("A delta cannot be applied while a journal is attached.");
+		}
+		PortalSnapshot delta;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			delta = mapSnapshot(channel);
+		}
+		if (delta == null || !delta.isDelta()) {
+			throw new IOException("The file was not a delta snapshot.");
+		}
+		if (delta.getParentId() != checkpointId.get()) {
+			throw new IOException("The delta does not follow on from the portal's last snapshot.");
+		}
+		IntMap<Race> newRaces = new IntMap<Race>();
+		for (int raceId : delta.getRaceIds()) {
+			Race race = delta.getRaces().get(raceId);
+			if (race == null) {
+				race = races.get(raceId);
+			}
+			if (race == null) {
+				throw new IOException(String.format("Race %d in the delta was not in the portal.", raceId));
+			}
+			newRaces.put(raceId, race);
+		}
+		IntMap<Team> newTeams = new IntMap<Team>();
+		for (int teamId : delta.getTeamIds()) {
+			Team team = delta.getTeams().get(teamId);
+			if (team == null) {
+				team = teams.get(teamId);
+			}
+			if (team == null) {
+				throw new IOException(String.format("Team %d in the delta was not in the portal.", teamId));
+			}
+			newTeams.put(teamId, team);
+		}
+		this.nextId.set(delta.getNextId());
+		this.journalSequence = delta.getJournalSequence();
+		this.checkpointId.set(delta.getCheckpointId());
+		this.races = newRaces;
+		this.teams = newTeams;
+		this.changedRaces.clear();
+		this.changedTeams.clear();
+		rebuildIndexes();
+	}
+
+	/**
+	 * Fold a chain of delta snapshots into the full snapshot they follow, so
+	 * that the portal can be loaded from the one file. The compacted snapshot
+	 * keeps the checkpoint ID of the last delta, so later deltas saved by the
+	 * same portal still follow on from it. Results that were not changed by a
+	 * delta are copied across without being read.
+	 * 
+	 * @param base   Location of the full snapshot, which is replaced.
+	 * @param deltas Locations of the deltas, in the order they were saved.
+	 * @throws IOException            If a file could not be read or written, or
+	 *                                the deltas do not follow on from each other.
+	 * @throws ClassNotFoundException If the base was saved with Java
+	 *                                serialization and required class files
+	 *                                cannot be found.
+	 * 
+	 */
+	public static void compactCyclingPortal(String base, String... deltas) throws IOException, ClassNotFoundException {
+		CyclingPortal portal = new CyclingPortal();
+		portal.loadCyclingPortal(base);
+		for (String delta : deltas) {
+			portal.applyCyclingPortalDelta(delta);
+		}
+		writeSnapshot(base, PortalSnapshot.full(portal.nextId.get(), portal.journalSequence,
+				portal.checkpointId.get(), portal.teams, portal.races).capture());
+	}
+
+	@Override
+	public void removeRaceByName(String name) throws NameNotRecognisedException {
+		int raceId = getRaceIdByName(name);
+		removeRace(races.get(raceId));
+		if (journal != null) {
+			journal.removedRace(raceId);
 		}
 	}
 
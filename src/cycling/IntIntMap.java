@@ -0,0 +1,140 @@
+package cycling;
+
+/**
+ * Map from primitive int keys to primitive int values, using open addressing
+ * with linear probing. Neither keys nor values are boxed. Unlike IntMap, the
+ * entries are unordered.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+class IntIntMap {
+
+	private static final int MINIMUM_CAPACITY = 16;
+
+	private int[] keys;
+	// Values are stored plus one so that 0 can mark an empty slot.
+	private int[] values;
+	private int size;
+
+	public IntIntMap() {
+		this.keys = new int[MINIMUM_CAPACITY];
+		this.values = new int[MINIMUM_CAPACITY];
+	}
+
+	/**
+	 * Get the number of entries in the map.
+	 *
+	 * @return The number of entries.
+	 *
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Get the value mapped to a key.
+	 *
+	 * @param key The key to look up.
+	 * @return The value for the key, or -1 if the key is not in the map.
+	 *
+	 */
+	public int get(int key) {
+		return this.values[findSlot(key)] - 1;
+	}
+
+	/**
+	 * Map a key to a non-negative value.
+	 *
+	 * @param key The key to map.
+	 * @param value The value to store, which must not be negative.
+	 *
+	 */
+	public void put(int key, int value) {
+		assert value >= 0;
+		int slot = findSlot(key);
+		if (this.values[slot] == 0) {
+			if ((this.size + 1) * 2 > this.keys.length) {
+				rehash(this.keys.length * 2);
+				slot = findSlot(key);
+			}
+			this.keys[slot] = key;
+			this.size++;
+		}
+		this.values[slot] = value + 1;
+	}
+
+	/**
+	 * Remove a key from the map.
+	 *
+	 * @param key The key to remove.
+	 * @return The value that was mapped to the key, or -1 if there was none.
+	 *
+	 */
+	public int remove(int key) {
+		int slot = findSlot(key);
+		int previous = this.values[slot] - 1;
+		if (previous < 0) {
+			return -1;
+		}
+		this.size--;
+		// Shift back later entries in the probe sequence to fill the gap.
+		int mask = this.keys.length - 1;
+		int gap = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (this.values[next] == 0) {
+				break;
+			}
+			int home = hash(this.keys[next]) & mask;
+			boolean reachable = (next > gap) ? (home > gap && home <= next) : (home > gap || home <= next);
+			if (!reachable) {
+				this.keys[gap] = this.keys[next];
+				this.values[gap] = this.values[next];
+				gap = next;
+			}
+		}
+		this.values[gap] = 0;
+		return previous;
+	}
+
+	/**
+	 * Remove every entry from the map.
+	 *
+	 */
+	public void clear() {
+		this.keys = new int[MINIMUM_CAPACITY];
+		this.values = new int[MINIMUM_CAPACITY];
+		this.size = 0;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int findSlot(int key) {
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.values[slot] != 0 && this.keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != 0) {
+				int slot = findSlot(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.values[slot] = oldValues[i];
+			}
+		}
+	}
+}
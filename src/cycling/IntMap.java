@@ -0,0 +1,301 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Insertion ordered map from primitive int keys to objects.
+ * <p>
+ * Entries are stored densely in insertion order, and an open-addressing table
+ * with linear probing maps each key to its entry. Keys are never boxed, and
+ * iterating the map visits entries in the order they were first inserted, the
+ * same as a LinkedHashMap. Replacing the value of an existing key keeps its
+ * position. Removed entries leave a gap which is reclaimed the next time the
+ * entry arrays fill up.
+ *
+ * @param <V> The type of the values in the map.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public class IntMap<V> implements Serializable {
+
+	private static final Object REMOVED = new Object();
+	private static final int MINIMUM_CAPACITY = 8;
+
+	// Entries in insertion order, removed entries hold REMOVED as their value.
+	private transient int[] keys;
+	private transient Object[] values;
+	// Open-addressing table holding entry index + 1, or 0 for an empty slot.
+	private transient int[] table;
+	private transient int size;
+	private transient int end;
+
+	public IntMap() {
+		allocate(MINIMUM_CAPACITY);
+	}
+
+	/**
+	 * Get the number of entries in the map.
+	 *
+	 * @return The number of entries.
+	 *
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Check if the map has no entries.
+	 *
+	 * @return True if the map is empty.
+	 *
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Check if the map contains a key.
+	 *
+	 * @param key The key to look for.
+	 * @return True if the key is in the map.
+	 *
+	 */
+	public boolean containsKey(int key) {
+		return this.table[findSlot(key)] != 0;
+	}
+
+	/**
+	 * Get the value mapped to a key.
+	 *
+	 * @param key The key to look up.
+	 * @return The value for the key, or null if the key is not in the map.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int entry = this.table[findSlot(key)] - 1;
+		return entry < 0 ? null : (V) this.values[entry];
+	}
+
+	/**
+	 * Map a key to a value. A new key is added after every existing entry, while
+	 * an existing key keeps its position.
+	 *
+	 * @param key The key to map.
+	 * @param value The value to store.
+	 * @return The previous value for the key, or null if there was none.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		int slot = findSlot(key);
+		int entry = this.table[slot] - 1;
+		if (entry >= 0) {
+			V previous = (V) this.values[entry];
+			this.values[entry] = value;
+			return previous;
+		}
+		if (this.end == this.keys.length) {
+			// Compact in place when at least half the entries were removed,
+			// otherwise double the capacity.
+			int capacity = this.size < this.end / 2 ? this.keys.length : this.keys.length * 2;
+			resize(capacity);
+			slot = findSlot(key);
+		}
+		this.keys[this.end] = key;
+		this.values[this.end] = value;
+		this.end++;
+		this.size++;
+		this.table[slot] = this.end;
+		return null;
+	}
+
+	/**
+	 * Remove a key from the map. The order of the remaining entries is unchanged.
+	 *
+	 * @param key The key to remove.
+	 * @return The value that was mapped to the key, or null if there was none.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int slot = findSlot(key);
+		int entry = this.table[slot] - 1;
+		if (entry < 0) {
+			return null;
+		}
+		V previous = (V) this.values[entry];
+		this.values[entry] = REMOVED;
+		this.size--;
+		deleteSlot(slot);
+		return previous;
+	}
+
+	/**
+	 * Remove every entry from the map.
+	 *
+	 */
+	public void clear() {
+		allocate(MINIMUM_CAPACITY);
+	}
+
+	/**
+	 * Get the keys of the map in insertion order.
+	 *
+	 * @return An int array of the keys.
+	 *
+	 */
+	public int[] keys() {
+		int[] result = new int[this.size];
+		int i = 0;
+		for (int entry = 0; entry < this.end; entry++) {
+			if (this.values[entry] != REMOVED) {
+				result[i] = this.keys[entry];
+				i++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the values of the map in insertion order.
+	 *
+	 * @return A list of the values.
+	 *
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<V> values() {
+		ArrayList<V> result = new ArrayList<V>(this.size);
+		for (int entry = 0; entry < this.end; entry++) {
+			if (this.values[entry] != REMOVED) {
+				result.add((V) this.values[entry]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Spread the bits of a key so that sequential IDs do not cluster in the table.
+	 *
+	 * @param key The key to hash.
+	 * @return The hash of the key.
+	 *
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Find the table slot holding a key, or the empty slot where it would be
+	 * inserted.
+	 *
+	 * @param key The key to find.
+	 * @return The index of the slot in the table.
+	 *
+	 */
+	private int findSlot(int key) {
+		int mask = this.table.length - 1;
+		int slot = hash(key) & mask;
+		while (this.table[slot] != 0 && this.keys[this.table[slot] - 1] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Empty a table slot, shifting back any later entries in the same probe
+	 * sequence so that lookups never stop early at the gap.
+	 *
+	 * @param slot The index of the slot to empty.
+	 *
+	 */
+	private void deleteSlot(int slot) {
+		int mask = this.table.length - 1;
+		int gap = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (this.table[next] == 0) {
+				break;
+			}
+			int home = hash(this.keys[this.table[next] - 1]) & mask;
+			// Move the entry into the gap unless its home slot lies cyclically
+			// after the gap and at or before its current slot.
+			boolean reachable = (next > gap) ? (home > gap && home <= next) : (home > gap || home <= next);
+			if (!reachable) {
+				this.table[gap] = this.table[next];
+				gap = next;
+			}
+		}
+		this.table[gap] = 0;
+	}
+
+	/**
+	 * Replace the storage with empty arrays of the given capacity.
+	 *
+	 * @param capacity The number of entries the arrays can hold.
+	 *
+	 */
+	private void allocate(int capacity) {
+		this.keys = new int[capacity];
+		this.values = new Object[capacity];
+		this.table = new int[capacity * 2];
+		this.size = 0;
+		this.end = 0;
+	}
+
+	/**
+	 * Move the live entries, in order, into arrays of the given capacity.
+	 *
+	 * @param capacity The number of entries the new arrays can hold.
+	 *
+	 */
+	private void resize(int capacity) {
+		int[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		int oldEnd = this.end;
+		allocate(capacity);
+		for (int entry = 0; entry < oldEnd; entry++) {
+			if (oldValues[entry] != REMOVED) {
+				this.keys[this.end] = oldKeys[entry];
+				this.values[this.end] = oldValues[entry];
+				this.end++;
+				this.table[findSlot(oldKeys[entry])] = this.end;
+			}
+		}
+		this.size = this.end;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(this.size);
+		for (int entry = 0; entry < this.end; entry++) {
+			if (this.values[entry] != REMOVED) {
+				out.writeInt(this.keys[entry]);
+				out.writeObject(this.values[entry]);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int count = in.readInt();
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity < count) {
+			capacity *= 2;
+		}
+		allocate(capacity);
+		for (int i = 0; i < count; i++) {
+			int key = in.readInt();
+			put(key, (V) in.readObject());
+		}
+	}
+}
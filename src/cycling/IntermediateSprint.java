@@ -8,6 +8,8 @@ package cycling;
  *
  */
 public class IntermediateSprint extends Segment {
+    private static final long serialVersionUID = 270424958018128532L;
+
     public IntermediateSprint(int stageId, int segmentId, double location, SegmentType type) {
         super(stageId, segmentId, location, type);
     }
@@ -0,0 +1,22 @@
+package cycling;
+
+/**
+ * Listener for changes to the top riders of a stage, registered with
+ * subscribeStageLeaderboard. Updates for one subscription are delivered one at
+ * a time and in order, on the subscription's executor rather than on the
+ * thread that registered the results.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public interface LeaderboardListener {
+
+	/**
+	 * Called when the top riders of a stage have changed.
+	 *
+	 * @param update The positions that changed since the previous update.
+	 *
+	 */
+	void leaderboardChanged(LeaderboardUpdate update);
+}
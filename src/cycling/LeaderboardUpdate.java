@@ -0,0 +1,83 @@
+package cycling;
+
+import java.time.LocalTime;
+
+/**
+ * The changes to a stage's leaderboard since the previous update delivered to
+ * a listener. Only the positions whose rider or adjusted elapsed time changed
+ * are included; positions at or beyond the new size have been vacated.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public final class LeaderboardUpdate {
+
+	private final int stageId;
+	private final int size;
+	private final int[] positions;
+	private final int[] riderIds;
+	private final LocalTime[] adjustedElapsedTimes;
+
+	LeaderboardUpdate(int stageId, int size, int[] positions, int[] riderIds, LocalTime[] adjustedElapsedTimes) {
+		this.stageId = stageId;
+		this.size = size;
+		this.positions = positions;
+		this.riderIds = riderIds;
+		this.adjustedElapsedTimes = adjustedElapsedTimes;
+	}
+
+	/**
+	 * Get the ID of the stage.
+	 *
+	 * @return The stage's ID.
+	 *
+	 */
+	public int getStageId() {
+		return this.stageId;
+	}
+
+	/**
+	 * Get the number of riders now on the leaderboard, which is at most the
+	 * number of riders subscribed to.
+	 *
+	 * @return The leaderboard's size.
+	 *
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Get the positions that changed, in ascending order, where 0 is the
+	 * leader.
+	 *
+	 * @return An int array of the changed positions.
+	 *
+	 */
+	public int[] getPositions() {
+		return this.positions.clone();
+	}
+
+	/**
+	 * Get the rider now at each changed position.
+	 *
+	 * @return An int array of rider IDs in the same order as the positions, with
+	 *         -1 for a vacated position.
+	 *
+	 */
+	public int[] getRiderIds() {
+		return this.riderIds.clone();
+	}
+
+	/**
+	 * Get the adjusted elapsed time now at each changed position.
+	 *
+	 * @return A LocalTime array in the same order as the positions, with null
+	 *         for a vacated position.
+	 *
+	 */
+	public LocalTime[] getAdjustedElapsedTimes() {
+		return this.adjustedElapsedTimes.clone();
+	}
+}
@@ -0,0 +1,719 @@
+package cycling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MutationJournal is an append-only log of the changes made to a CyclingPortal,
+ * so that a portal can be rebuilt from its last snapshot and the changes made
+ * since, without saving the whole portal after every change.
+ * <p>
+ * The journal starts with a magic number and format version, followed by one
+ * record per change. Each record is its length and CRC-32C checksum as fixed
+ * four byte ints, then the change's sequence number, an operation code and the
+ * operation's arguments, encoded as in PortalSnapshot. Sequence numbers rise by
+ * one per change and carry on across restarts, and a snapshot records the last
+ * one it includes, so replaying a journal onto a snapshot skips the changes it
+ * already holds. A record cut short or corrupted by a crash ends the journal.
+ * <p>
+ * Changes are committed in groups. A thread appending a change adds its record
+ * to a shared buffer and waits for it to be written; the first waiting thread
+ * writes the whole buffer with a single write, and a single sync when the
+ * policy asks for one, while the records of other threads build up behind it
+ * for the next group. So the more threads are registering results at once, the
+ * more changes each write and sync covers.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public final class MutationJournal implements Closeable {
+
+	/**
+	 * When the journal forces its writes to the storage device.
+	 */
+	public enum SyncPolicy {
+		/** Sync every group before its changes return, so none is ever lost. */
+		ALWAYS,
+		/**
+		 * Sync a group when the last sync was longer ago than the sync interval,
+		 * so that at most the changes of one interval are lost if the machine
+		 * fails, and none if only the process does.
+		 */
+		PERIODIC,
+		/** Leave syncing to the operating system. */
+		NEVER
+	}
+
+	static final int MAGIC = 0x43594a4c; // "CYJL"
+	static final int VERSION = 1;
+
+	static final int CREATE_RACE = 1;
+	static final int REMOVE_RACE = 2;
+	static final int ADD_STAGE = 3;
+	static final int REMOVE_STAGE = 4;
+	static final int ADD_CLIMB = 5;
+	static final int ADD_SPRINT = 6;
+	static final int REMOVE_SEGMENT = 7;
+	static final int CONCLUDE_STAGE = 8;
+	static final int CREATE_TEAM = 9;
+	static final int REMOVE_TEAM = 10;
+	static final int CREATE_RIDER = 11;
+	static final int REMOVE_RIDER = 12;
+	static final int REGISTER_RESULTS = 13;
+	static final int REGISTER_STAGE_RESULTS = 14;
+	static final int REGISTER_CHECKPOINT = 15;
+	static final int DELETE_RESULTS = 16;
+	static final int ERASE = 17;
+
+	// The header's size: the magic number and a one byte version varint.
+	private static final int HEADER_SIZE = 5;
+	// A record's length and checksum.
+	private static final int FRAME_SIZE = 8;
+	// The coarsest unit checkpoint times are written in, one second, as in
+	// Stage.writeResults.
+	private static final long COARSEST_TIME_UNIT = 1000000000L;
+
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final long syncIntervalNanos;
+
+	// Guards everything below. Records are added to pending, which the thread
+	// writing a group swaps for spare, so that appends carry on meanwhile.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition written = lock.newCondition();
+	private final SnapshotWriter record = new SnapshotWriter();
+	private SnapshotWriter pending = new SnapshotWriter();
+	private SnapshotWriter spare = new SnapshotWriter();
+	private long lastSequence;
+	private long writtenSequence;
+	private boolean writing;
+	private IOException failure;
+	private boolean closed;
+	private long lastSync = System.nanoTime();
+	private long groups;
+	private long syncs;
+
+	private MutationJournal(FileChannel channel, SyncPolicy policy, long syncIntervalMillis, long lastSequence) {
+		this.channel = channel;
+		this.policy = policy;
+		this.syncIntervalNanos = syncIntervalMillis * 1000000L;
+		this.lastSequence = lastSequence;
+		this.writtenSequence = lastSequence;
+	}
+
+	/**
+	 * Open a journal for appending, creating it if it does not exist. A record
+	 * left incomplete by a crash is cut off, so new records follow the last
+	 * complete one.
+	 *
+	 * @param filename           Location of the journal.
+	 * @param policy             When to sync the journal to the storage device.
+	 * @param syncIntervalMillis The longest time between syncs, for the
+	 *                           PERIODIC policy.
+	 * @return The open journal.
+	 * @throws IOException If the journal could not be opened, or is not a
+	 *                     journal.
+	 *
+	 */
+	public static MutationJournal open(String filename, SyncPolicy policy, long syncIntervalMillis)
+			throws IOException {
+		if (syncIntervalMillis < 0) {
+			throw new IllegalArgumentException("The sync interval was negative.");
+		}
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long lastSequence = 0;
+			if (channel.size() == 0) {
+				SnapshotWriter header = new SnapshotWriter();
+				header.writeFixedInt(MAGIC);
+				header.writeVarInt(VERSION);
+				header.writeTo(channel);
+				channel.force(true);
+			} else {
+				ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				SnapshotReader in = readHeader(contents);
+				int end = HEADER_SIZE;
+				SnapshotReader entry;
+				while ((entry = nextRecord(in)) != null) {
+					lastSequence = entry.readVarLong();
+					end = in.position();
+				}
+				channel.truncate(end);
+				channel.position(end);
+			}
+			return new MutationJournal(channel, policy, syncIntervalMillis, lastSequence);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the sequence number of the last change added to the journal.
+	 *
+	 * @return The last sequence number, or 0 if the journal is empty.
+	 *
+	 */
+	public long getLastSequence() {
+		lock.lock();
+		try {
+			return lastSequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of groups of records written to the file.
+	 *
+	 * @return The number of writes.
+	 *
+	 */
+	public long getGroups() {
+		lock.lock();
+		try {
+			return groups;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of times the file was synced to the storage device.
+	 *
+	 * @return The number of syncs.
+	 *
+	 */
+	public long getSyncs() {
+		lock.lock();
+		try {
+			return syncs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Make sure the next change is numbered after a sequence number, such as
+	 * that of a snapshot loaded together with an older or emptied journal.
+	 *
+	 * @param sequence The sequence number to follow.
+	 *
+	 */
+	void advanceTo(long sequence) {
+		lock.lock();
+		try {
+			lastSequence = Math.max(lastSequence, sequence);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Append a change to the journal and wait until it has been written, and
+	 * synced if the policy asks for it.
+	 *
+	 * @param change The operation code and arguments of the change.
+	 * @return The change's sequence number.
+	 * @throws UncheckedIOException If the journal could not be written, in
+	 *                              which case every later change fails too.
+	 *
+	 */
+	private long append(SnapshotWriter change) {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("The journal was closed.");
+			}
+			checkFailure();
+			long sequence = ++lastSequence;
+			record.clear();
+			record.writeVarLong(sequence);
+			record.writeBytes(change);
+			pending.writeFixedInt(record.size());
+			pending.writeFixedInt(record.checksum());
+			pending.writeBytes(record);
+			while (writtenSequence < sequence) {
+				checkFailure();
+				if (writing) {
+					written.awaitUninterruptibly();
+				} else {
+					writeGroup();
+				}
+			}
+			return sequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new UncheckedIOException("The journal could not be written.", failure);
+		}
+	}
+
+	/**
+	 * Write every pending record as one group. The caller must hold the lock,
+	 * which is released while writing.
+	 *
+	 */
+	private void writeGroup() {
+		writing = true;
+		SnapshotWriter group = pending;
+		pending = spare;
+		long groupSequence = lastSequence;
+		long now = System.nanoTime();
+		boolean sync = policy == SyncPolicy.ALWAYS
+				|| (policy == SyncPolicy.PERIODIC && now - lastSync >= syncIntervalNanos);
+		IOException error = null;
+		lock.unlock();
+		try {
+			group.writeTo(channel);
+			if (sync) {
+				channel.force(false);
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			lock.lock();
+		}
+		group.clear();
+		spare = group;
+		writing = false;
+		groups++;
+		if (error != null) {
+			failure = error;
+		} else {
+			writtenSequence = groupSequence;
+			if (sync) {
+				syncs++;
+				lastSync = now;
+			}
+		}
+		written.signalAll();
+	}
+
+	/**
+	 * Sync any changes not yet synced and close the journal.
+	 *
+	 * @throws IOException If the journal could not be synced or closed.
+	 *
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			while (writing) {
+				written.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (failure == null) {
+				channel.force(false);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	void createdRace(int raceId, String name, String description) {
+		SnapshotWriter change = change(CREATE_RACE);
+		change.writeVarInt(raceId);
+		change.writeString(name);
+		change.writeString(description);
+		append(change);
+	}
+
+	void removedRace(int raceId) {
+		SnapshotWriter change = change(REMOVE_RACE);
+		change.writeVarInt(raceId);
+		append(change);
+	}
+
+	void addedStage(int stageId, int raceId, String name, String description, double length,
+			LocalDateTime startTime, StageType type) {
+		SnapshotWriter change = change(ADD_STAGE);
+		change.writeVarInt(stageId);
+		change.writeVarInt(raceId);
+		change.writeString(name);
+		change.writeString(description);
+		change.writeDouble(length);
+		change.writeDateTime(startTime);
+		change.writeVarInt(type.ordinal());
+		append(change);
+	}
+
+	void removedStage(int stageId) {
+		SnapshotWriter change = change(REMOVE_STAGE);
+		change.writeVarInt(stageId);
+		append(change);
+	}
+
+	void addedClimb(int segmentId, int stageId, double location, SegmentType type, double averageGradient,
+			double length) {
+		SnapshotWriter change = change(ADD_CLIMB);
+		change.writeVarInt(segmentId);
+		change.writeVarInt(stageId);
+		change.writeDouble(location);
+		change.writeVarInt(type.ordinal());
+		change.writeDouble(averageGradient);
+		change.writeDouble(length);
+		append(change);
+	}
+
+	void addedSprint(int segmentId, int stageId, double location) {
+		SnapshotWriter change = change(ADD_SPRINT);
+		change.writeVarInt(segmentId);
+		change.writeVarInt(stageId);
+		change.writeDouble(location);
+		append(change);
+	}
+
+	void removedSegment(int segmentId) {
+		SnapshotWriter change = change(REMOVE_SEGMENT);
+		change.writeVarInt(segmentId);
+		append(change);
+	}
+
+	void concludedStage(int stageId) {
+		SnapshotWriter change = change(CONCLUDE_STAGE);
+		change.writeVarInt(stageId);
+		append(change);
+	}
+
+	void createdTeam(int teamId, String name, String description) {
+		SnapshotWriter change = change(CREATE_TEAM);
+		change.writeVarInt(teamId);
+		change.writeString(name);
+		change.writeString(description);
+		append(change);
+	}
+
+	void removedTeam(int teamId) {
+		SnapshotWriter change = change(REMOVE_TEAM);
+		change.writeVarInt(teamId);
+		append(change);
+	}
+
+	void createdRider(int riderId, int teamId, String name, int yearOfBirth) {
+		SnapshotWriter change = change(CREATE_RIDER);
+		change.writeVarInt(riderId);
+		change.writeVarInt(teamId);
+		change.writeString(name);
+		change.writeSignedVarLong(yearOfBirth);
+		append(change);
+	}
+
+	void removedRider(int riderId) {
+		SnapshotWriter change = change(REMOVE_RIDER);
+		change.writeVarInt(riderId);
+		append(change);
+	}
+
+	void registeredResults(int stageId, int riderId, long[] checkpoints) {
+		SnapshotWriter change = change(REGISTER_RESULTS);
+		change.writeVarInt(stageId);
+		change.writeVarInt(riderId);
+		writeTimes(change, checkpoints);
+		append(change);
+	}
+
+	void registeredStageResults(int stageId, int[] riderIds, long[][] checkpoints) {
+		SnapshotWriter change = change(REGISTER_STAGE_RESULTS);
+		change.writeVarInt(stageId);
+		change.writeVarInt(riderIds.length);
+		for (int i = 0; i < riderIds.length; i++) {
+			change.writeVarInt(riderIds[i]);
+			writeTimes(change, checkpoints[i]);
+		}
+		append(change);
+	}
+
+	void registeredCheckpoint(int stageId, int riderId, int checkpoint, long time) {
+		SnapshotWriter change = change(REGISTER_CHECKPOINT);
+		change.writeVarInt(stageId);
+		change.writeVarInt(riderId);
+		change.writeVarInt(checkpoint);
+		change.writeVarLong(time);
+		append(change);
+	}
+
+	void deletedResults(int stageId, int riderId) {
+		SnapshotWriter change = change(DELETE_RESULTS);
+		change.writeVarInt(stageId);
+		change.writeVarInt(riderId);
+		append(change);
+	}
+
+	void erased() {
+		append(change(ERASE));
+	}
+
+	private static SnapshotWriter change(int operation) {
+		SnapshotWriter change = new SnapshotWriter(64);
+		change.writeByte(operation);
+		return change;
+	}
+
+	/**
+	 * Write checkpoint times as in a snapshot: in the coarsest unit that holds
+	 * them all exactly, as the first time and then the difference between each
+	 * time and the one before, so that times to the second take a few bytes.
+	 *
+	 */
+	private static void writeTimes(SnapshotWriter change, long[] checkpoints) {
+		long unit = COARSEST_TIME_UNIT;
+		for (long time : checkpoints) {
+			while (time % unit != 0) {
+				unit /= 1000;
+			}
+		}
+		change.writeVarInt(checkpoints.length);
+		change.writeVarLong(unit);
+		long previous = 0;
+		for (long time : checkpoints) {
+			change.writeSignedVarLong(time / unit - previous);
+			previous = time / unit;
+		}
+	}
+
+	private static long[] readTimes(SnapshotReader in) throws IOException {
+		long[] checkpoints = new long[in.readCount(1)];
+		long unit = in.readVarLong();
+		long time = 0;
+		for (int i = 0; i < checkpoints.length; i++) {
+			time += in.readSignedVarLong();
+			checkpoints[i] = time * unit;
+		}
+		return checkpoints;
+	}
+
+	private static SnapshotReader readHeader(ByteBuffer contents) throws IOException {
+		SnapshotReader in = new SnapshotReader(contents);
+		if (in.readFixedInt() != MAGIC) {
+			throw new IOException("The file was not a portal journal.");
+		}
+		int version = in.readVarInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("The journal's version %d was not supported.", version));
+		}
+		return in;
+	}
+
+	/**
+	 * Read the next complete record of a journal.
+	 *
+	 * @param in The journal, positioned at the start of a record.
+	 * @return The record's contents, or null if the journal ends here or the
+	 *         rest of it was cut short or corrupted.
+	 *
+	 */
+	private static SnapshotReader nextRecord(SnapshotReader in) throws IOException {
+		if (in.remaining() < FRAME_SIZE) {
+			return null;
+		}
+		int length = in.readFixedInt();
+		int checksum = in.readFixedInt();
+		if (length <= 0 || length > in.remaining()) {
+			return null;
+		}
+		SnapshotReader entry = in.slice(length);
+		if (entry.checksum() != checksum) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Apply the changes in a journal to a portal, skipping those with sequence
+	 * numbers up to the one given, which the portal already holds. Results that
+	 * the portal already has are skipped too, as a snapshot taken while results
+	 * were being registered may hold some results from after its sequence
+	 * number.
+	 *
+	 * @param filename      Location of the journal.
+	 * @param portal        The portal to apply the changes to, which must not
+	 *                      have a journal of its own attached.
+	 * @param afterSequence The sequence number of the last change the portal
+	 *                      holds.
+	 * @return The sequence number of the last change in the journal, or
+	 *         afterSequence if it is later.
+	 * @throws IOException If the journal could not be read, or a change could
+	 *                     not be applied, as the journal does not follow on from
+	 *                     the portal.
+	 *
+	 */
+	static long replay(String filename, CyclingPortal portal, long afterSequence) throws IOException {
+		Path path = Paths.get(filename);
+		ByteBuffer contents;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		SnapshotReader in = readHeader(contents);
+		long lastSequence = afterSequence;
+		SnapshotReader entry;
+		while ((entry = nextRecord(in)) != null) {
+			long sequence = entry.readVarLong();
+			if (sequence <= afterSequence) {
+				continue;
+			}
+			try {
+				apply(entry, portal);
+			} catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeException e) {
+				throw new IOException(String.format("Change %d in the journal was corrupt.", sequence), e);
+			} catch (Exception e) {
+				throw new IOException(String.format("Change %d in the journal could not be replayed.", sequence), e);
+			}
+			lastSequence = sequence;
+		}
+		return lastSequence;
+	}
+
+	private static void apply(SnapshotReader in, CyclingPortal portal) throws Exception {
+		int operation = in.readByte();
+		switch (operation) {
+		case CREATE_RACE: {
+			int raceId = in.readVarInt();
+			String name = in.readString();
+			expectId(raceId, portal.createRace(name, in.readString()));
+			break;
+		}
+		case REMOVE_RACE:
+			portal.removeRaceById(in.readVarInt());
+			break;
+		case ADD_STAGE: {
+			int stageId = in.readVarInt();
+			int raceId = in.readVarInt();
+			String name = in.readString();
+			String description = in.readString();
+			double length = in.readDouble();
+			LocalDateTime startTime = in.readDateTime();
+			StageType type = StageType.values()[in.readVarInt()];
+			expectId(stageId, portal.addStageToRace(raceId, name, description, length, startTime, type));
+			break;
+		}
+		case REMOVE_STAGE:
+			portal.removeStageById(in.readVarInt());
+			break;
+		case ADD_CLIMB: {
+			int segmentId = in.readVarInt();
+			int stageId = in.readVarInt();
+			double location = in.readDouble();
+			SegmentType type = SegmentType.values()[in.readVarInt()];
+			double averageGradient = in.readDouble();
+			double length = in.readDouble();
+			expectId(segmentId, portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length));
+			break;
+		}
+		case ADD_SPRINT: {
+			int segmentId = in.readVarInt();
+			int stageId = in.readVarInt();
+			expectId(segmentId, portal.addIntermediateSprintToStage(stageId, in.readDouble()));
+			break;
+		}
+		case REMOVE_SEGMENT:
+			portal.removeSegment(in.readVarInt());
+			break;
+		case CONCLUDE_STAGE:
+			portal.concludeStagePreparation(in.readVarInt());
+			break;
+		case CREATE_TEAM: {
+			int teamId = in.readVarInt();
+			String name = in.readString();
+			expectId(teamId, portal.createTeam(name, in.readString()));
+			break;
+		}
+		case REMOVE_TEAM:
+			portal.removeTeam(in.readVarInt());
+			break;
+		case CREATE_RIDER: {
+			int riderId = in.readVarInt();
+			int teamId = in.readVarInt();
+			String name = in.readString();
+			expectId(riderId, portal.createRider(teamId, name, (int) in.readSignedVarLong()));
+			break;
+		}
+		case REMOVE_RIDER:
+			portal.removeRider(in.readVarInt());
+			break;
+		case REGISTER_RESULTS: {
+			int stageId = in.readVarInt();
+			int riderId = in.readVarInt();
+			long[] checkpoints = readTimes(in);
+			LocalTime[] times = new LocalTime[checkpoints.length];
+			for (int i = 0; i < times.length; i++) {
+				times[i] = LocalTime.ofNanoOfDay(checkpoints[i]);
+			}
+			try {
+				portal.registerRiderResultsInStage(stageId, riderId, times);
+			} catch (DuplicatedResultException e) {
+				// Already in the snapshot.
+			}
+			break;
+		}
+		case REGISTER_STAGE_RESULTS: {
+			int stageId = in.readVarInt();
+			// Each rider takes at least a byte for its ID and two for its times.
+			int[] riderIds = new int[in.readCount(3)];
+			long[][] checkpoints = new long[riderIds.length][];
+			for (int i = 0; i < riderIds.length; i++) {
+				riderIds[i] = in.readVarInt();
+				checkpoints[i] = readTimes(in);
+			}
+			try {
+				portal.registerStageResults(stageId, riderIds, checkpoints);
+			} catch (DuplicatedResultException e) {
+				// Already in the snapshot, as a batch is registered all at once.
+			}
+			break;
+		}
+		case REGISTER_CHECKPOINT: {
+			int stageId = in.readVarInt();
+			int riderId = in.readVarInt();
+			int checkpoint = in.readVarInt();
+			try {
+				portal.registerRiderCheckpointInStage(stageId, riderId, checkpoint, LocalTime.ofNanoOfDay(in.readVarLong()));
+			} catch (DuplicatedResultException e) {
+				// Already in the snapshot.
+			}
+			break;
+		}
+		case DELETE_RESULTS: {
+			int stageId = in.readVarInt();
+			portal.deleteRiderResultsInStage(stageId, in.readVarInt());
+			break;
+		}
+		case ERASE:
+			portal.eraseCyclingPortal();
+			break;
+		default:
+			throw new IOException(String.format("The journal had the unknown operation %d.", operation));
+		}
+	}
+
+	private static void expectId(int expected, int actual) throws IOException {
+		if (expected != actual) {
+			throw new IOException(String.format("The journal expected ID %d but the portal gave %d.", expected, actual));
+		}
+	}
+}
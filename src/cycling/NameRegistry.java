@@ -0,0 +1,167 @@
+package cycling;
+
+import java.util.HashMap;
+
+/**
+ * Registry of every race, stage, team and rider name in the cycling portal,
+ * used for constant time uniqueness checks and name to ID lookups.
+ * <p>
+ * Race, stage and team names are unique, so they map straight to an ID. Riders
+ * may share a name, so only a count of riders using each name is kept.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+class NameRegistry {
+
+	private HashMap<String, Integer> raceIds = new HashMap<String, Integer>();
+	private HashMap<String, Integer> stageIds = new HashMap<String, Integer>();
+	private HashMap<String, Integer> teamIds = new HashMap<String, Integer>();
+	private HashMap<String, Integer> riderNameCounts = new HashMap<String, Integer>();
+
+	/**
+	 * Check if a name is used by any race, stage, team or rider.
+	 *
+	 * @param name The name to check.
+	 * @return True if the name is already in use.
+	 *
+	 */
+	public boolean isUsed(String name) {
+		return raceIds.containsKey(name) || stageIds.containsKey(name) || teamIds.containsKey(name)
+				|| riderNameCounts.containsKey(name);
+	}
+
+	/**
+	 * Get the ID of the race with the given name.
+	 *
+	 * @param name The race's name.
+	 * @return The race's ID, or null if no race has that name.
+	 *
+	 */
+	public Integer getRaceId(String name) {
+		return raceIds.get(name);
+	}
+
+	/**
+	 * Get the ID of the stage with the given name.
+	 *
+	 * @param name The stage's name.
+	 * @return The stage's ID, or null if no stage has that name.
+	 *
+	 */
+	public Integer getStageId(String name) {
+		return stageIds.get(name);
+	}
+
+	/**
+	 * Get the ID of the team with the given name.
+	 *
+	 * @param name The team's name.
+	 * @return The team's ID, or null if no team has that name.
+	 *
+	 */
+	public Integer getTeamId(String name) {
+		return teamIds.get(name);
+	}
+
+	/**
+	 * Register a race's name.
+	 *
+	 * @param race The Race object to register.
+	 *
+	 */
+	public void addRace(Race race) {
+		raceIds.put(race.getName(), race.getId());
+	}
+
+	/**
+	 * Unregister a race's name.
+	 *
+	 * @param race The Race object to unregister.
+	 *
+	 */
+	public void removeRace(Race race) {
+		raceIds.remove(race.getName());
+	}
+
+	/**
+	 * Register a stage's name.
+	 *
+	 * @param stage The Stage object to register.
+	 *
+	 */
+	public void addStage(Stage stage) {
+		stageIds.put(stage.getName(), stage.getId());
+	}
+
+	/**
+	 * Unregister a stage's name.
+	 *
+	 * @param stage The Stage object to unregister.
+	 *
+	 */
+	public void removeStage(Stage stage) {
+		stageIds.remove(stage.getName());
+	}
+
+	/**
+	 * Register a team's name.
+	 *
+	 * @param team The Team object to register.
+	 *
+	 */
+	public void addTeam(Team team) {
+		teamIds.put(team.getName(), team.getId());
+	}
+
+	/**
+	 * Unregister a team's name.
+	 *
+	 * @param team The Team object to unregister.
+	 *
+	 */
+	public void removeTeam(Team team) {
+		teamIds.remove(team.getName());
+	}
+
+	/**
+	 * Register a rider's name.
+	 *
+	 * @param rider The Rider object to register.
+	 *
+	 */
+	public void addRider(Rider rider) {
+		riderNameCounts.merge(rider.getName(), 1, Integer::sum);
+	}
+
+	/**
+	 * Unregister a rider's name. The name stays in use while any other rider
+	 * still has it.
+	 *
+	 * @param rider The Rider object to unregister.
+	 *
+	 */
+	public void removeRider(Rider rider) {
+		Integer count = riderNameCounts.get(rider.getName());
+		if (count == null) {
+			return;
+		}
+		if (count == 1) {
+			riderNameCounts.remove(rider.getName());
+		} else {
+			riderNameCounts.put(rider.getName(), count - 1);
+		}
+	}
+
+	/**
+	 * Remove every name from the registry.
+	 *
+	 */
+	public void clear() {
+		raceIds.clear();
+		stageIds.clear();
+		teamIds.clear();
+		riderNameCounts.clear();
+	}
+}
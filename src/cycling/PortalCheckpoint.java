@@ -0,0 +1,62 @@
+package cycling;
+
+/**
+ * The outcome of a background checkpoint started with
+ * checkpointCyclingPortal: how many bytes were written, how long changes to
+ * the portal were paused while its contents were captured, and how long the
+ * snapshot then took to write.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public final class PortalCheckpoint {
+
+	private final long bytesWritten;
+	private final long pauseNanos;
+	private final long writeNanos;
+
+	PortalCheckpoint(long bytesWritten, long pauseNanos, long writeNanos) {
+		this.bytesWritten = bytesWritten;
+		this.pauseNanos = pauseNanos;
+		this.writeNanos = writeNanos;
+	}
+
+	/**
+	 * Get the size of the snapshot written.
+	 *
+	 * @return The number of bytes written.
+	 *
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/**
+	 * Get the time changes to the portal were held up while its contents were
+	 * captured.
+	 *
+	 * @return The pause in nanoseconds.
+	 *
+	 */
+	public long getPauseNanos() {
+		return this.pauseNanos;
+	}
+
+	/**
+	 * Get the time the snapshot took to write in the background, after the
+	 * pause.
+	 *
+	 * @return The write time in nanoseconds.
+	 *
+	 */
+	public long getWriteNanos() {
+		return this.writeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Checkpointed %d bytes with a %.2f ms pause, written in %.1f ms", this.bytesWritten,
+				this.pauseNanos / 1e6, this.writeNanos / 1e6);
+	}
+}
@@ -0,0 +1,548 @@
+package cycling;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The binary snapshot format written by saveCyclingPortal.
+ * <p>
+ * A snapshot starts with a header of the magic number, the format version and
+ * the next ID to assign. It is followed by sections, each of which is a one
+ * byte tag, its length in bytes as a varint, and its contents, so a reader can
+ * skip sections it does not know. The sections are written in order: the
+ * journal position, then teams, riders, races, stages, segments and results,
+ * as each refers to IDs from the ones before it. The journal position is the
+ * sequence number of the last MutationJournal change the snapshot holds.
+ * <p>
+ * Every snapshot is a checkpoint with a random ID. A delta snapshot holds only
+ * the teams and races that changed since its parent checkpoint, and lists the
+ * IDs of every team and race in the portal in order, so that applying it to the
+ * parent adds and replaces the changed ones and drops those that were removed.
+ * A chain of deltas is applied to its base snapshot one after another, each to
+ * the checkpoint it names as its parent. Within a section, entities are listed in the order the
+ * portal keeps them, so that a loaded portal iterates them the same way.
+ * <p>
+ * Every ID and count is a varint, and stage start times are seconds since the
+ * epoch and nanoseconds. The results section holds one block per stage, each
+ * with its own length, and each block holds the stage's result columns as
+ * Stage.writeResults writes them. Each rider's checkpoint times are written as
+ * differences from the rider's previous time, in the coarsest of seconds,
+ * milliseconds, microseconds and nanoseconds that holds every time in the
+ * block exactly, and the block records that unit. Partial results, whose
+ * missing times are marked, are written in nanoseconds. The other sections are
+ * read when a snapshot is loaded, and serve as an index of the races and
+ * stages, but a stage's block is only read the first time its results are
+ * needed, so loading a memory-mapped snapshot costs the same however many
+ * results past races have.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+final class PortalSnapshot {
+
+	static final int MAGIC = 0x43594350; // "CYCP"
+	static final int VERSION = 1;
+
+	static final int TEAMS = 1;
+	static final int RIDERS = 2;
+	static final int RACES = 3;
+	static final int STAGES = 4;
+	static final int SEGMENTS = 5;
+	static final int RESULTS = 6;
+	static final int JOURNAL = 7;
+	static final int CHECKPOINT = 8;
+	static final int DELTA = 9;
+
+	private static final int SPRINT = 0;
+	private static final int CLIMB = 1;
+
+	private final int nextId;
+	private final long journalSequence;
+	private final long checkpointId;
+	private final long parentId;
+	private final IntMap<Team> teams;
+	private final IntMap<Race> races;
+	// Every team and race in the portal, in order, for a delta; null otherwise.
+	private final int[] teamIds;
+	private final int[] raceIds;
+
+	private PortalSnapshot(int nextId, long journalSequence, long checkpointId, long parentId, IntMap<Team> teams,
+			IntMap<Race> races, int[] teamIds, int[] raceIds) {
+		this.nextId = nextId;
+		this.journalSequence = journalSequence;
+		this.checkpointId = checkpointId;
+		this.parentId = parentId;
+		this.teams = teams;
+		this.races = races;
+		this.teamIds = teamIds;
+		this.raceIds = raceIds;
+	}
+
+	/**
+	 * Describe a full snapshot of a portal, to be written.
+	 *
+	 * @param nextId          The next ID the portal would assign.
+	 * @param journalSequence The sequence number of the last journaled change
+	 *                        the portal holds.
+	 * @param checkpointId    The snapshot's checkpoint ID.
+	 * @param teams           The portal's teams.
+	 * @param races           The portal's races.
+	 * @return The snapshot.
+	 *
+	 */
+	static PortalSnapshot full(int nextId, long journalSequence, long checkpointId, IntMap<Team> teams,
+			IntMap<Race> races) {
+		return new PortalSnapshot(nextId, journalSequence, checkpointId, 0, teams, races, null, null);
+	}
+
+	/**
+	 * Describe a delta snapshot of a portal, to be written.
+	 *
+	 * @param nextId          The next ID the portal would assign.
+	 * @param journalSequence The sequence number of the last journaled change
+	 *                        the portal holds.
+	 * @param checkpointId    The delta's checkpoint ID.
+	 * @param parentId        The ID of the checkpoint the delta follows.
+	 * @param teams           The teams changed since the parent checkpoint.
+	 * @param races           The races changed since the parent checkpoint.
+	 * @param teamIds         The IDs of every team in the portal, in order.
+	 * @param raceIds         The IDs of every race in the portal, in order.
+	 * @return The snapshot.
+	 *
+	 */
+	static PortalSnapshot delta(int nextId, long journalSequence, long checkpointId, long parentId,
+			IntMap<Team> teams, IntMap<Race> races, int[] teamIds, int[] raceIds) {
+		return new PortalSnapshot(nextId, journalSequence, checkpointId, parentId, teams, races, teamIds, raceIds);
+	}
+
+	public int getNextId() {
+		return this.nextId;
+	}
+
+	public long getJournalSequence() {
+		return this.journalSequence;
+	}
+
+	public long getCheckpointId() {
+		return this.checkpointId;
+	}
+
+	public long getParentId() {
+		return this.parentId;
+	}
+
+	public boolean isDelta() {
+		return this.raceIds != null;
+	}
+
+	public int[] getTeamIds() {
+		return this.teamIds;
+	}
+
+	public int[] getRaceIds() {
+		return this.raceIds;
+	}
+
+	public IntMap<Team> getTeams() {
+		return this.teams;
+	}
+
+	public IntMap<Race> getRaces() {
+		return this.races;
+	}
+
+	/**
+	 * Check if a file starts with the snapshot format's magic number.
+	 *
+	 * @param header The first bytes of the file.
+	 * @return True if the file is a binary snapshot.
+	 *
+	 */
+	static boolean isSnapshot(ByteBuffer header) {
+		return header.remaining() >= 4 && header.getInt(header.position()) == MAGIC;
+	}
+
+	/**
+	 * Capture the snapshot's contents as they are now, so that they can be
+	 * written while the portal carries on changing. Every section but the
+	 * results is encoded straight away, and each stage's results are captured
+	 * as a Stage.ResultsImage, which shares the stage's result rows rather than
+	 * encoding them.
+	 *
+	 * @return The image of the snapshot.
+	 *
+	 */
+	Image capture() {
+		SnapshotWriter head = new SnapshotWriter();
+		SnapshotWriter section = new SnapshotWriter();
+		head.writeFixedInt(MAGIC);
+		head.writeVarInt(VERSION);
+		head.writeVarInt(nextId);
+
+		section.writeVarLong(journalSequence);
+		writeSection(head, JOURNAL, section);
+
+		section.writeFixedLong(checkpointId);
+		section.writeFixedLong(parentId);
+		writeSection(head, CHECKPOINT, section);
+
+		if (isDelta()) {
+			section.writeVarInt(teamIds.length);
+			for (int teamId : teamIds) {
+				section.writeVarInt(teamId);
+			}
+			section.writeVarInt(raceIds.length);
+			for (int raceId : raceIds) {
+				section.writeVarInt(raceId);
+			}
+			writeSection(head, DELTA, section);
+		}
+
+		section.writeVarInt(teams.size());
+		for (Team team : teams.values()) {
+			section.writeVarInt(team.getId());
+			section.writeString(team.getName());
+			section.writeString(team.getDescription());
+		}
+		writeSection(head, TEAMS, section);
+
+		int riderCount = 0;
+		for (Team team : teams.values()) {
+			riderCount += team.getRiders().length;
+		}
+		section.writeVarInt(riderCount);
+		for (Team team : teams.values()) {
+			for (Rider rider : team.getRiders()) {
+				section.writeVarInt(rider.getId());
+				section.writeVarInt(rider.getTeamId());
+				section.writeString(rider.getName());
+				section.writeSignedVarLong(rider.getYearOfBirth());
+			}
+		}
+		writeSection(head, RIDERS, section);
+
+		section.writeVarInt(races.size());
+		for (Race race : races.values()) {
+			section.writeVarInt(race.getId());
+			section.writeString(race.getName());
+			section.writeString(race.getDescription());
+		}
+		writeSection(head, RACES, section);
+
+		ArrayList<Stage> stages = new ArrayList<Stage>();
+		for (Race race : races.values()) {
+			stages.addAll(Arrays.asList(race.getStages()));
+		}
+		section.writeVarInt(stages.size());
+		for (Stage stage : stages) {
+			section.writeVarInt(stage.getId());
+			section.writeVarInt(stage.getRaceId());
+			section.writeString(stage.getName());
+			section.writeString(stage.getDescription());
+			section.writeDouble(stage.getLength());
+			section.writeDateTime(stage.getStartTime());
+			section.writeVarInt(stage.getStageType().ordinal());
+			section.writeString(stage.getState());
+		}
+		writeSection(head, STAGES, section);
+
+		int segmentCount = 0;
+		Segment[][] segments = new Segment[stages.size()][];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = stages.get(i).getSegments();
+			segmentCount += segments[i].length;
+		}
+		section.writeVarInt(segmentCount);
+		for (Segment[] stageSegments : segments) {
+			for (Segment segment : stageSegments) {
+				section.writeVarInt(segment.getId());
+				section.writeVarInt(segment.getStageId());
+				section.writeVarInt(segment.getSegmentType().ordinal());
+				section.writeDouble(segment.getLocation());
+				if (segment instanceof CategorizedClimb) {
+					CategorizedClimb climb = (CategorizedClimb) segment;
+					section.writeByte(CLIMB);
+					section.writeDouble(climb.getLength());
+					section.writeDouble(climb.getAverageGradient());
+				} else {
+					section.writeByte(SPRINT);
+				}
+			}
+		}
+		writeSection(head, SEGMENTS, section);
+
+		int[] stageIds = new int[stages.size()];
+		Stage.ResultsImage[] results = new Stage.ResultsImage[stages.size()];
+		for (int i = 0; i < stageIds.length; i++) {
+			stageIds[i] = stages.get(i).getId();
+			results[i] = stages.get(i).captureResults();
+		}
+		return new Image(head, stageIds, results, teams.keys(), races.keys());
+	}
+
+	/**
+	 * A snapshot's contents at one point in time, with every section but the
+	 * results already encoded.
+	 *
+	 */
+	static final class Image {
+
+		private final SnapshotWriter head;
+		private final int[] stageIds;
+		private final Stage.ResultsImage[] results;
+		private final int[] teamIds;
+		private final int[] raceIds;
+
+		private Image(SnapshotWriter head, int[] stageIds, Stage.ResultsImage[] results, int[] teamIds,
+				int[] raceIds) {
+			this.head = head;
+			this.stageIds = stageIds;
+			this.results = results;
+			this.teamIds = teamIds;
+			this.raceIds = raceIds;
+		}
+
+		/**
+		 * Get the IDs of the teams the snapshot holds.
+		 *
+		 * @return An int array of team IDs.
+		 *
+		 */
+		int[] getTeamIds() {
+			return this.teamIds;
+		}
+
+		/**
+		 * Get the IDs of the races the snapshot holds.
+		 *
+		 * @return An int array of race IDs.
+		 *
+		 */
+		int[] getRaceIds() {
+			return this.raceIds;
+		}
+
+		/**
+		 * Encode the results and write the snapshot to a channel.
+		 *
+		 * @param channel The channel to write to.
+		 * @return The number of bytes written.
+		 * @throws IOException If the channel could not be written to.
+		 *
+		 */
+		long write(WritableByteChannel channel) throws IOException {
+			this.head.writeTo(channel);
+			long written = this.head.size();
+
+			SnapshotWriter header = new SnapshotWriter();
+			SnapshotWriter section = new SnapshotWriter();
+			SnapshotWriter block = new SnapshotWriter();
+			section.writeVarInt(this.stageIds.length);
+			for (int i = 0; i < this.stageIds.length; i++) {
+				block.clear();
+				this.results[i].write(block);
+				section.writeVarInt(this.stageIds[i]);
+				section.writeVarInt(block.size());
+				section.writeBytes(block);
+			}
+			written += writeSection(channel, header, RESULTS, section);
+			return written;
+		}
+	}
+
+	/**
+	 * Append one section to a writer, then clear it for the next section.
+	 *
+	 */
+	private static void writeSection(SnapshotWriter out, int tag, SnapshotWriter section) {
+		out.writeByte(tag);
+		out.writeVarInt(section.size());
+		out.writeBytes(section);
+		section.clear();
+	}
+
+	/**
+	 * Write one section to a channel, then clear it for the next section.
+	 *
+	 * @return The number of bytes written.
+	 *
+	 */
+	private static long writeSection(WritableByteChannel channel, SnapshotWriter header, int tag,
+			SnapshotWriter section) throws IOException {
+		header.clear();
+		header.writeByte(tag);
+		header.writeVarInt(section.size());
+		header.writeTo(channel);
+		section.writeTo(channel);
+		long written = header.size() + section.size();
+		section.clear();
+		return written;
+	}
+
+	/**
+	 * Read a snapshot, leaving each stage's results in the buffer until the
+	 * stage first needs them.
+	 *
+	 * @param buffer The snapshot's bytes, starting at the magic number, which
+	 *               must not change while the loaded stages refer to them.
+	 * @return The contents of the snapshot.
+	 * @throws IOException If the snapshot was truncated, corrupt or written in a
+	 *                     newer version of the format.
+	 *
+	 */
+	static PortalSnapshot read(ByteBuffer buffer) throws IOException {
+		SnapshotReader in = new SnapshotReader(buffer);
+		if (in.readFixedInt() != MAGIC) {
+			throw new IOException("The file was not a portal snapshot.");
+		}
+		int version = in.readVarInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("The snapshot's version %d was not supported.", version));
+		}
+		int nextId = in.readVarInt();
+		long journalSequence = 0;
+		long checkpointId = 0;
+		long parentId = 0;
+		int[] teamIds = null;
+		int[] raceIds = null;
+		IntMap<Team> teams = new IntMap<Team>();
+		IntMap<Race> races = new IntMap<Race>();
+		IntMap<Stage> stages = new IntMap<Stage>();
+		try {
+			while (in.hasRemaining()) {
+				int tag = in.readByte();
+				SnapshotReader section = in.slice(in.readVarInt());
+				switch (tag) {
+				case JOURNAL:
+					journalSequence = section.readVarLong();
+					break;
+				case CHECKPOINT:
+					checkpointId = section.readFixedLong();
+					parentId = section.readFixedLong();
+					break;
+				case DELTA:
+					teamIds = readIds(section);
+					raceIds = readIds(section);
+					break;
+				case TEAMS:
+					readTeams(section, teams);
+					break;
+				case RIDERS:
+					readRiders(section, teams);
+					break;
+				case RACES:
+					readRaces(section, races);
+					break;
+				case STAGES:
+					readStages(section, races, stages);
+					break;
+				case SEGMENTS:
+					readSegments(section, stages);
+					break;
+				case RESULTS:
+					readResults(section, stages);
+					break;
+				default:
+					// A section from a later version that this one can do without.
+					break;
+				}
+			}
+		} catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeException e) {
+			throw new IOException("The snapshot was corrupt.", e);
+		}
+		return new PortalSnapshot(nextId, journalSequence, checkpointId, parentId, teams, races, teamIds, raceIds);
+	}
+
+	private static int[] readIds(SnapshotReader in) throws IOException {
+		int[] ids = new int[in.readCount(1)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = in.readVarInt();
+		}
+		return ids;
+	}
+
+	private static void readTeams(SnapshotReader in, IntMap<Team> teams) throws IOException {
+		int count = in.readCount(1);
+		for (int i = 0; i < count; i++) {
+			int teamId = in.readVarInt();
+			teams.put(teamId, new Team(teamId, in.readString(), in.readString()));
+		}
+	}
+
+	private static void readRiders(SnapshotReader in, IntMap<Team> teams) throws IOException {
+		int count = in.readCount(1);
+		for (int i = 0; i < count; i++) {
+			int riderId = in.readVarInt();
+			int teamId = in.readVarInt();
+			String name = in.readString();
+			int yearOfBirth = (int) in.readSignedVarLong();
+			find(teams, teamId).addRider(new Rider(riderId, teamId, name, yearOfBirth));
+		}
+	}
+
+	private static void readRaces(SnapshotReader in, IntMap<Race> races) throws IOException {
+		int count = in.readCount(1);
+		for (int i = 0; i < count; i++) {
+			int raceId = in.readVarInt();
+			races.put(raceId, new Race(raceId, in.readString(), in.readString()));
+		}
+	}
+
+	private static void readStages(SnapshotReader in, IntMap<Race> races, IntMap<Stage> stages) throws IOException {
+		StageType[] types = StageType.values();
+		int count = in.readCount(1);
+		for (int i = 0; i < count; i++) {
+			int stageId = in.readVarInt();
+			int raceId = in.readVarInt();
+			String name = in.readString();
+			String description = in.readString();
+			double length = in.readDouble();
+			Stage stage = new Stage(raceId, stageId, name, description, length, in.readDateTime(),
+					types[in.readVarInt()]);
+			stage.setState(in.readString());
+			find(races, raceId).addStage(stage);
+			stages.put(stageId, stage);
+		}
+	}
+
+	private static void readSegments(SnapshotReader in, IntMap<Stage> stages) throws IOException {
+		SegmentType[] types = SegmentType.values();
+		int count = in.readCount(1);
+		for (int i = 0; i < count; i++) {
+			int segmentId = in.readVarInt();
+			int stageId = in.readVarInt();
+			SegmentType type = types[in.readVarInt()];
+			double location = in.readDouble();
+			Segment segment;
+			if (in.readByte() == CLIMB) {
+				double length = in.readDouble();
+				double averageGradient = in.readDouble();
+				segment = new CategorizedClimb(stageId, segmentId, length, location, averageGradient, type);
+			} else {
+				segment = new IntermediateSprint(stageId, segmentId, location, type);
+			}
+			find(stages, stageId).addSegment(segment);
+		}
+	}
+
+	private static void readResults(SnapshotReader in, IntMap<Stage> stages) throws IOException {
+		int count = in.readCount(1);
+		for (int i = 0; i < count; i++) {
+			Stage stage = find(stages, in.readVarInt());
+			stage.attachResults(in.slice(in.readVarInt()));
+		}
+	}
+
+	private static <T> T find(IntMap<T> entities, int id) throws IOException {
+		T entity = entities.get(id);
+		if (entity == null) {
+			throw new IOException(String.format("The snapshot referred to the missing ID %d.", id));
+		}
+		return entity;
+	}
+}
@@ -1,7 +1,16 @@
 package cycling;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.time.LocalTime;
 
 /**
@@ -13,15 +22,36 @@ import java.time.LocalTime;
  */
 
 public class Race implements Serializable {
+    private static final long serialVersionUID = 2140838672393955114L;
     private int raceId;
     private String name;
     private String description;
     private ArrayList<Stage> stages = new ArrayList<Stage>();
+
+    // Cumulative totals per rider across the stages, and the classification of
+    // each stage that is currently included in them. A stage's contribution is
+    // only recomputed when its classification changes.
+    private transient IntMap<RiderTotals> riderTotals = new IntMap<RiderTotals>();
+    private transient IntMap<StageClassification> appliedClassifications = new IntMap<StageClassification>();
+    private transient RaceClassification classification;
+    // The classification most recently published for lock-free readers, and
+    // the number of outstanding requests to publish a newer one.
+    private transient volatile RaceClassification publishedClassification;
+    private transient AtomicInteger publishRequests = new AtomicInteger();
+    // When set, out of date stage classifications are computed in parallel.
+    private transient volatile ForkJoinPool classificationPool;
+    // The stages and a count of changes to them, replaced together whenever a
+    // stage is added or removed, so the race's version can be read without
+    // holding the race.
+    private transient volatile StageSet stageSet = new StageSet(new Stage[0], 0);
+    private transient SingleFlight<RaceClassification> classifications = new SingleFlight<RaceClassification>();
     
     public Race(int raceId, String name, String description) {
         this.raceId = raceId;
         this.description = description;
         this.name = name;
+        this.publishedClassification = new RaceClassification(new int[0], new long[0], new int[0], new int[0],
+            new int[0], new int[0]);
     }
 
     /**
@@ -50,8 +80,10 @@ public class Race implements Serializable {
 	 * @param id Stage object to add.
 	 * 
 	 */
-    public void addStage(Stage stage) {
+    public synchronized void addStage(Stage stage) {
         this.stages.add(stage);
+        this.classification = null;
+        this.stageSet = new StageSet(this.stages.toArray(new Stage[0]), this.stageSet.changes + 1);
     }
 
     /**
@@ -60,8 +92,17 @@ public class Race implements Serializable {
 	 * @param id Stage object to remove.
 	 * 
 	 */
-    public void removeStage(Stage stage) {
+    public synchronized void removeStage(Stage stage) {
         this.stages.remove(stage);
+        StageClassification applied = this.appliedClassifications.remove(stage.getId());
+        if (applied != null) {
+            applyClassification(applied, -1);
+        }
+        this.classification = null;
+        // Keep the removed stage's count in the version, so that it never
+        // falls back to a value it had before.
+        this.stageSet = new StageSet(this.stages.toArray(new Stage[0]),
+            this.stageSet.changes + 1 + stage.getModificationCount());
     }
 
     /**
@@ -99,39 +140,248 @@ public class Race implements Serializable {
     }
 
     /**
-	 * Return the array of indices which sorts the riders by their
-     * elapsed time when accessed in the order of the first stage's
-     * results.
+	 * Set the pool used to compute the stages' classifications in parallel.
 	 * 
-	 * @return An integer array containing the indices which sort
-     * the riders by elapsed time.
+	 * @param pool The ForkJoinPool to use, or null to compute the stages one
+     *             after another.
 	 * 
 	 */
-    private int[] getSortedElapsedTimeIndices() {
-		ArrayList<Long> results = new ArrayList<Long>();
-        ArrayList<Integer> sortedIndices = new ArrayList<Integer>();
-        int unsortedIndex = 0;
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            long elapsedTime = 0;
-            for (Stage stage : this.stages) {
-                elapsedTime += stage.getRiderAdjustedElapsedTime(riderId).toNanoOfDay();
+    public void setClassificationPool(ForkJoinPool pool) {
+        this.classificationPool = pool;
+    }
+
+    /**
+	 * Get the classification of every stage. If a classification pool is set,
+     * the stages whose classification is out of date are computed on it in
+     * parallel, since each stage's classification is independent.
+	 * 
+	 * @return The classification of each stage, in the order of the stages.
+	 * 
+	 */
+    private StageClassification[] getStageClassifications() {
+        StageClassification[] classifications = new StageClassification[this.stages.size()];
+        ForkJoinPool pool = this.classificationPool;
+        if (pool != null) {
+            List<Callable<StageClassification>> tasks = new ArrayList<Callable<StageClassification>>();
+            int[] taskStages = new int[classifications.length];
+            for (int i = 0; i < classifications.length; i++) {
+                Stage stage = this.stages.get(i);
+                StageClassification applied = this.appliedClassifications.get(stage.getId());
+                if (applied == null || applied.getVersion() != stage.getModificationCount()) {
+                    taskStages[tasks.size()] = i;
+                    tasks.add(stage::getClassification);
+                }
             }
-            int index = 0;
-            for (index = 0; index < results.size(); index++) {
-                if (results.get(index) > elapsedTime) {
-                    break;
+            if (tasks.size() > 1) {
+                try {
+                    List<Future<StageClassification>> futures = pool.invokeAll(tasks);
+                    for (int t = 0; t < futures.size(); t++) {
+                        classifications[taskStages[t]] = futures.get(t).get();
+                    }
+                } catch (InterruptedException e) {
+                    // Compute whatever is left on this thread instead.
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
                 }
             }
-            results.add(index, elapsedTime);
-            sortedIndices.add(index, unsortedIndex);
-            unsortedIndex++;
         }
+        for (int i = 0; i < classifications.length; i++) {
+            if (classifications[i] == null) {
+                classifications[i] = this.stages.get(i).getClassification();
+            }
+        }
+        return classifications;
+    }
+
+    /**
+	 * Bring the cumulative totals up to date with the stages. Only stages
+     * whose classification has changed since it was last applied are
+     * refreshed: their old contribution is taken away and the new one added.
+     * The stage classifications may be computed in parallel, but they are
+     * merged into the totals on this thread.
+	 * 
+	 * @return True if any stage's contribution changed.
+	 * 
+	 */
+    private boolean refreshTotals() {
+        StageClassification[] classifications = getStageClassifications();
+        boolean changed = false;
+        for (int i = 0; i < classifications.length; i++) {
+            Stage stage = this.stages.get(i);
+            StageClassification classification = classifications[i];
+            StageClassification applied = this.appliedClassifications.get(stage.getId());
+            if (applied != classification) {
+                if (applied != null) {
+                    applyClassification(applied, -1);
+                }
+                applyClassification(classification, 1);
+                this.appliedClassifications.put(stage.getId(), classification);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+	 * Add a stage's classification to the cumulative totals, or take it away.
+	 * 
+	 * @param classification The stage's classification.
+	 * @param sign 1 to add the classification, -1 to take it away.
+	 * 
+	 */
+    private void applyClassification(StageClassification classification, int sign) {
+        int[] riderIds = classification.getRiderIds();
+        long[] adjustedTimes = classification.getAdjustedElapsedTimes();
+        int[] points = classification.getPoints();
+        int[] mountainPoints = classification.getMountainPoints();
+        for (int i = 0; i < riderIds.length; i++) {
+            RiderTotals totals = this.riderTotals.get(riderIds[i]);
+            if (totals == null) {
+                totals = new RiderTotals();
+                this.riderTotals.put(riderIds[i], totals);
+            }
+            totals.time += sign * adjustedTimes[i];
+            totals.points += sign * points[i];
+            totals.mountainPoints += sign * mountainPoints[i];
+            totals.stageCount += sign;
+            if (totals.stageCount == 0) {
+                this.riderTotals.remove(riderIds[i]);
+            }
+        }
+    }
+
+    /**
+	 * Get the race's classifications, re-ranking the riders only if a stage
+     * has changed since they were last ranked. Only riders with a result in
+     * every stage are classified, and riders on equal totals keep the order
+     * of the first stage's ranks. Threads asking at the same time share one
+     * computation, and an up to date classification is returned without
+     * taking any lock.
+	 * 
+	 * @return The RaceClassification snapshot of the race.
+	 * 
+	 */
+    public RaceClassification getClassification() {
+        return this.classifications.get(getVersion(), this::computeClassification);
+    }
+
+    /**
+	 * Get the race's version, which grows whenever a stage is added or
+     * removed or any of its stages is modified, and so never repeats.
+	 * 
+	 * @return The race's version.
+	 * 
+	 */
+    private long getVersion() {
+        StageSet stageSet = this.stageSet;
+        long version = stageSet.changes;
+        for (Stage stage : stageSet.stages) {
+            version += stage.getModificationCount();
+        }
+        return version;
+    }
+
+    /**
+	 * Compute the race's classifications from the stages' classifications.
+	 * 
+	 * @return The RaceClassification snapshot of the race.
+	 * 
+	 */
+    private synchronized RaceClassification computeClassification() {
+        if (!refreshTotals() && this.classification != null) {
+            return this.classification;
+        }
+
+        // Take the candidates from the snapshot already applied to the totals,
+        // as the stage may have gained results since.
+        int[] candidates = this.stages.isEmpty() ? new int[0]
+            : this.appliedClassifications.get(this.stages.get(0).getId()).getRiderIds();
+        int[] riderIds = new int[candidates.length];
+        long[] times = new long[candidates.length];
+        int[] points = new int[candidates.length];
+        int[] mountainPoints = new int[candidates.length];
+        int count = 0;
+        for (int riderId : candidates) {
+            RiderTotals totals = this.riderTotals.get(riderId);
+            if (totals.stageCount == this.stages.size()) {
+                riderIds[count] = riderId;
+                times[count] = totals.time;
+                points[count] = totals.points;
+                mountainPoints[count] = totals.mountainPoints;
+                count++;
+            }
+        }
+        riderIds = Arrays.copyOf(riderIds, count);
+        times = Arrays.copyOf(times, count);
+        points = Arrays.copyOf(points, count);
+        mountainPoints = Arrays.copyOf(mountainPoints, count);
 
-        int[] sortedArr = new int[sortedIndices.size()];
-        for (int i = 0; i < sortedIndices.size(); i++) {
-            sortedArr[i] = sortedIndices.get(i).intValue();
+        int[] order = Ranking.sortAscending(times);
+        int[] pointsOrder = Ranking.sortDescending(points);
+        int[] mountainPointsOrder = Ranking.sortDescending(mountainPoints);
+        int[] rankedRiderIds = new int[count];
+        long[] rankedTimes = new long[count];
+        int[] rankedPoints = new int[count];
+        int[] rankedMountainPoints = new int[count];
+        int[] pointsRiderIds = new int[count];
+        int[] mountainPointsRiderIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            rankedRiderIds[i] = riderIds[order[i]];
+            rankedTimes[i] = times[order[i]];
+            rankedPoints[i] = points[order[i]];
+            rankedMountainPoints[i] = mountainPoints[order[i]];
+            pointsRiderIds[i] = riderIds[pointsOrder[i]];
+            mountainPointsRiderIds[i] = riderIds[mountainPointsOrder[i]];
         }
-        return sortedArr;
+        this.classification = new RaceClassification(rankedRiderIds, rankedTimes, rankedPoints,
+            rankedMountainPoints, pointsRiderIds, mountainPointsRiderIds);
+        return this.classification;
+    }
+
+    /**
+	 * Publish the race's current classification for lock-free readers. If
+     * another thread is already publishing, it is left to publish again once
+     * it finishes.
+	 * 
+	 */
+    public void publishClassification() {
+        if (this.publishRequests.getAndIncrement() != 0) {
+            return;
+        }
+        while (true) {
+            int requests = this.publishRequests.get();
+            this.publishedClassification = getClassification();
+            if (this.publishRequests.addAndGet(-requests) == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+	 * Drop the published classification, so that readers compute the current
+     * one until another is published. Used after loading stages whose results
+     * have not been read, which publishing would read.
+	 * 
+	 */
+    void clearPublishedClassification() {
+        this.publishedClassification = null;
+    }
+
+    /**
+	 * Get the classification most recently published, without taking any
+     * lock.
+	 * 
+	 * @return The published RaceClassification snapshot of the race.
+	 * 
+	 */
+    public RaceClassification getPublishedClassification() {
+        RaceClassification classification = this.publishedClassification;
+        if (classification == null) {
+            // Nothing has been published since the race was loaded.
+            return getClassification();
+        }
+        return classification;
     }
 
     /**
@@ -142,16 +392,10 @@ public class Race implements Serializable {
 	 * 
 	 */
     public LocalTime[] getGeneralClassificationTimes() {
-        int[] order = getSortedElapsedTimeIndices();
-        LocalTime[] times = new LocalTime[order.length];
-        int index = 0;
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            long elapsedTime = 0;
-            for (Stage stage : this.stages) {
-                elapsedTime += stage.getRiderAdjustedElapsedTime(riderId).toNanoOfDay();
-            }
-            times[order[index]] = LocalTime.ofNanoOfDay(elapsedTime);
-            index++;
+        long[] totalTimes = getClassification().getTimes();
+        LocalTime[] times = new LocalTime[totalTimes.length];
+        for (int i = 0; i < totalTimes.length; i++) {
+            times[i] = LocalTime.ofNanoOfDay(totalTimes[i]);
         }
         return times;
     }
@@ -164,18 +408,7 @@ public class Race implements Serializable {
 	 * 
 	 */
     public int[] getRidersPoints() {
-        int[] order = getSortedElapsedTimeIndices();
-        int[] points = new int[order.length];
-        int index = 0;
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            int riderPoints = 0;
-            for (Stage stage : this.stages) {
-                riderPoints += stage.getRiderPoints(riderId);
-            }
-            points[order[index]] = riderPoints;
-            index++;
-        }
-        return points;
+        return getClassification().getPoints().clone();
     }
 
     /**
@@ -186,18 +419,7 @@ public class Race implements Serializable {
 	 * 
 	 */
     public int[] getRidersMountainPoints() {
-        int[] order = getSortedElapsedTimeIndices();
-        int[] points = new int[order.length];
-        int index = 0;
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            int riderPoints = 0;
-            for (Stage stage : this.stages) {
-                riderPoints += stage.getRiderMountainPoints(riderId);
-            }
-            points[order[index]] = riderPoints;
-            index++;
-        }
-        return points;
+        return getClassification().getMountainPoints().clone();
     }
 
     /**
@@ -207,14 +429,7 @@ public class Race implements Serializable {
 	 *
 	 */
     public int[] getRidersGeneralClassificationRank() {
-        int[] order = getSortedElapsedTimeIndices();
-        int[] ranks = new int[order.length];
-        int index = 0;
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            ranks[order[index]] = riderId;
-            index++;
-        }
-        return ranks;
+        return getClassification().getRiderIds().clone();
     }
 
     /**
@@ -225,31 +440,7 @@ public class Race implements Serializable {
 	 *
 	 */
     public int[] getRidersPointClassificationRank() {
-		ArrayList<Integer> points = new ArrayList<Integer>();
-        ArrayList<Integer> sortedIds = new ArrayList<Integer>();
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            // Calculate points
-            int riderPoints = 0;
-            for (Stage stage : this.stages) {
-                riderPoints += stage.getRiderPoints(riderId);
-            }
-            // Find sorted (descending) position in arraylist
-            int index = 0;
-            for (index = 0; index < points.size(); index++) {
-                if (points.get(index) < riderPoints) {
-                    break;
-                }
-            }
-            // Insert into arraylist
-            points.add(index, riderPoints);
-            sortedIds.add(index, riderId);
-        }
-
-        int[] sortedArr = new int[sortedIds.size()];
-        for (int i = 0; i < sortedIds.size(); i++) {
-            sortedArr[i] = sortedIds.get(i).intValue();
-        }
-        return sortedArr;
+        return getClassification().getPointsRiderIds().clone();
     }
 
     /**
@@ -260,30 +451,40 @@ public class Race implements Serializable {
 	 *
 	 */
     public int[] getRidersMountainPointClassificationRank() {
-        ArrayList<Integer> points = new ArrayList<Integer>();
-        ArrayList<Integer> sortedIds = new ArrayList<Integer>();
-        for (Integer riderId : this.stages.get(0).getRidersRanks()) {
-            // Calculate points
-            int riderPoints = 0;
-            for (Stage stage : this.stages) {
-                riderPoints += stage.getRiderMountainPoints(riderId);
-            }
-            // Find sorted (descending) position in arraylist
-            int index = 0;
-            for (index = 0; index < points.size(); index++) {
-                if (points.get(index) < riderPoints) {
-                    break;
-                }
-            }
-            // Insert into arraylist
-            points.add(index, riderPoints);
-            sortedIds.add(index, riderId);
-        }
+        return getClassification().getMountainPointsRiderIds().clone();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.riderTotals = new IntMap<RiderTotals>();
+        this.appliedClassifications = new IntMap<StageClassification>();
+        this.publishRequests = new AtomicInteger();
+        this.stageSet = new StageSet(this.stages.toArray(new Stage[0]), 0);
+        this.classifications = new SingleFlight<RaceClassification>();
+    }
+
+    /**
+	 * The race's stages with the number of times they have been changed.
+	 * 
+	 */
+    private static class StageSet {
+        private final Stage[] stages;
+        private final long changes;
 
-        int[] sortedArr = new int[sortedIds.size()];
-        for (int i = 0; i < sortedIds.size(); i++) {
-            sortedArr[i] = sortedIds.get(i).intValue();
+        StageSet(Stage[] stages, long changes) {
+            this.stages = stages;
+            this.changes = changes;
         }
-        return sortedArr;
+    }
+
+    /**
+	 * A rider's totals across every stage applied so far.
+	 * 
+	 */
+    private static class RiderTotals {
+        private long time;
+        private int points;
+        private int mountainPoints;
+        private int stageCount;
     }
 }
@@ -0,0 +1,94 @@
+package cycling;
+
+/**
+ * Immutable snapshot of a race's classifications, built from the cumulative
+ * totals of every stage in the race.
+ * <p>
+ * The general classification arrays are in general classification order. The
+ * points and mountain points rank arrays are in their own classification
+ * orders. The arrays are shared with every caller of the getters and must not
+ * be modified; public portal methods return copies.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+final class RaceClassification {
+
+	private final int[] riderIds;
+	private final long[] times;
+	private final int[] points;
+	private final int[] mountainPoints;
+	private final int[] pointsRiderIds;
+	private final int[] mountainPointsRiderIds;
+
+	public RaceClassification(int[] riderIds, long[] times, int[] points, int[] mountainPoints,
+			int[] pointsRiderIds, int[] mountainPointsRiderIds) {
+		this.riderIds = riderIds;
+		this.times = times;
+		this.points = points;
+		this.mountainPoints = mountainPoints;
+		this.pointsRiderIds = pointsRiderIds;
+		this.mountainPointsRiderIds = mountainPointsRiderIds;
+	}
+
+	/**
+	 * Get the rider IDs in general classification order.
+	 *
+	 * @return The shared array of rider IDs.
+	 *
+	 */
+	public int[] getRiderIds() {
+		return this.riderIds;
+	}
+
+	/**
+	 * Get the total adjusted elapsed times in general classification order.
+	 *
+	 * @return The shared array of times in nanoseconds.
+	 *
+	 */
+	public long[] getTimes() {
+		return this.times;
+	}
+
+	/**
+	 * Get the total points in general classification order.
+	 *
+	 * @return The shared array of points.
+	 *
+	 */
+	public int[] getPoints() {
+		return this.points;
+	}
+
+	/**
+	 * Get the total mountain points in general classification order.
+	 *
+	 * @return The shared array of mountain points.
+	 *
+	 */
+	public int[] getMountainPoints() {
+		return this.mountainPoints;
+	}
+
+	/**
+	 * Get the rider IDs in points classification order.
+	 *
+	 * @return The shared array of rider IDs.
+	 *
+	 */
+	public int[] getPointsRiderIds() {
+		return this.pointsRiderIds;
+	}
+
+	/**
+	 * Get the rider IDs in mountain points classification order.
+	 *
+	 * @return The shared array of rider IDs.
+	 *
+	 */
+	public int[] getMountainPointsRiderIds() {
+		return this.mountainPointsRiderIds;
+	}
+}
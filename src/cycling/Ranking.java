@@ -0,0 +1,115 @@
+package cycling;
+
+import java.util.Arrays;
+
+/**
+ * Sorting helpers shared by the stage and race classifications. Keys are kept
+ * in primitive arrays, and ties are always broken by the original order of the
+ * items, so that riders with equal keys stay in the order they were given.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+final class Ranking {
+
+	private Ranking() {
+	}
+
+	/**
+	 * Sort items in ascending order of their keys.
+	 *
+	 * @param keys The key of each item.
+	 * @return The indices of the items in sorted order, so the first element is
+	 *         the index of the item with the smallest key.
+	 *
+	 */
+	public static int[] sortAscending(long[] keys) {
+		int n = keys.length;
+		if (n == 0) {
+			return new int[0];
+		}
+		long min = keys[0];
+		long max = keys[0];
+		for (long key : keys) {
+			min = Math.min(min, key);
+			max = Math.max(max, key);
+		}
+
+		// Pack each key, offset from the smallest, above its index so that a
+		// single primitive sort orders by key and then by index.
+		int indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(n - 1, 1));
+		long range = max - min;
+		if (range < 0 || (range >>> (63 - indexBits)) != 0) {
+			return mergeSortAscending(keys);
+		}
+		long[] packed = new long[n];
+		for (int i = 0; i < n; i++) {
+			packed[i] = ((keys[i] - min) << indexBits) | i;
+		}
+		Arrays.sort(packed);
+		long indexMask = (1L << indexBits) - 1;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = (int) (packed[i] & indexMask);
+		}
+		return order;
+	}
+
+	/**
+	 * Sort items in descending order of their keys.
+	 *
+	 * @param keys The key of each item.
+	 * @return The indices of the items in sorted order, so the first element is
+	 *         the index of the item with the largest key.
+	 *
+	 */
+	public static int[] sortDescending(int[] keys) {
+		long[] negated = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			negated[i] = -(long) keys[i];
+		}
+		return sortAscending(negated);
+	}
+
+	/**
+	 * Stable merge sort of item indices, used when the keys span too wide a range
+	 * to be packed alongside the indices.
+	 *
+	 * @param keys The key of each item.
+	 * @return The indices of the items in ascending order of their keys.
+	 *
+	 */
+	private static int[] mergeSortAscending(long[] keys) {
+		int n = keys.length;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] buffer = new int[n];
+		for (int width = 1; width < n; width *= 2) {
+			for (int low = 0; low < n - width; low += 2 * width) {
+				int middle = low + width;
+				int high = Math.min(low + 2 * width, n);
+				int left = low;
+				int right = middle;
+				int out = low;
+				while (left < middle && right < high) {
+					if (keys[order[right]] < keys[order[left]]) {
+						buffer[out++] = order[right++];
+					} else {
+						buffer[out++] = order[left++];
+					}
+				}
+				while (left < middle) {
+					buffer[out++] = order[left++];
+				}
+				while (right < high) {
+					buffer[out++] = order[right++];
+				}
+				System.arraycopy(buffer, low, order, low, high - low);
+			}
+		}
+		return order;
+	}
+}
@@ -11,6 +11,7 @@ import java.io.Serializable;
  */
 
 public class Rider implements Serializable {
+    private static final long serialVersionUID = 9125010467811257398L;
     private int riderId;
     private int teamId;
     private String name;
@@ -52,4 +53,14 @@ public class Rider implements Serializable {
     public String getName() {
         return this.name;
     }
+
+    /**
+	 * Get the rider's year of birth.
+	 * 
+	 * @return The rider's year of birth.
+	 * 
+	 */
+    public int getYearOfBirth() {
+        return this.yearOfBirth;
+    }
 }
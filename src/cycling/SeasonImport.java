@@ -0,0 +1,124 @@
+package cycling;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of importing a season with SeasonImporter: the IDs given to the
+ * teams, riders, races and stages by name, how many of each were imported, and
+ * how long the import took.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public final class SeasonImport {
+
+	private final Map<String, Integer> teamIds;
+	private final Map<String, Integer> riderIds;
+	private final Map<String, Integer> raceIds;
+	private final Map<String, Integer> stageIds;
+	private final int segmentCount;
+	private final int resultCount;
+	private final long elapsedNanos;
+
+	SeasonImport(Map<String, Integer> teamIds, Map<String, Integer> riderIds, Map<String, Integer> raceIds,
+			Map<String, Integer> stageIds, int segmentCount, int resultCount, long elapsedNanos) {
+		this.teamIds = Collections.unmodifiableMap(teamIds);
+		this.riderIds = Collections.unmodifiableMap(riderIds);
+		this.raceIds = Collections.unmodifiableMap(raceIds);
+		this.stageIds = Collections.unmodifiableMap(stageIds);
+		this.segmentCount = segmentCount;
+		this.resultCount = resultCount;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Get the IDs of the imported teams.
+	 *
+	 * @return A map from team names to IDs.
+	 *
+	 */
+	public Map<String, Integer> getTeamIds() {
+		return this.teamIds;
+	}
+
+	/**
+	 * Get the IDs of the imported riders.
+	 *
+	 * @return A map from rider names to IDs.
+	 *
+	 */
+	public Map<String, Integer> getRiderIds() {
+		return this.riderIds;
+	}
+
+	/**
+	 * Get the IDs of the imported races.
+	 *
+	 * @return A map from race names to IDs.
+	 *
+	 */
+	public Map<String, Integer> getRaceIds() {
+		return this.raceIds;
+	}
+
+	/**
+	 * Get the IDs of the imported stages.
+	 *
+	 * @return A map from stage names to IDs.
+	 *
+	 */
+	public Map<String, Integer> getStageIds() {
+		return this.stageIds;
+	}
+
+	/**
+	 * Get the number of segments imported.
+	 *
+	 * @return The number of segments.
+	 *
+	 */
+	public int getSegmentCount() {
+		return this.segmentCount;
+	}
+
+	/**
+	 * Get the number of rider results imported.
+	 *
+	 * @return The number of results.
+	 *
+	 */
+	public int getResultCount() {
+		return this.resultCount;
+	}
+
+	/**
+	 * Get the time the import took, from reading the season to registering
+	 * the last result.
+	 *
+	 * @return The elapsed time in nanoseconds.
+	 *
+	 */
+	public long getElapsedNanos() {
+		return this.elapsedNanos;
+	}
+
+	/**
+	 * Get the number of rider results imported per second.
+	 *
+	 * @return The import's throughput in results per second.
+	 *
+	 */
+	public double getResultsPerSecond() {
+		return this.elapsedNanos == 0 ? 0 : this.resultCount * 1e9 / this.elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Imported %d teams, %d riders, %d races, %d stages, %d segments and %d results"
+				+ " in %.1f ms (%.0f results/s)", this.teamIds.size(), this.riderIds.size(), this.raceIds.size(),
+				this.stageIds.size(), this.segmentCount, this.resultCount, this.elapsedNanos / 1e6,
+				getResultsPerSecond());
+	}
+}
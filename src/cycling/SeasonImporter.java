@@ -0,0 +1,341 @@
+package cycling;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * SeasonImporter loads a whole season into a ConcurrentCyclingPortal, creating
+ * everything in file order and then registering results with one task per
+ * race.
+ * <p>
+ * A season is a text file with one record per line and tab-separated fields.
+ * Blank lines and lines starting with # are ignored. The records are:
+ * <pre>
+ * TEAM    name  description
+ * RIDER   team  name  yearOfBirth
+ * RACE    name  description
+ * STAGE   race  name  description  length  startTime  type
+ * CLIMB   stage location  type  averageGradient  length
+ * SPRINT  stage location
+ * RESULT  stage rider  checkpoint...
+ * </pre>
+ * where start times are ISO date-times, checkpoints are ISO times, and types are
+ * StageType and SegmentType names. Team, rider, race and stage names must be
+ * unique in the file, as later records refer to them by name. A stage is
+ * concluded once its segments are added, so its results must be listed with
+ * it.
+ * <p>
+ * Every team, rider, race, stage and segment is created on the calling thread
+ * in file order, which is cheap, so the same season is always given the same
+ * IDs. The stages are then concluded and their results registered with one
+ * task per race, on virtual threads where the JVM has them (Java 21 and
+ * later), and on a cached thread pool otherwise. Each stage's results are
+ * registered in file order in a single batch, so every classification ranks
+ * the same riders in the same order on every import.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public class SeasonImporter {
+
+	private final ConcurrentCyclingPortal portal;
+
+	private static final class TeamRecord {
+		private final String name;
+		private final String description;
+		private final List<String> riderNames = new ArrayList<String>();
+		private final List<Integer> riderYears = new ArrayList<Integer>();
+
+		TeamRecord(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+	}
+
+	private static final class RaceRecord {
+		private final String name;
+		private final String description;
+		private final List<StageRecord> stages = new ArrayList<StageRecord>();
+
+		RaceRecord(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+	}
+
+	private static final class StageRecord {
+		private final String[] fields;
+		private final List<String[]> segments = new ArrayList<String[]>();
+		private final List<String> riderNames = new ArrayList<String>();
+		private final List<LocalTime[]> checkpoints = new ArrayList<LocalTime[]>();
+
+		StageRecord(String[] fields) {
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Create an importer for a portal.
+	 *
+	 * @param portal The portal to import seasons into.
+	 *
+	 */
+	public SeasonImporter(ConcurrentCyclingPortal portal) {
+		this.portal = portal;
+	}
+
+	/**
+	 * Import a season from a file.
+	 *
+	 * @param filename Location of the season file.
+	 * @return The IDs of everything imported, and the import's throughput.
+	 * @throws IOException          If the file could not be read.
+	 * @throws InterruptedException If the thread was interrupted while waiting
+	 *                              for the import.
+	 *
+	 */
+	public SeasonImport importSeason(String filename) throws IOException, InterruptedException {
+		try (Reader reader = new FileReader(filename)) {
+			return importSeason(reader);
+		}
+	}
+
+	/**
+	 * Import a season. If the season is malformed, or the portal rejects any
+	 * part of it, the import stops with an IllegalArgumentException, and the
+	 * parts already imported stay in the portal.
+	 *
+	 * @param reader The season to read.
+	 * @return The IDs of everything imported, and the import's throughput.
+	 * @throws IOException          If the season could not be read.
+	 * @throws InterruptedException If the thread was interrupted while waiting
+	 *                              for the import.
+	 *
+	 */
+	public SeasonImport importSeason(Reader reader) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		Map<String, TeamRecord> teams = new LinkedHashMap<String, TeamRecord>();
+		Map<String, RaceRecord> races = new LinkedHashMap<String, RaceRecord>();
+		Map<String, StageRecord> stages = new LinkedHashMap<String, StageRecord>();
+		Map<String, Integer> riderLines = new LinkedHashMap<String, Integer>();
+		int segmentCount = 0;
+		int resultCount = 0;
+
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			if (line.isBlank() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			try {
+				switch (fields[0]) {
+				case "TEAM":
+					checkFields(fields, 3);
+					if (teams.putIfAbsent(fields[1], new TeamRecord(fields[1], fields[2])) != null) {
+						throw new IllegalArgumentException("The team's name was already used.");
+					}
+					break;
+				case "RIDER":
+					checkFields(fields, 4);
+					if (riderLines.putIfAbsent(fields[2], lineNumber) != null) {
+						throw new IllegalArgumentException("The rider's name was already used.");
+					}
+					TeamRecord team = find(teams, fields[1], "team");
+					team.riderNames.add(fields[2]);
+					team.riderYears.add(Integer.parseInt(fields[3]));
+					break;
+				case "RACE":
+					checkFields(fields, 3);
+					if (races.putIfAbsent(fields[1], new RaceRecord(fields[1], fields[2])) != null) {
+						throw new IllegalArgumentException("The race's name was already used.");
+					}
+					break;
+				case "STAGE":
+					checkFields(fields, 7);
+					RaceRecord race = find(races, fields[1], "race");
+					StageRecord stage = new StageRecord(fields);
+					if (stages.putIfAbsent(fields[2], stage) != null) {
+						throw new IllegalArgumentException("The stage's name was already used.");
+					}
+					race.stages.add(stage);
+					break;
+				case "CLIMB":
+					checkFields(fields, 6);
+					find(stages, fields[1], "stage").segments.add(fields);
+					segmentCount++;
+					break;
+				case "SPRINT":
+					checkFields(fields, 3);
+					find(stages, fields[1], "stage").segments.add(fields);
+					segmentCount++;
+					break;
+				case "RESULT":
+					checkFields(fields, 5);
+					StageRecord resultStage = find(stages, fields[1], "stage");
+					find(riderLines, fields[2], "rider");
+					LocalTime[] checkpoints = new LocalTime[fields.length - 3];
+					for (int i = 0; i < checkpoints.length; i++) {
+						checkpoints[i] = LocalTime.parse(fields[i + 3]);
+					}
+					resultStage.riderNames.add(fields[2]);
+					resultStage.checkpoints.add(checkpoints);
+					resultCount++;
+					break;
+				default:
+					throw new IllegalArgumentException("The record type was not recognised.");
+				}
+			} catch (RuntimeException e) {
+				String errorMessage = String.format("Line %d of the season was invalid: %s", lineNumber, e.getMessage());
+				throw new IllegalArgumentException(errorMessage, e);
+			}
+		}
+
+		Map<String, Integer> teamIds = new LinkedHashMap<String, Integer>();
+		Map<String, Integer> riderIds = new LinkedHashMap<String, Integer>();
+		Map<String, Integer> raceIds = new LinkedHashMap<String, Integer>();
+		Map<String, Integer> stageIds = new LinkedHashMap<String, Integer>();
+		try {
+			for (TeamRecord team : teams.values()) {
+				importTeam(team, teamIds, riderIds);
+			}
+			for (RaceRecord race : races.values()) {
+				importRace(race, raceIds, stageIds);
+			}
+		} catch (Exception e) {
+			throw new IllegalArgumentException("The season could not be imported: " + e.getMessage(), e);
+		}
+
+		// The maps are only read from here on, and the tasks are started
+		// after they are filled.
+		ExecutorService executor = newTaskExecutor();
+		try {
+			List<Callable<Void>> raceTasks = new ArrayList<Callable<Void>>();
+			for (RaceRecord race : races.values()) {
+				raceTasks.add(() -> {
+					registerRaceResults(race, riderIds, stageIds);
+					return null;
+				});
+			}
+			runAll(executor, raceTasks);
+		} finally {
+			executor.shutdown();
+		}
+
+		return new SeasonImport(teamIds, riderIds, raceIds, stageIds, segmentCount, resultCount,
+				System.nanoTime() - start);
+	}
+
+	private void importTeam(TeamRecord team, Map<String, Integer> teamIds, Map<String, Integer> riderIds)
+			throws Exception {
+		int teamId = this.portal.createTeam(team.name, team.description);
+		teamIds.put(team.name, teamId);
+		for (int i = 0; i < team.riderNames.size(); i++) {
+			int riderId = this.portal.createRider(teamId, team.riderNames.get(i), team.riderYears.get(i));
+			riderIds.put(team.riderNames.get(i), riderId);
+		}
+	}
+
+	private void importRace(RaceRecord race, Map<String, Integer> raceIds, Map<String, Integer> stageIds)
+			throws Exception {
+		int raceId = this.portal.createRace(race.name, race.description);
+		raceIds.put(race.name, raceId);
+		for (StageRecord stage : race.stages) {
+			String[] fields = stage.fields;
+			int stageId = this.portal.addStageToRace(raceId, fields[2], fields[3], Double.parseDouble(fields[4]),
+					LocalDateTime.parse(fields[5]), StageType.valueOf(fields[6]));
+			stageIds.put(fields[2], stageId);
+			for (String[] segment : stage.segments) {
+				if (segment[0].equals("CLIMB")) {
+					this.portal.addCategorizedClimbToStage(stageId, Double.valueOf(segment[2]),
+							SegmentType.valueOf(segment[3]), Double.valueOf(segment[4]), Double.valueOf(segment[5]));
+				} else {
+					this.portal.addIntermediateSprintToStage(stageId, Double.parseDouble(segment[2]));
+				}
+			}
+		}
+	}
+
+	private void registerRaceResults(RaceRecord race, Map<String, Integer> riderIds, Map<String, Integer> stageIds)
+			throws Exception {
+		for (StageRecord stage : race.stages) {
+			int stageId = stageIds.get(stage.fields[2]);
+			this.portal.concludeStagePreparation(stageId);
+			if (stage.riderNames.isEmpty()) {
+				continue;
+			}
+			int[] stageRiderIds = new int[stage.riderNames.size()];
+			for (int i = 0; i < stageRiderIds.length; i++) {
+				stageRiderIds[i] = riderIds.get(stage.riderNames.get(i));
+			}
+			this.portal.registerStageResults(stageId, stageRiderIds, stage.checkpoints.toArray(new LocalTime[0][]));
+		}
+	}
+
+	/**
+	 * Run tasks on an executor and wait for all of them to finish.
+	 *
+	 * @param executor The executor to run the tasks on.
+	 * @param tasks    The tasks to run.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 *
+	 */
+	private static void runAll(ExecutorService executor, List<Callable<Void>> tasks) throws InterruptedException {
+		for (Future<Void> future : executor.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				throw new IllegalArgumentException("The season could not be imported: " + cause.getMessage(), cause);
+			}
+		}
+	}
+
+	/**
+	 * Create an executor that runs each task on a new virtual thread, falling
+	 * back to a cached pool of platform threads on JVMs without them.
+	 *
+	 * @return The executor.
+	 *
+	 */
+	static ExecutorService newTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private static void checkFields(String[] fields, int minimum) {
+		if (fields.length < minimum) {
+			String errorMessage = String.format("Expected at least %d fields but found %d.", minimum, fields.length);
+			throw new IllegalArgumentException(errorMessage);
+		}
+	}
+
+	private static <T> T find(Map<String, T> records, String name, String kind) {
+		T record = records.get(name);
+		if (record == null) {
+			throw new IllegalArgumentException(String.format("The %s %s was not declared before it was used.", kind, name));
+		}
+		return record;
+	}
+}
@@ -12,6 +12,7 @@ import java.io.Serializable;
  */
 
 public class Segment implements Serializable {
+    private static final long serialVersionUID = -227194368800210891L;
 
     private int stageId;
     private int segmentId;
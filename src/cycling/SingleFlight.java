@@ -0,0 +1,141 @@
+package cycling;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Shares one computation of a value between every thread that asks for the
+ * same version of it. The first thread to ask for a version computes it, and
+ * threads asking for that version meanwhile wait for the same result instead of
+ * computing their own. Once computed, the value keeps being served for its
+ * version until a different version is asked for, so the latest computation is
+ * also the cache.
+ * <p>
+ * Versions are compared for equality, so callers must make sure that a
+ * version is never reused for different contents.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+class SingleFlight<T> {
+
+	/**
+	 * A computation of one version of the value, which may still be running.
+	 */
+	private static final class Flight<T> {
+		private final long version;
+		private final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		Flight(long version) {
+			this.version = version;
+		}
+	}
+
+	private final AtomicReference<Flight<T>> latest = new AtomicReference<Flight<T>>();
+	private final AtomicLong computations = new AtomicLong();
+	private final AtomicLong sharedResults = new AtomicLong();
+
+	/**
+	 * Get a version of the value, computing it only if no other thread has
+	 * computed or is computing the same version.
+	 *
+	 * @param version The version of the value wanted.
+	 * @param compute Computes the value for the version.
+	 * @return The value, which is shared with every other caller of the same
+	 *         version and must not be modified.
+	 *
+	 */
+	public T get(long version, Supplier<T> compute) {
+		while (true) {
+			Flight<T> flight = this.latest.get();
+			if (flight != null && flight.version == version) {
+				this.sharedResults.incrementAndGet();
+				return await(flight);
+			}
+			Flight<T> ownFlight = new Flight<T>(version);
+			if (!this.latest.compareAndSet(flight, ownFlight)) {
+				continue;
+			}
+			this.computations.incrementAndGet();
+			try {
+				T value = compute.get();
+				ownFlight.result.complete(value);
+				return value;
+			} catch (RuntimeException | Error e) {
+				// Let the next caller try again rather than share the failure.
+				this.latest.compareAndSet(ownFlight, null);
+				ownFlight.result.completeExceptionally(e);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Forget the latest value, so the next caller computes it again whatever
+	 * its version.
+	 *
+	 */
+	public void clear() {
+		this.latest.set(null);
+	}
+
+	/**
+	 * Get the number of values computed.
+	 *
+	 * @return The number of computations.
+	 *
+	 */
+	public long getComputations() {
+		return this.computations.get();
+	}
+
+	/**
+	 * Get the number of callers served a value computed by another caller,
+	 * whether it was still being computed or already cached.
+	 *
+	 * @return The number of shared results.
+	 *
+	 */
+	public long getSharedResults() {
+		return this.sharedResults.get();
+	}
+
+	/**
+	 * Wait for a flight's value, rethrowing its failure on this thread.
+	 *
+	 * @param flight The flight to wait for.
+	 * @return The flight's value.
+	 *
+	 */
+	private T await(Flight<T> flight) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return flight.result.get();
+				} catch (InterruptedException e) {
+					// The value is needed to answer the call, so keep waiting
+					// and restore the interrupt afterwards.
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package cycling;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.zip.CRC32C;
+
+/**
+ * Decodes the values written by a SnapshotWriter from a buffer, which may be
+ * a memory-mapped file. A value running past the end of the buffer is reported
+ * as an IOException, as it means the snapshot was truncated or corrupt.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+class SnapshotReader {
+
+	private final ByteBuffer buffer;
+
+	public SnapshotReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Check if any bytes are left to read.
+	 *
+	 * @return True if the buffer has bytes left.
+	 *
+	 */
+	public boolean hasRemaining() {
+		return this.buffer.hasRemaining();
+	}
+
+	/**
+	 * Get the number of bytes left to read.
+	 *
+	 * @return The number of bytes left.
+	 *
+	 */
+	public int remaining() {
+		return this.buffer.remaining();
+	}
+
+	/**
+	 * Compute the CRC-32C checksum of the bytes left to read, without reading
+	 * them.
+	 *
+	 * @return The checksum.
+	 *
+	 */
+	public int checksum() {
+		CRC32C crc = new CRC32C();
+		crc.update(this.buffer.slice());
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Get the position of the next byte to read.
+	 *
+	 * @return The buffer's position.
+	 *
+	 */
+	public int position() {
+		return this.buffer.position();
+	}
+
+	/**
+	 * Take the next bytes as a reader of their own, and skip past them.
+	 *
+	 * @param length The number of bytes to take.
+	 * @return A reader of the bytes.
+	 * @throws IOException If fewer bytes are left.
+	 *
+	 */
+	public SnapshotReader slice(int length) throws IOException {
+		if (length < 0 || length > this.buffer.remaining()) {
+			throw new IOException("The snapshot was truncated.");
+		}
+		ByteBuffer slice = this.buffer.slice();
+		slice.limit(length);
+		this.buffer.position(this.buffer.position() + length);
+		return new SnapshotReader(slice);
+	}
+
+	/**
+	 * Get a reader of the same bytes with its own position, starting from this
+	 * reader's position.
+	 *
+	 * @return A new reader of the remaining bytes.
+	 *
+	 */
+	public SnapshotReader duplicate() {
+		return new SnapshotReader(this.buffer.slice());
+	}
+
+	/**
+	 * Copy the remaining bytes to a writer without reading past them.
+	 *
+	 * @param out The writer to copy to.
+	 *
+	 */
+	public void copyTo(SnapshotWriter out) {
+		out.writeBytes(this.buffer.slice());
+	}
+
+	public int readByte() throws IOException {
+		try {
+			return this.buffer.get() & 0xFF;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The snapshot was truncated.", e);
+		}
+	}
+
+	public int readFixedInt() throws IOException {
+		try {
+			return this.buffer.getInt();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("The snapshot was truncated.", e);
+		}
+	}
+
+	public int readVarInt() throws IOException {
+		long value = readVarLong();
+		// Only non-negative ints are written as varints.
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("The snapshot was corrupt.");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Read the number of items that follow, checking that that many items
+	 * could fit in the bytes left, so that a corrupt count is reported before
+	 * anything is allocated for it.
+	 *
+	 * @param minimumItemSize The fewest bytes each item takes, at least one.
+	 * @return The number of items.
+	 * @throws IOException If the count was corrupt.
+	 *
+	 */
+	public int readCount(long minimumItemSize) throws IOException {
+		int count = readVarInt();
+		if (count > this.buffer.remaining() / minimumItemSize) {
+			throw new IOException("The snapshot was corrupt.");
+		}
+		return count;
+	}
+
+	public long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("The snapshot was corrupt.");
+	}
+
+	public long readSignedVarLong() throws IOException {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public long readFixedLong() throws IOException {
+		long high = readFixedInt() & 0xFFFFFFFFL;
+		long low = readFixedInt() & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readFixedLong());
+	}
+
+	public String readString() throws IOException {
+		int length = readVarInt() - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > this.buffer.remaining()) {
+			throw new IOException("The snapshot was truncated.");
+		}
+		byte[] encoded = new byte[length];
+		this.buffer.get(encoded);
+		return new String(encoded, StandardCharsets.UTF_8);
+	}
+
+	public LocalDateTime readDateTime() throws IOException {
+		if (readByte() == 0) {
+			return null;
+		}
+		long epochSecond = readSignedVarLong();
+		int nano = readVarInt();
+		return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+	}
+}
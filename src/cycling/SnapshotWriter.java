@@ -0,0 +1,226 @@
+package cycling;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Growable buffer for encoding a section of a binary portal snapshot. Unsigned
+ * integers are written as varints, seven bits per byte with the high bit set
+ * on every byte but the last, so small IDs and counts take a single byte.
+ * Signed values that are usually small, such as the difference between two
+ * checkpoint times, are zigzag encoded first.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+class SnapshotWriter {
+
+	private byte[] bytes;
+	private int size;
+
+	public SnapshotWriter() {
+		this(4096);
+	}
+
+	/**
+	 * Create a buffer with room for a number of bytes before it has to grow.
+	 *
+	 * @param capacity The initial capacity in bytes.
+	 *
+	 */
+	public SnapshotWriter(int capacity) {
+		this.bytes = new byte[capacity];
+	}
+
+	/**
+	 * Get the number of bytes written since the buffer was last cleared.
+	 *
+	 * @return The number of bytes in the buffer.
+	 *
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Discard the bytes written, keeping the buffer's capacity.
+	 *
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	/**
+	 * Write the buffer's bytes to a channel.
+	 *
+	 * @param channel The channel to write to.
+	 * @throws IOException If the channel could not be written to.
+	 *
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(this.bytes, 0, this.size);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Compute the CRC-32C checksum of the buffer's bytes.
+	 *
+	 * @return The checksum.
+	 *
+	 */
+	public int checksum() {
+		CRC32C crc = new CRC32C();
+		crc.update(this.bytes, 0, this.size);
+		return (int) crc.getValue();
+	}
+
+	public void writeByte(int value) {
+		ensureCapacity(1);
+		this.bytes[this.size++] = (byte) value;
+	}
+
+	public void writeBytes(byte[] values) {
+		ensureCapacity(values.length);
+		System.arraycopy(values, 0, this.bytes, this.size, values.length);
+		this.size += values.length;
+	}
+
+	/**
+	 * Write the bytes of another buffer.
+	 *
+	 * @param other The buffer to copy.
+	 *
+	 */
+	public void writeBytes(SnapshotWriter other) {
+		ensureCapacity(other.size);
+		System.arraycopy(other.bytes, 0, this.bytes, this.size, other.size);
+		this.size += other.size;
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer, which may be a memory-mapped file.
+	 *
+	 * @param values The buffer to copy, which is read to its limit.
+	 *
+	 */
+	public void writeBytes(ByteBuffer values) {
+		int length = values.remaining();
+		ensureCapacity(length);
+		values.get(this.bytes, this.size, length);
+		this.size += length;
+	}
+
+	/**
+	 * Write an int in a fixed four bytes, big-endian.
+	 *
+	 * @param value The int to write.
+	 *
+	 */
+	public void writeFixedInt(int value) {
+		ensureCapacity(4);
+		this.bytes[this.size++] = (byte) (value >>> 24);
+		this.bytes[this.size++] = (byte) (value >>> 16);
+		this.bytes[this.size++] = (byte) (value >>> 8);
+		this.bytes[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Write a long in a fixed eight bytes, big-endian.
+	 *
+	 * @param value The long to write.
+	 *
+	 */
+	public void writeFixedLong(long value) {
+		writeFixedInt((int) (value >>> 32));
+		writeFixedInt((int) value);
+	}
+
+	/**
+	 * Write a non-negative int as a varint.
+	 *
+	 * @param value The int to write.
+	 *
+	 */
+	public void writeVarInt(int value) {
+		writeVarLong(value & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Write a non-negative long as a varint.
+	 *
+	 * @param value The long to write.
+	 *
+	 */
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			this.bytes[this.size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.bytes[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Write a signed long as a zigzag encoded varint, so that values close to
+	 * zero take few bytes whatever their sign.
+	 *
+	 * @param value The long to write.
+	 *
+	 */
+	public void writeSignedVarLong(long value) {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	public void writeDouble(double value) {
+		writeFixedLong(Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * Write a string as its length in UTF-8 bytes plus one, followed by the
+	 * bytes. A null string is written as a length of 0.
+	 *
+	 * @param value The string to write, which may be null.
+	 *
+	 */
+	public void writeString(String value) {
+		if (value == null) {
+			writeVarInt(0);
+			return;
+		}
+		byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(encoded.length + 1);
+		writeBytes(encoded);
+	}
+
+	/**
+	 * Write a date and time as seconds since the epoch and nanoseconds, or a
+	 * single 0 byte for null.
+	 *
+	 * @param value The date and time to write, which may be null.
+	 *
+	 */
+	public void writeDateTime(LocalDateTime value) {
+		if (value == null) {
+			writeByte(0);
+			return;
+		}
+		writeByte(1);
+		writeSignedVarLong(value.toEpochSecond(ZoneOffset.UTC));
+		writeVarInt(value.getNano());
+	}
+
+	private void ensureCapacity(int extra) {
+		if (this.size + extra > this.bytes.length) {
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + extra));
+		}
+	}
+}
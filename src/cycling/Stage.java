@@ -1,11 +1,26 @@
 package cycling;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class to represent stages in races.
@@ -16,6 +31,24 @@ import java.util.ArrayList;
  */
 
 public class Stage implements Serializable {
+    // Java serialization keeps the fields of the first version of the stage,
+    // with each rider's results as a list of checkpoint times in the order
+    // they were added, plus the partial results added since.
+    private static final long serialVersionUID = 2915798385639645159L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("raceId", int.class),
+        new ObjectStreamField("stageId", int.class),
+        new ObjectStreamField("name", String.class),
+        new ObjectStreamField("description", String.class),
+        new ObjectStreamField("length", double.class),
+        new ObjectStreamField("startTime", LocalDateTime.class),
+        new ObjectStreamField("type", StageType.class),
+        new ObjectStreamField("state", String.class),
+        new ObjectStreamField("segments", ArrayList.class),
+        new ObjectStreamField("results", LinkedHashMap.class),
+        new ObjectStreamField("partialResults", IntMap.class)
+    };
+
     private int raceId;
     private int stageId;
     private String name;
@@ -25,7 +58,54 @@ public class Stage implements Serializable {
     private StageType type;
     private String state;
     private ArrayList<Segment> segments = new ArrayList<Segment>();
-    private LinkedHashMap<Integer, ArrayList<LocalTime>> results = new LinkedHashMap<Integer, ArrayList<LocalTime>>();
+    // Results are stored column-wise: row r holds the results of rider
+    // resultRiderIds[r], with its checkpoint times in nanoseconds of the day at
+    // resultCheckpoints[r*checkpointCount ... (r+1)*checkpointCount-1]. Rows are
+    // kept in the order the results were added, which the rankings rely on to
+    // break ties. Deleted rows are marked FREE_ROW and reused on compaction.
+    //
+    // Results are added concurrently under the shared side of resultsLock: a
+    // row is claimed by compare-and-set on rowCount, its checkpoints written,
+    // and then its rider ID published with release semantics, so a claimed row
+    // reads as PENDING_ROW until its results are complete. Growing, compacting
+    // and deleting take the exclusive side. A rider's row is claimed in the
+    // lock-free resultRows before it is published, so exactly one of several
+    // concurrent results for the same rider is kept.
+    private static final int FREE_ROW = -1;
+    private static final int PENDING_ROW = -2;
+    private static final VarHandle RIDER_IDS = MethodHandles.arrayElementVarHandle(int[].class);
+    private int checkpointCount;
+    private int[] resultRiderIds = new int[0];
+    private long[] resultCheckpoints = new long[0];
+    private AtomicInteger rowCount = new AtomicInteger();
+    private AtomicInteger resultCount = new AtomicInteger();
+    private transient AtomicIntIntMap resultRows = new AtomicIntIntMap(0);
+    // Results still waiting for some of their checkpoint times, kept apart from
+    // the complete rows and guarded by their own monitor so that they never
+    // hold up queries on complete results. Unknown times are MISSING_TIME.
+    private static final long MISSING_TIME = -1;
+    // The coarsest unit snapshots write checkpoint times in, one second. Finer
+    // units are a thousand times smaller each, down to a nanosecond.
+    private static final long COARSEST_TIME_UNIT = 1000000000L;
+    private IntMap<long[]> partialResults = new IntMap<long[]>();
+    private transient ReentrantReadWriteLock resultsLock = new ReentrantReadWriteLock();
+    // Bumped on every change that can affect the classification, so a cached
+    // classification is only served while its version still matches.
+    private transient AtomicLong modificationCount = new AtomicLong();
+    // The latest classification, computed once per version however many
+    // threads ask for it at the same time.
+    private transient SingleFlight<StageClassification> classifications = new SingleFlight<StageClassification>();
+    // The classification most recently published for lock-free readers, and
+    // the number of outstanding requests to publish a newer one.
+    private transient volatile StageClassification publishedClassification;
+    private transient AtomicInteger publishRequests = new AtomicInteger();
+    // Live leaderboards told about every result added to or deleted from the
+    // stage, on the thread that changed it.
+    private transient CopyOnWriteArrayList<StageLeaderboard> leaderboards = new CopyOnWriteArrayList<StageLeaderboard>();
+    // The stage's results in a memory-mapped snapshot, left unread until the
+    // results are first needed. Null once they have been read, and guarded
+    // by the partial results' monitor while they are.
+    private transient volatile SnapshotReader unloadedResults;
 
     public Stage(int raceId, int stageId, String name, String description, double length, LocalDateTime startTime, StageType type) {
         this.raceId = raceId;
@@ -36,6 +116,8 @@ public class Stage implements Serializable {
         this.startTime = startTime;
         this.type = type;
         this.state = "preparation";
+        this.publishedClassification = new StageClassification(0, new int[0], new long[0], new long[0],
+            new int[0], new int[0]);
     }
 
     /**
@@ -78,6 +160,26 @@ public class Stage implements Serializable {
         return this.length;
     }
 
+    /**
+	 * Get the stage's description.
+	 * 
+	 * @return The stage's description.
+	 * 
+	 */
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+	 * Get the stage's start time.
+	 * 
+	 * @return The stage's start time.
+	 * 
+	 */
+    public LocalDateTime getStartTime() {
+        return this.startTime;
+    }
+
     /**
 	 * Get the stage's type.
 	 * 
@@ -104,7 +206,7 @@ public class Stage implements Serializable {
      * @param segment The Segment object to add.
 	 * 
 	 */
-    public void addSegment(Segment segment) {
+    public synchronized void addSegment(Segment segment) {
         // Ensures that the segments are stored in chronological order
         int sortedIndex = 0;
         for (Segment comparison : this.segments) {
@@ -115,6 +217,7 @@ public class Stage implements Serializable {
         }
 
         this.segments.add(sortedIndex, segment);
+        this.modificationCount.incrementAndGet();
     }
 
     /**
@@ -123,8 +226,9 @@ public class Stage implements Serializable {
      * @param segment The Segment object to remove.
 	 * 
 	 */
-    public void removeSegment(Segment segment) {
+    public synchronized void removeSegment(Segment segment) {
         this.segments.remove(segment);
+        this.modificationCount.incrementAndGet();
     }
 
     /**
@@ -157,8 +261,9 @@ public class Stage implements Serializable {
      * @param state The state to change to.
 	 * 
 	 */
-    public void setState(String state) {
+    public synchronized void setState(String state) {
         this.state = state;
+        this.modificationCount.incrementAndGet();
     }
 
 	/**
@@ -194,131 +299,1055 @@ public class Stage implements Serializable {
 	 * 
 	 * @param riderId Rider's ID.
      * @param checkpoints The LocalTime array of checkpoints.
+	 * @throws DuplicatedResultException If the rider already has results in the
+     *                                   stage.
 	 * 
 	 */
-    public void addResults(int riderId, LocalTime[] checkpoints) {
-        ArrayList<LocalTime> resultList = new ArrayList<LocalTime>();
-        for (LocalTime result : checkpoints) {
-            resultList.add(result);
+    public void addResults(int riderId, LocalTime[] checkpoints) throws DuplicatedResultException {
+        long[] nanos = new long[checkpoints.length];
+        for (int i = 0; i < checkpoints.length; i++) {
+            nanos[i] = checkpoints[i].toNanoOfDay();
         }
-		this.results.put(riderId, resultList);
+        addResults(riderId, nanos);
     }
 
 	/**
-	 * Delete a rider's results from the stage
+	 * Add a rider's results to the stage. Many threads may add results at
+     * once; each claims the next free row, so the results are ranked in the
+     * order their rows were claimed when riders tie. Any partial results the
+     * rider had are dropped.
 	 * 
 	 * @param riderId Rider's ID.
+     * @param checkpoints The checkpoint times in nanoseconds of the day.
+	 * @throws DuplicatedResultException If the rider already has results in the
+     *                                   stage.
 	 * 
 	 */
-    public void deleteResults(int riderId) {
-		this.results.remove(riderId);
+    public void addResults(int riderId, long[] checkpoints) throws DuplicatedResultException {
+        loadResults();
+        storeRiderResults(riderId, checkpoints);
+        dropPartialResults(riderId);
+        flushLeaderboards();
     }
 
-    /**
-	 * Get a rider's results.
+	/**
+	 * Claim a row for a rider's results and store them, making room for more
+     * rows as needed. The stage's leaderboards are told about the result but
+     * not flushed, so the caller may still hold the partial results.
 	 * 
 	 * @param riderId Rider's ID.
-	 * @return A LocalTime array of the rider's results.
+     * @param checkpoints The checkpoint times in nanoseconds of the day.
+	 * @throws DuplicatedResultException If the rider already has results in the
+     *                                   stage.
 	 * 
 	 */
-    public LocalTime[] getResults(int riderId) {
-        if (!this.results.containsKey(riderId)) {
-            return new LocalTime[0];
+    private void storeRiderResults(int riderId, long[] checkpoints) throws DuplicatedResultException {
+        while (true) {
+            this.resultsLock.readLock().lock();
+            try {
+                if (checkpoints.length == this.checkpointCount) {
+                    int row = claimRow();
+                    if (row >= 0) {
+                        storeResults(row, riderId, checkpoints);
+                        break;
+                    }
+                }
+            } finally {
+                this.resultsLock.readLock().unlock();
+            }
+            prepareRows(checkpoints.length);
+        }
+    }
+
+	/**
+	 * Drop the partial results of riders whose full results were just added.
+     * Once a rider has results no more times can be added for them, so the
+     * partial results would otherwise be kept, and saved, forever. This is
+     * called after the results lock is released, as addCheckpoint holds the
+     * partial results while it takes the results lock.
+	 * 
+	 * @param riderIds The riders' IDs.
+	 * 
+	 */
+    private void dropPartialResults(int... riderIds) {
+        synchronized (this.partialResults) {
+            for (int riderId : riderIds) {
+                this.partialResults.remove(riderId);
+            }
+        }
+    }
+
+	/**
+	 * Claim the next unused result row.
+	 * 
+	 * @return The claimed row, or -1 if every row is in use.
+	 * 
+	 */
+    private int claimRow() {
+        while (true) {
+            int row = this.rowCount.get();
+            if (row == this.resultRiderIds.length) {
+                return -1;
+            }
+            if (this.rowCount.compareAndSet(row, row + 1)) {
+                return row;
+            }
         }
-        ArrayList<LocalTime> riderResults = this.results.get(riderId);
-        LocalTime[] returnResults = new LocalTime[riderResults.size()-1];
-        for (int i = 1; i < riderResults.size()-1; i++) {
-            returnResults[i-1] = riderResults.get(i);
+    }
+
+	/**
+	 * Store a rider's results in a claimed row and publish the row. If the
+     * rider already has a row, the claimed row is freed instead.
+	 * 
+	 * @param row The claimed row.
+	 * @param riderId Rider's ID.
+     * @param checkpoints The checkpoint times in nanoseconds of the day.
+	 * @throws DuplicatedResultException If the rider already has results in the
+     *                                   stage.
+	 * 
+	 */
+    private void storeResults(int row, int riderId, long[] checkpoints) throws DuplicatedResultException {
+        if (!this.resultRows.putIfAbsent(riderId, row)) {
+            RIDER_IDS.setRelease(this.resultRiderIds, row, FREE_ROW);
+            throw new DuplicatedResultException("The rider already has results for this stage.");
         }
-        LocalTime elapsed = LocalTime.ofNanoOfDay(getRiderElapsedTime(riderId));
-        returnResults[riderResults.size()-2] = elapsed;
-        return returnResults;
+        System.arraycopy(checkpoints, 0, this.resultCheckpoints, row * this.checkpointCount, this.checkpointCount);
+        RIDER_IDS.setRelease(this.resultRiderIds, row, riderId);
+        this.resultCount.incrementAndGet();
+        this.modificationCount.incrementAndGet();
+        notifyResultAdded(riderId, row);
     }
 
-    /**
-	 * Get a Rider's elapsed time in the stage.
+	/**
+	 * Make room for results with a number of checkpoints, holding the stage's
+     * results exclusively. The first result decides how many checkpoints each
+     * row holds.
+	 * 
+     * @param width The number of checkpoints in the results.
+	 * 
+	 */
+    private void prepareRows(int width) {
+        this.resultsLock.writeLock().lock();
+        try {
+            if (width != this.checkpointCount) {
+                if (this.resultCount.get() != 0) {
+                    throw new IllegalArgumentException("The results had the wrong number of checkpoints.");
+                }
+                this.checkpointCount = width;
+                this.resultCheckpoints = new long[this.resultRiderIds.length * width];
+                Arrays.fill(this.resultRiderIds, PENDING_ROW);
+                this.rowCount.set(0);
+                this.resultRows = new AtomicIntIntMap(this.resultRiderIds.length);
+                notifyRowsMoved();
+            } else if (this.rowCount.get() == this.resultRiderIds.length) {
+                growResultRows(1);
+            }
+        } finally {
+            this.resultsLock.writeLock().unlock();
+        }
+    }
+
+	/**
+	 * Make room for more result rows, compacting the rows in place when at
+     * least half of them have been deleted and doubling the capacity otherwise.
+     * The caller must hold the stage's results exclusively.
+	 * 
+     * @param extraRows The number of rows needed after the results kept.
+	 * 
+	 */
+    private void growResultRows(int extraRows) {
+        int capacity = this.resultRiderIds.length;
+        int needed = this.resultCount.get() + extraRows;
+        if (needed > capacity / 2) {
+            capacity = Math.max(8, capacity * 2);
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+        }
+        int[] riderIds = new int[capacity];
+        long[] checkpoints = new long[capacity * this.checkpointCount];
+        AtomicIntIntMap rows = new AtomicIntIntMap(capacity);
+        int newRow = 0;
+        for (int row = 0; row < this.rowCount.get(); row++) {
+            if (this.resultRiderIds[row] == FREE_ROW) {
+                continue;
+            }
+            riderIds[newRow] = this.resultRiderIds[row];
+            System.arraycopy(this.resultCheckpoints, row * this.checkpointCount, checkpoints,
+                newRow * this.checkpointCount, this.checkpointCount);
+            rows.putIfAbsent(riderIds[newRow], newRow);
+            newRow++;
+        }
+        Arrays.fill(riderIds, newRow, capacity, PENDING_ROW);
+        this.resultRiderIds = riderIds;
+        this.resultCheckpoints = checkpoints;
+        this.resultRows = rows;
+        if (newRow != this.rowCount.get()) {
+            notifyRowsMoved();
+        }
+        this.rowCount.set(newRow);
+    }
+
+	/**
+	 * Add the results of many riders to the stage at once. Either every
+     * rider's results are added, or none are, and the stage's classification
+     * is invalidated only once. Any partial results the riders had are
+     * dropped.
+	 * 
+	 * @param riderIds The riders' IDs.
+     * @param checkpoints The checkpoint times of each rider in nanoseconds of
+     *                    the day, in the same order as the riders.
+	 * @throws DuplicatedResultException If a rider already has results in the
+     *                                   stage, or appears twice.
+	 * 
+	 */
+    public void addResults(int[] riderIds, long[][] checkpoints) throws DuplicatedResultException {
+        if (riderIds.length == 0) {
+            return;
+        }
+        int width = checkpoints[0].length;
+        for (long[] row : checkpoints) {
+            if (row.length != width) {
+                throw new IllegalArgumentException("The results had different numbers of checkpoints.");
+            }
+        }
+        loadResults();
+        this.resultsLock.writeLock().lock();
+        try {
+            IntIntMap batch = new IntIntMap();
+            for (int i = 0; i < riderIds.length; i++) {
+                if (findRow(riderIds[i]) >= 0 || batch.get(riderIds[i]) >= 0) {
+                    throw new DuplicatedResultException("The rider already has results for this stage.");
+                }
+                batch.put(riderIds[i], i);
+            }
+            if (width != this.checkpointCount) {
+                prepareRows(width);
+            }
+            if (this.rowCount.get() + riderIds.length > this.resultRiderIds.length) {
+                growResultRows(riderIds.length);
+            }
+            for (int i = 0; i < riderIds.length; i++) {
+                int row = this.rowCount.getAndIncrement();
+                System.arraycopy(checkpoints[i], 0, this.resultCheckpoints, row * width, width);
+                this.resultRiderIds[row] = riderIds[i];
+                this.resultRows.putIfAbsent(riderIds[i], row);
+            }
+            this.resultCount.addAndGet(riderIds.length);
+            this.modificationCount.incrementAndGet();
+            for (int i = 0; i < riderIds.length; i++) {
+                notifyResultAdded(riderIds[i], this.resultRows.get(riderIds[i]));
+            }
+        } finally {
+            this.resultsLock.writeLock().unlock();
+        }
+        dropPartialResults(riderIds);
+        flushLeaderboards();
+    }
+
+	/**
+	 * Add one checkpoint time of a rider's results. The times are kept in a
+     * partial result until every checkpoint is known, which in practice is
+     * when the finish time arrives, and the result is then added to the stage
+     * like any other.
+	 * 
+	 * @param riderId Rider's ID.
+	 * @param checkpoint The index of the checkpoint, where 0 is the start and
+     *                   the last index is the finish.
+	 * @param time The checkpoint time in nanoseconds of the day.
+	 * @return True if the time completed the rider's results.
+	 * @throws DuplicatedResultException If the rider already has results in the
+     *                                   stage, or already has a time for the
+     *                                   checkpoint.
+	 * 
+	 */
+    public boolean addCheckpoint(int riderId, int checkpoint, long time) throws DuplicatedResultException {
+        loadResults();
+        if (!addPartialCheckpoint(riderId, checkpoint, time)) {
+            return false;
+        }
+        flushLeaderboards();
+        return true;
+    }
+
+	/**
+	 * Add one checkpoint time to a rider's partial result, storing the result
+     * once it is complete. The leaderboards are flushed by the caller, after
+     * the partial results are released.
 	 * 
 	 * @param riderId Rider's ID.
-	 * @return The rider's elapsed time in nanoseconds.
+	 * @param checkpoint The index of the checkpoint.
+	 * @param time The checkpoint time in nanoseconds of the day.
+	 * @return True if the time completed the rider's results.
+	 * @throws DuplicatedResultException If the rider already has results in the
+     *                                   stage, or already has a time for the
+     *                                   checkpoint.
 	 * 
 	 */
-    public long getRiderElapsedTime(int riderId) {
-        assert (this.results.containsKey(riderId));
-        LocalTime startTime = this.results.get(riderId).get(0);
-        int endIndex = this.segments.size() + 1;
-        LocalTime endTime = this.results.get(riderId).get(endIndex);
-        long elapsedTime = endTime.toNanoOfDay() - startTime.toNanoOfDay();
+    private boolean addPartialCheckpoint(int riderId, int checkpoint, long time) throws DuplicatedResultException {
+        synchronized (this.partialResults) {
+            if (hasResults(riderId)) {
+                throw new DuplicatedResultException("The rider already has results for this stage.");
+            }
+            long[] checkpoints = this.partialResults.get(riderId);
+            if (checkpoints == null) {
+                checkpoints = new long[this.segments.size() + 2];
+                Arrays.fill(checkpoints, MISSING_TIME);
+                this.partialResults.put(riderId, checkpoints);
+            }
+            if (checkpoints[checkpoint] != MISSING_TIME) {
+                throw new DuplicatedResultException("The rider already has a time for this checkpoint.");
+            }
+            checkpoints[checkpoint] = time;
+            for (long checkpointTime : checkpoints) {
+                if (checkpointTime == MISSING_TIME) {
+                    return false;
+                }
+            }
+            // Promote the row while still holding the partial results, so no
+            // other time for the rider can start a new partial row meanwhile.
+            this.partialResults.remove(riderId);
+            storeRiderResults(riderId, checkpoints);
+            return true;
+        }
+    }
+
+	/**
+	 * Delete a rider's results from the stage, along with any partial results.
+	 * 
+	 * @param riderId Rider's ID.
+	 * 
+	 */
+    public void deleteResults(int riderId) {
+        loadResults();
+        synchronized (this.partialResults) {
+            this.partialResults.remove(riderId);
+        }
+        this.resultsLock.writeLock().lock();
+        try {
+            int row = this.resultRows.remove(riderId);
+            if (row < 0) {
+                return;
+            }
+            this.resultRiderIds[row] = FREE_ROW;
+            this.resultCount.decrementAndGet();
+            this.modificationCount.incrementAndGet();
+            for (StageLeaderboard leaderboard : this.leaderboards) {
+                leaderboard.resultRemoved(riderId);
+            }
+        } finally {
+            this.resultsLock.writeLock().unlock();
+        }
+        flushLeaderboards();
+    }
+
+	/**
+	 * Check if a rider has results in the stage.
+	 * 
+	 * @param riderId Rider's ID.
+	 * @return True if the rider has results in the stage.
+	 * 
+	 */
+    public boolean hasResults(int riderId) {
+        loadResults();
+        this.resultsLock.readLock().lock();
+        try {
+            return findRow(riderId) >= 0;
+        } finally {
+            this.resultsLock.readLock().unlock();
+        }
+    }
+
+	/**
+	 * Find a rider's published result row. The caller must hold the stage's
+     * results lock.
+	 * 
+	 * @param riderId Rider's ID.
+	 * @return The rider's row, or -1 if the rider has no published results.
+	 * 
+	 */
+    private int findRow(int riderId) {
+        int row = this.resultRows.get(riderId);
+        if (row < 0 || (int) RIDER_IDS.getAcquire(this.resultRiderIds, row) != riderId) {
+            return -1;
+        }
+        return row;
+    }
+
+	/**
+	 * Get the published rows holding results, in the order they were claimed.
+     * The caller must hold the stage's results lock.
+	 * 
+	 * @return An int array of the result rows.
+	 * 
+	 */
+    private int[] getResultRows() {
+        int rowCount = this.rowCount.get();
+        int[] rows = new int[rowCount];
+        int i = 0;
+        for (int row = 0; row < rowCount; row++) {
+            int riderId = (int) RIDER_IDS.getAcquire(this.resultRiderIds, row);
+            if (riderId != FREE_ROW && riderId != PENDING_ROW) {
+                rows[i] = row;
+                i++;
+            }
+        }
+        return Arrays.copyOf(rows, i);
+    }
+
+	/**
+	 * Get the time of one checkpoint in a result row.
+	 * 
+	 * @param row The result row.
+	 * @param checkpoint The index of the checkpoint.
+	 * @return The checkpoint time in nanoseconds of the day.
+	 * 
+	 */
+    private long getCheckpoint(int row, int checkpoint) {
+        return this.resultCheckpoints[row * this.checkpointCount + checkpoint];
+    }
+
+	/**
+	 * Get the elapsed time of a result row.
+	 * 
+	 * @param row The result row.
+	 * @return The elapsed time in nanoseconds.
+	 * 
+	 */
+    private long getElapsedTime(int row) {
+        long elapsedTime = getCheckpoint(row, this.checkpointCount - 1) - getCheckpoint(row, 0);
         if (elapsedTime < 0) {
             elapsedTime += 24L*60L*60L*1000000000L;
         }
         return elapsedTime;
     }
 
+	/**
+	 * Tell the stage's leaderboards about a result that was added.
+	 * 
+	 * @param riderId Rider's ID.
+	 * @param row The rider's result row.
+	 * 
+	 */
+    private void notifyResultAdded(int riderId, int row) {
+        if (this.leaderboards.isEmpty()) {
+            return;
+        }
+        long elapsedTime = getElapsedTime(row);
+        for (StageLeaderboard leaderboard : this.leaderboards) {
+            leaderboard.resultAdded(riderId, elapsedTime, row);
+        }
+    }
+
+	/**
+	 * Schedule deliveries for the leaderboards changed since they were last
+     * flushed. This must be called without holding the stage's results or its
+     * partial results, as an executor may run a delivery on the calling
+     * thread, and a delivery reads the stage's classification.
+	 * 
+	 */
+    private void flushLeaderboards() {
+        for (StageLeaderboard leaderboard : this.leaderboards) {
+            leaderboard.flushChanges();
+        }
+    }
+
+	/**
+	 * Tell the stage's leaderboards that the result rows were renumbered. The
+     * caller must hold the stage's results exclusively.
+	 * 
+	 */
+    private void notifyRowsMoved() {
+        for (StageLeaderboard leaderboard : this.leaderboards) {
+            leaderboard.rowsMoved();
+        }
+    }
+
+	/**
+	 * Get the result rows of some riders, which order riders on equal times.
+	 * 
+	 * @param riderIds The riders' IDs.
+	 * @return The riders' rows, or -1 for a rider without results.
+	 * 
+	 */
+    int[] getRowsOf(int[] riderIds) {
+        loadResults();
+        this.resultsLock.readLock().lock();
+        try {
+            int[] rows = new int[riderIds.length];
+            for (int i = 0; i < riderIds.length; i++) {
+                rows[i] = findRow(riderIds[i]);
+            }
+            return rows;
+        } finally {
+            this.resultsLock.readLock().unlock();
+        }
+    }
+
+	/**
+	 * Subscribe to the top riders of the stage. The listener is first sent the
+     * current top riders, and then every change to them, on the executor.
+	 * 
+	 * @param k The number of riders to follow.
+	 * @param listener The listener to send the changes to.
+	 * @param executor The executor to deliver the changes on.
+	 * @return The subscription, which can be cancelled.
+	 * 
+	 */
+    public StageLeaderboard addLeaderboard(int k, LeaderboardListener listener, Executor executor) {
+        StageLeaderboard leaderboard = new StageLeaderboard(this, k, listener, executor);
+        this.leaderboards.add(leaderboard);
+        // The leaderboard starts stale, so this first delivery fills it from
+        // the classification, after it is registered for every later change.
+        leaderboard.scheduleDelivery();
+        return leaderboard;
+    }
+
+	/**
+	 * Stop telling a leaderboard about changes to the stage's results.
+	 * 
+	 * @param leaderboard The leaderboard to remove.
+	 * 
+	 */
+    void removeLeaderboard(StageLeaderboard leaderboard) {
+        this.leaderboards.remove(leaderboard);
+    }
+
+	/**
+	 * Write the stage's results to a snapshot, as ResultsImage.write does.
+	 * 
+	 * @param out The snapshot section to write to.
+	 * 
+	 */
+    void writeResults(SnapshotWriter out) {
+        captureResults().write(out);
+    }
+
+	/**
+	 * Capture the stage's results as they are now, to be written later while
+     * results are still being added. Published result rows are never written
+     * to again, so the image shares the stage's checkpoint times and only
+     * copies which rows hold results, and the partial results.
+	 * 
+	 * @return The image of the stage's results.
+	 * 
+	 */
+    ResultsImage captureResults() {
+        synchronized (this.partialResults) {
+            SnapshotReader unloaded = this.unloadedResults;
+            if (unloaded != null) {
+                return new ResultsImage(unloaded, 0, null, null, null, null);
+            }
+            IntMap<long[]> partials = new IntMap<long[]>();
+            for (int riderId : this.partialResults.keys()) {
+                partials.put(riderId, this.partialResults.get(riderId).clone());
+            }
+            this.resultsLock.readLock().lock();
+            try {
+                int[] rows = getResultRows();
+                int[] riderIds = new int[rows.length];
+                for (int i = 0; i < rows.length; i++) {
+                    riderIds[i] = this.resultRiderIds[rows[i]];
+                }
+                return new ResultsImage(null, this.checkpointCount, rows, riderIds, this.resultCheckpoints, partials);
+            } finally {
+                this.resultsLock.readLock().unlock();
+            }
+        }
+    }
+
+	/**
+	 * A stage's results at one point in time.
+	 * 
+	 */
+    static final class ResultsImage {
+
+        private final SnapshotReader unloaded;
+        private final int checkpointCount;
+        private final int[] rows;
+        private final int[] riderIds;
+        private final long[] checkpoints;
+        private final IntMap<long[]> partials;
+
+        private ResultsImage(SnapshotReader unloaded, int checkpointCount, int[] rows, int[] riderIds,
+                long[] checkpoints, IntMap<long[]> partials) {
+            this.unloaded = unloaded;
+            this.checkpointCount = checkpointCount;
+            this.rows = rows;
+            this.riderIds = riderIds;
+            this.checkpoints = checkpoints;
+            this.partials = partials;
+        }
+
+        private long getCheckpoint(int row, int checkpoint) {
+            return this.checkpoints[row * this.checkpointCount + checkpoint];
+        }
+
+		/**
+		 * Write the results to a snapshot: the number of checkpoints per
+         * result, then each result in the order it was added as the rider's
+         * ID and checkpoint times, followed by the partial results. Times are
+         * written in the coarsest unit that holds all of them exactly, which
+         * for results timed to the second or millisecond is far smaller than
+         * nanoseconds, and each checkpoint after the first as the difference
+         * from the one before, so most times fit in two or three bytes.
+		 * 
+		 * @param out The snapshot section to write to.
+		 * 
+		 */
+        void write(SnapshotWriter out) {
+            if (this.unloaded != null) {
+                // Results never read since they were loaded are written back
+                // as the same bytes.
+                this.unloaded.copyTo(out);
+                return;
+            }
+            long unit = COARSEST_TIME_UNIT;
+            for (int row : this.rows) {
+                for (int checkpoint = 0; checkpoint < this.checkpointCount; checkpoint++) {
+                    while (getCheckpoint(row, checkpoint) % unit != 0) {
+                        unit /= 1000;
+                    }
+                }
+            }
+            out.writeVarInt(this.checkpointCount);
+            out.writeVarInt(this.rows.length);
+            out.writeVarLong(unit);
+            for (int i = 0; i < this.rows.length; i++) {
+                out.writeVarInt(this.riderIds[i]);
+                long previous = 0;
+                for (int checkpoint = 0; checkpoint < this.checkpointCount; checkpoint++) {
+                    long time = getCheckpoint(this.rows[i], checkpoint) / unit;
+                    out.writeSignedVarLong(time - previous);
+                    previous = time;
+                }
+            }
+            out.writeVarInt(this.partials.size());
+            for (int riderId : this.partials.keys()) {
+                long[] checkpoints = this.partials.get(riderId);
+                out.writeVarInt(riderId);
+                out.writeVarInt(checkpoints.length);
+                for (long time : checkpoints) {
+                    // Missing times are -1, so shift every time up by one.
+                    out.writeVarLong(time + 1);
+                }
+            }
+        }
+    }
+
+	/**
+	 * Replace the stage's results with those read from a snapshot written by
+     * writeResults.
+	 * 
+	 * @param in The snapshot section to read from.
+	 * @throws IOException If the section was truncated or corrupt.
+	 * 
+	 */
+    void readResults(SnapshotReader in) throws IOException {
+        int width = in.readVarInt();
+        // Each row takes at least a byte for the rider and one per checkpoint.
+        int count = in.readCount(1L + width);
+        long unit = in.readVarLong();
+        int[] riderIds = new int[count];
+        long[] checkpoints = new long[count * width];
+        AtomicIntIntMap rows = new AtomicIntIntMap(count);
+        for (int row = 0; row < count; row++) {
+            riderIds[row] = in.readVarInt();
+            long time = 0;
+            for (int checkpoint = 0; checkpoint < width; checkpoint++) {
+                time += in.readSignedVarLong();
+                checkpoints[row * width + checkpoint] = time * unit;
+            }
+            if (!rows.putIfAbsent(riderIds[row], row)) {
+                throw new IOException("The snapshot had two results for one rider.");
+            }
+        }
+        int partialCount = in.readCount(2);
+        IntMap<long[]> partials = new IntMap<long[]>();
+        for (int i = 0; i < partialCount; i++) {
+            int riderId = in.readVarInt();
+            long[] times = new long[in.readCount(1)];
+            for (int checkpoint = 0; checkpoint < times.length; checkpoint++) {
+                times[checkpoint] = in.readVarLong() - 1;
+            }
+            // Snapshots saved before full results dropped partial ones may
+            // still hold both for a rider.
+            if (rows.get(riderId) < 0) {
+                partials.put(riderId, times);
+            }
+        }
+
+        synchronized (this.partialResults) {
+            this.resultsLock.writeLock().lock();
+            try {
+                this.checkpointCount = width;
+                this.resultRiderIds = riderIds;
+                this.resultCheckpoints = checkpoints;
+                this.resultRows = rows;
+                this.rowCount.set(count);
+                notifyRowsMoved();
+                this.resultCount.set(count);
+                this.partialResults.clear();
+                for (int riderId : partials.keys()) {
+                    this.partialResults.put(riderId, partials.get(riderId));
+                }
+                this.modificationCount.incrementAndGet();
+            } finally {
+                this.resultsLock.writeLock().unlock();
+            }
+        }
+    }
+
+	/**
+	 * Leave the stage's results in a snapshot, to be read by readResults the
+     * first time they are needed. Until then the stage has no published
+     * classification, so publishing one does not read them either.
+	 * 
+	 * @param in The snapshot section holding the results, which must not
+     *           change while the stage refers to it.
+	 * 
+	 */
+    void attachResults(SnapshotReader in) {
+        synchronized (this.partialResults) {
+            this.unloadedResults = in;
+            this.publishedClassification = null;
+        }
+    }
+
+	/**
+	 * Check if the stage's results are still waiting in a snapshot.
+	 * 
+	 * @return True if the results have not been read yet.
+	 * 
+	 */
+    boolean hasUnloadedResults() {
+        return this.unloadedResults != null;
+    }
+
+	/**
+	 * Read the stage's results from the snapshot they were loaded from, if
+     * they have not been read yet. Every method using the results calls this
+     * before taking the results lock, as reading them takes the write lock.
+	 * 
+	 * @throws UncheckedIOException If the results in the snapshot were corrupt.
+	 * 
+	 */
+    private void loadResults() {
+        if (this.unloadedResults == null) {
+            return;
+        }
+        synchronized (this.partialResults) {
+            SnapshotReader in = this.unloadedResults;
+            if (in == null) {
+                return;
+            }
+            try {
+                readResults(in.duplicate());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.unloadedResults = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        loadResults();
+        synchronized (this.partialResults) {
+            this.resultsLock.writeLock().lock();
+            try {
+                LinkedHashMap<Integer, ArrayList<LocalTime>> results = new LinkedHashMap<Integer, ArrayList<LocalTime>>();
+                for (int row = 0; row < this.rowCount.get(); row++) {
+                    if (this.resultRiderIds[row] == FREE_ROW) {
+                        continue;
+                    }
+                    ArrayList<LocalTime> checkpoints = new ArrayList<LocalTime>();
+                    for (int checkpoint = 0; checkpoint < this.checkpointCount; checkpoint++) {
+                        checkpoints.add(LocalTime.ofNanoOfDay(getCheckpoint(row, checkpoint)));
+                    }
+                    results.put(this.resultRiderIds[row], checkpoints);
+                }
+                ObjectOutputStream.PutField fields = out.putFields();
+                fields.put("raceId", this.raceId);
+                fields.put("stageId", this.stageId);
+                fields.put("name", this.name);
+                fields.put("description", this.description);
+                fields.put("length", this.length);
+                fields.put("startTime", this.startTime);
+                fields.put("type", this.type);
+                fields.put("state", this.state);
+                fields.put("segments", this.segments);
+                fields.put("results", results);
+                fields.put("partialResults", this.partialResults);
+                out.writeFields();
+            } finally {
+                this.resultsLock.writeLock().unlock();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.raceId = fields.get("raceId", 0);
+        this.stageId = fields.get("stageId", 0);
+        this.name = (String) fields.get("name", null);
+        this.description = (String) fields.get("description", null);
+        this.length = fields.get("length", 0.0);
+        this.startTime = (LocalDateTime) fields.get("startTime", null);
+        this.type = (StageType) fields.get("type", null);
+        this.state = (String) fields.get("state", null);
+        this.segments = (ArrayList<Segment>) fields.get("segments", null);
+        // Stages saved by the first version have no partial results.
+        this.partialResults = (IntMap<long[]>) fields.get("partialResults", null);
+        if (this.partialResults == null) {
+            this.partialResults = new IntMap<long[]>();
+        }
+
+        LinkedHashMap<Integer, ArrayList<LocalTime>> results =
+            (LinkedHashMap<Integer, ArrayList<LocalTime>>) fields.get("results", null);
+        int count = results.size();
+        int width = count == 0 ? 0 : results.values().iterator().next().size();
+        this.checkpointCount = width;
+        this.resultRiderIds = new int[count];
+        this.resultCheckpoints = new long[count * width];
+        this.resultRows = new AtomicIntIntMap(count);
+        int row = 0;
+        for (Map.Entry<Integer, ArrayList<LocalTime>> entry : results.entrySet()) {
+            if (entry.getValue().size() != width) {
+                throw new InvalidObjectException("The stage's results had different numbers of checkpoints.");
+            }
+            this.resultRiderIds[row] = entry.getKey();
+            for (int checkpoint = 0; checkpoint < width; checkpoint++) {
+                this.resultCheckpoints[row * width + checkpoint] = entry.getValue().get(checkpoint).toNanoOfDay();
+            }
+            this.resultRows.putIfAbsent(entry.getKey(), row);
+            row++;
+        }
+        this.rowCount = new AtomicInteger(count);
+        this.resultCount = new AtomicInteger(count);
+
+        this.resultsLock = new ReentrantReadWriteLock();
+        this.modificationCount = new AtomicLong();
+        this.publishRequests = new AtomicInteger();
+        this.classifications = new SingleFlight<StageClassification>();
+        this.leaderboards = new CopyOnWriteArrayList<StageLeaderboard>();
+    }
+
+    /**
+	 * Get a rider's results.
+	 * 
+	 * @param riderId Rider's ID.
+	 * @return A LocalTime array of the rider's results.
+	 * 
+	 */
+    public LocalTime[] getResults(int riderId) {
+        loadResults();
+        this.resultsLock.readLock().lock();
+        try {
+            int row = findRow(riderId);
+            if (row < 0) {
+                return new LocalTime[0];
+            }
+            LocalTime[] returnResults = new LocalTime[this.checkpointCount-1];
+            for (int i = 1; i < this.checkpointCount-1; i++) {
+                returnResults[i-1] = LocalTime.ofNanoOfDay(getCheckpoint(row, i));
+            }
+            LocalTime elapsed = LocalTime.ofNanoOfDay(getElapsedTime(row));
+            returnResults[this.checkpointCount-2] = elapsed;
+            return returnResults;
+        } finally {
+            this.resultsLock.readLock().unlock();
+        }
+    }
+
     /**
 	 * Get a rider's adjusted elapsed time. If the rider finished within 1 second
      * of another rider, then both rider's have the elapsed time of the quicker
      * result.
 	 * 
 	 * @param riderId Rider's ID.
-	 * @return The Rider's adjusted elapsed time in nanoseconds.
+	 * @return The Rider's adjusted elapsed time, or null if the rider has no
+     * results in the stage.
 	 * 
 	 */
     public LocalTime getRiderAdjustedElapsedTime(int riderId) {
-        if (!this.results.containsKey(riderId)) {
+        StageClassification classification = getClassification();
+        int position = classification.getPosition(riderId);
+        if (position < 0) {
             return null;
         }
-        
-        long elapsedTime = getRiderElapsedTime(riderId);
-        if (this.type == StageType.TT) {
-			return LocalTime.ofNanoOfDay(elapsedTime);
-		}
-        boolean timeAdjusted = false;
-		do {
-			timeAdjusted = false;
-			for (Integer comparisonRiderId : this.results.keySet()) {
-                long otherElapsedTime = getRiderElapsedTime(comparisonRiderId);
-                long difference = elapsedTime - otherElapsedTime;
-                if (difference > 0L && difference <= 1000000000L) {
-                    timeAdjusted = true;
-                    elapsedTime = otherElapsedTime;
-                }
-			}
-		} while (timeAdjusted);
-
-		return LocalTime.ofNanoOfDay(elapsedTime);
+		return LocalTime.ofNanoOfDay(classification.getAdjustedElapsedTimes()[position]);
     }
 
     /**
-	 * Return the array of indices which sorts the riders by their
-     * elapsed time when accessed in the order of the stage's
-     * results.
+	 * Get the stage's classification, computing it only if the stage has
+     * been modified since it was last computed. Threads asking at the same
+     * time share one computation, and a cached classification is returned
+     * without taking any lock.
 	 * 
-	 * @return An integer array containing the indices which sort
-     * the riders by elapsed time.
+	 * @return The StageClassification snapshot of the stage.
 	 * 
 	 */
-    private int[] getSortedElapsedTimeIndices() {
-		ArrayList<Long> results = new ArrayList<Long>();
-        ArrayList<Integer> sortedIndices = new ArrayList<Integer>();
-        int unsortedIndex = 0;
-        for (Integer riderId : this.results.keySet()) {
-            long elapsedTime = getRiderElapsedTime(riderId);
-            int index = 0;
-            for (index = 0; index < results.size(); index++) {
-                if (results.get(index) > elapsedTime) {
-                    break;
-                }
+    public StageClassification getClassification() {
+        loadResults();
+        // Read the version first, so results published during the computation
+        // leave the snapshot out of date rather than wrongly current.
+        long version = this.modificationCount.get();
+        return this.classifications.get(version, () -> computeClassification(version));
+    }
+
+    /**
+	 * Publish the stage's current classification for lock-free readers. If
+     * another thread is already publishing, it is left to publish again once
+     * it finishes, so concurrent requests are coalesced into as few
+     * computations as possible.
+	 * 
+	 */
+    public void publishClassification() {
+        if (this.publishRequests.getAndIncrement() != 0) {
+            return;
+        }
+        while (true) {
+            int requests = this.publishRequests.get();
+            this.publishedClassification = getClassification();
+            if (this.publishRequests.addAndGet(-requests) == 0) {
+                return;
             }
-            results.add(index, elapsedTime);
-            sortedIndices.add(index, unsortedIndex);
-            unsortedIndex++;
+        }
+    }
+
+    /**
+	 * Get the classification most recently published, without taking any
+     * lock. The snapshot may lag behind results that are still being
+     * registered.
+	 * 
+	 * @return The published StageClassification snapshot of the stage.
+	 * 
+	 */
+    public StageClassification getPublishedClassification() {
+        StageClassification classification = this.publishedClassification;
+        if (classification == null) {
+            // Nothing has been published since the stage was loaded.
+            return getClassification();
+        }
+        return classification;
+    }
+
+    /**
+	 * Get the stage's modification count, which changes whenever the results,
+     * segments or state of the stage change.
+	 * 
+	 * @return The stage's modification count.
+	 * 
+	 */
+    public long getModificationCount() {
+        return this.modificationCount.get();
+    }
+
+    /**
+	 * Get the number of classification requests served from the cache.
+	 * 
+	 * @return The number of cache hits.
+	 * 
+	 */
+    public long getClassificationHits() {
+        return this.classifications.getSharedResults();
+    }
+
+    /**
+	 * Get the number of classification requests that had to recompute the
+     * classification.
+	 * 
+	 * @return The number of cache misses.
+	 * 
+	 */
+    public long getClassificationMisses() {
+        return this.classifications.getComputations();
+    }
+
+    /**
+	 * Compute the stage's classification from its results. The riders are
+     * ranked by elapsed time, with riders on equal times kept in the order
+     * their results were added in. Holds the stage, as the points depend
+     * on its segments.
+	 * 
+     * @param version The modification count read before the computation.
+	 * @return A new StageClassification snapshot.
+	 * 
+	 */
+    private synchronized StageClassification computeClassification(long version) {
+        this.resultsLock.readLock().lock();
+        try {
+            return computeClassification(version, getResultRows());
+        } finally {
+            this.resultsLock.readLock().unlock();
+        }
+    }
+
+    /**
+	 * Compute the classification of a set of result rows. The caller must hold
+     * the stage's results lock.
+	 * 
+     * @param version The modification count the snapshot reflects.
+     * @param rows The published result rows, in the order they were claimed.
+	 * @return A new StageClassification snapshot.
+	 * 
+	 */
+    private StageClassification computeClassification(long version, int[] rows) {
+        long[] elapsedTimes = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            elapsedTimes[i] = getElapsedTime(rows[i]);
+        }
+        int[] order = Ranking.sortAscending(elapsedTimes);
+        long[] adjustedTimes = getAdjustedElapsedTimes(elapsedTimes, order);
+        int[] points = getPoints(rows, order);
+        int[] mountainPoints = getMountainPoints(rows);
+
+        int[] rankedRiderIds = new int[rows.length];
+        long[] rankedElapsedTimes = new long[rows.length];
+        long[] rankedAdjustedTimes = new long[rows.length];
+        int[] rankedPoints = new int[rows.length];
+        int[] rankedMountainPoints = new int[rows.length];
+        for (int position = 0; position < order.length; position++) {
+            int i = order[position];
+            rankedRiderIds[position] = this.resultRiderIds[rows[i]];
+            rankedElapsedTimes[position] = elapsedTimes[i];
+            rankedAdjustedTimes[position] = adjustedTimes[i];
+            rankedPoints[position] = points[i];
+            rankedMountainPoints[position] = mountainPoints[i];
+        }
+        return new StageClassification(version, rankedRiderIds, rankedElapsedTimes, rankedAdjustedTimes, rankedPoints,
+            rankedMountainPoints);
+    }
+
+    /**
+	 * Get the adjusted elapsed time of every result in one pass. Once the
+     * elapsed times are sorted, a rider is in the same group as the rider before
+     * them if they finished no more than 1 second behind, and every rider in a
+     * group gets the elapsed time of the group's first rider. Time trials are
+     * not adjusted.
+	 * 
+	 * @param elapsedTimes The elapsed time of each result.
+	 * @param order The indices of the results sorted by elapsed time.
+	 * @return The adjusted elapsed times in nanoseconds, in the same order as
+     * the elapsed times.
+	 * 
+	 */
+    private long[] getAdjustedElapsedTimes(long[] elapsedTimes, int[] order) {
+        if (this.type == StageType.TT) {
+            return elapsedTimes;
         }
 
-        int[] sortedArr = new int[sortedIndices.size()];
-        for (int i = 0; i < sortedIndices.size(); i++) {
-            sortedArr[i] = sortedIndices.get(i).intValue();
+        long[] adjustedTimes = new long[elapsedTimes.length];
+        for (int i = 0; i < order.length; i++) {
+            int current = order[i];
+            if (i > 0 && elapsedTimes[current] - elapsedTimes[order[i-1]] <= 1000000000L) {
+                adjustedTimes[current] = adjustedTimes[order[i-1]];
+            } else {
+                adjustedTimes[current] = elapsedTimes[current];
+            }
         }
-        return sortedArr;
+        return adjustedTimes;
     }
 
     /**
@@ -330,14 +1359,7 @@ public class Stage implements Serializable {
 	 * 
 	 */
     public int[] getRidersRanks() {
-        int[] order = getSortedElapsedTimeIndices();
-        int[] ranks = new int[this.results.size()];
-        int index = 0;
-        for (Integer riderId : this.results.keySet()) {
-            ranks[order[index]] = riderId;
-            index++;
-        }
-        return ranks;
+        return getClassification().getRiderIds().clone();
     }
 
     /**
@@ -349,47 +1371,53 @@ public class Stage implements Serializable {
 	 * 
 	 */
     public LocalTime[] getRankedAdjustedTimes() {
-        int[] order = getSortedElapsedTimeIndices();
-        LocalTime[] times = new LocalTime[this.results.size()];
-        int index = 0;
-        for (Integer riderId : this.results.keySet()) {
-            times[order[index]] = getRiderAdjustedElapsedTime(riderId);
-            index++;
+        long[] adjustedTimes = getClassification().getAdjustedElapsedTimes();
+        LocalTime[] times = new LocalTime[adjustedTimes.length];
+        for (int i = 0; i < adjustedTimes.length; i++) {
+            times[i] = LocalTime.ofNanoOfDay(adjustedTimes[i]);
         }
         return times;
     }
 
     /**
-	 * Return the rank of the rider's finish time in the segment.
+	 * Rank every result in a segment with a single sort of the segment's
+     * checkpoint times. A rider's rank is the number of riders who reached
+     * the end of the segment strictly before them, so riders with equal
+     * times share a rank.
 	 * 
-     * @param riderId The rider's ID.
-     * @param segment The segment to rank.
-	 * @return An integer of the rank of the rider in the segment.
+     * @param rows The result rows to rank.
+     * @param segmentIndex The index of the segment in the stage.
+	 * @return The rank of each row in the segment, in the same order as
+     * the rows.
 	 * 
 	 */
-    public int getRidersRankInSegment(int riderId, Segment segment) {
-        int resultIndex = this.segments.indexOf(segment) + 1;
-
-        long result = this.results.get(riderId).get(resultIndex).toNanoOfDay();
-        int rank = 0;
-        for (ArrayList<LocalTime> resultTimes : results.values()) {
-            long comparison = resultTimes.get(resultIndex).toNanoOfDay();
-            if (comparison < result) {
-                rank++;
+    private int[] getSegmentRanks(int[] rows, int segmentIndex) {
+        long[] times = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            times[i] = getCheckpoint(rows[i], segmentIndex + 1);
+        }
+        int[] order = Ranking.sortAscending(times);
+        int[] ranks = new int[rows.length];
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0 && times[order[i]] == times[order[i-1]]) {
+                ranks[order[i]] = ranks[order[i-1]];
+            } else {
+                ranks[order[i]] = i;
             }
         }
-        return rank;
+        return ranks;
     }
 
     /**
-	 * Return the array of rider's points when sorted by their elapsed
-     * time in the stage.
+	 * Calculate each result's points from its finishing position and its
+     * ranks in the intermediate sprints.
 	 * 
-	 * @return An integer array containing the rider's points sorted
-     * in ascending order by their elapsed time.
+     * @param rows The result rows to score.
+     * @param order The indices of the rows sorted by elapsed time.
+	 * @return The points of each row, in the same order as the rows.
 	 * 
 	 */
-    public int[] getRidersPoints() {
+    private int[] getPoints(int[] rows, int[] order) {
         HashMap<StageType, int[]> finishPoints = new HashMap<StageType, int[]>();
 		finishPoints.put(StageType.FLAT, new int[] {50, 30, 20, 18, 16, 14, 12, 10, 8, 7, 6, 5, 4, 3, 2});
 		finishPoints.put(StageType.MEDIUM_MOUNTAIN, new int[] {30, 25, 22, 19, 17, 15, 13, 11, 9, 7, 6, 5, 4, 3, 2});
@@ -397,41 +1425,82 @@ public class Stage implements Serializable {
 		finishPoints.put(StageType.TT, new int[] {20, 17, 15, 13, 11, 10 , 9, 8, 7, 6, 5, 4, 3, 2, 1});
 		int[] sprintPoints = {20, 17, 15, 13, 11, 10 , 9, 8, 7, 6, 5, 4, 3, 2, 1};
 
-        int[] order = getSortedElapsedTimeIndices();
-        int[] points = new int[this.results.size()];
-        Segment[] segments = getSegments();
-        int i = 0;
-        for (Integer riderId : this.results.keySet()) {
-            points[order[i]] = (order[i] < 15) ? finishPoints.get(this.type)[order[i]] : 0;
-            for (Segment segment : segments) {
-				int rank = getRidersRankInSegment(riderId, segment);
-				if (segment.getSegmentType() == SegmentType.SPRINT) {
-					if (rank < 15) {
-                        points[order[i]] += sprintPoints[rank];
-					}
-				}
-			}
-            i++;
+        int[] points = new int[rows.length];
+        int[] stagePoints = finishPoints.get(this.type);
+        for (int position = 0; position < order.length && position < stagePoints.length; position++) {
+            points[order[position]] = stagePoints[position];
         }
+        for (int s = 0; s < this.segments.size(); s++) {
+            if (this.segments.get(s).getSegmentType() != SegmentType.SPRINT) {
+                continue;
+            }
+            int[] segmentRanks = getSegmentRanks(rows, s);
+            for (int i = 0; i < rows.length; i++) {
+                if (segmentRanks[i] < sprintPoints.length) {
+                    points[i] += sprintPoints[segmentRanks[i]];
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+	 * Calculate each result's mountain points from its ranks in the
+     * categorised climbs.
+	 * 
+     * @param rows The result rows to score.
+	 * @return The mountain points of each row, in the same order as the rows.
+	 * 
+	 */
+    private int[] getMountainPoints(int[] rows) {
+        HashMap<SegmentType, int[]> mountainPoints = new HashMap<SegmentType, int[]>();
+		mountainPoints.put(SegmentType.C4, new int[] {1});
+		mountainPoints.put(SegmentType.C3, new int[] {2, 1});
+		mountainPoints.put(SegmentType.C2, new int[] {5, 3, 2, 1});
+		mountainPoints.put(SegmentType.C1, new int[] {10, 8, 6, 4, 2, 1});
+		mountainPoints.put(SegmentType.HC, new int[] {20, 15, 12, 10, 8, 6, 4, 2});
 
+        int[] points = new int[rows.length];
+        for (int s = 0; s < this.segments.size(); s++) {
+            SegmentType segmentType = this.segments.get(s).getSegmentType();
+            if (segmentType == SegmentType.SPRINT) {
+                continue;
+            }
+            int[] climbPoints = mountainPoints.get(segmentType);
+            int[] segmentRanks = getSegmentRanks(rows, s);
+            for (int i = 0; i < rows.length; i++) {
+                if (segmentRanks[i] < climbPoints.length) {
+                    points[i] += climbPoints[segmentRanks[i]];
+                }
+            }
+        }
         return points;
     }
 
+    /**
+	 * Return the array of rider's points when sorted by their elapsed
+     * time in the stage.
+	 * 
+	 * @return An integer array containing the rider's points sorted
+     * in ascending order by their elapsed time.
+	 * 
+	 */
+    public int[] getRidersPoints() {
+        return getClassification().getPoints().clone();
+    }
+
     /**
 	 * Return the rider's points in the stage.
 	 * 
-	 * @return An integer of the rider's points.
+	 * @param riderId Rider's ID.
+	 * @return An integer of the rider's points, or 0 if the rider has
+     * no results in the stage.
 	 * 
 	 */
     public int getRiderPoints(int riderId) {
-        int[] ranks = getRidersRanks();
-        int i;
-        for (i = 0; i < ranks.length; i++) {
-            if (ranks[i] == riderId) {
-                break;
-            }
-        }
-        return getRidersPoints()[i];
+        StageClassification classification = getClassification();
+        int position = classification.getPosition(riderId);
+        return position < 0 ? 0 : classification.getPoints()[position];
     }
 
     /**
@@ -443,48 +1512,20 @@ public class Stage implements Serializable {
 	 * 
 	 */
     public int[] getRidersMountainPoints() {
-        HashMap<SegmentType, int[]> mountainPoints = new HashMap<SegmentType, int[]>();
-		mountainPoints.put(SegmentType.C4, new int[] {1});
-		mountainPoints.put(SegmentType.C3, new int[] {2, 1});
-		mountainPoints.put(SegmentType.C2, new int[] {5, 3, 2, 1});
-		mountainPoints.put(SegmentType.C1, new int[] {10, 8, 6, 4, 2, 1});
-		mountainPoints.put(SegmentType.HC, new int[] {20, 15, 12, 10, 8, 6, 4, 2});
-
-        int[] order = getSortedElapsedTimeIndices();
-        int[] points = new int[this.results.size()];
-        Segment[] segments = getSegments();
-        int i = 0;
-        for (Integer riderId : this.results.keySet()) {
-            points[order[i]] = 0;
-            for (Segment segment : segments) {
-				int rank = getRidersRankInSegment(riderId, segment);
-                SegmentType segmentType = segment.getSegmentType();
-				if (segment.getSegmentType() != SegmentType.SPRINT) {
-					if (rank < mountainPoints.get(segmentType).length) {
-                        points[order[i]] += mountainPoints.get(segmentType)[rank];
-					}
-				}
-			}
-            i++;
-        }
-
-        return points;
+        return getClassification().getMountainPoints().clone();
     }
 
     /**
 	 * Return the rider's mountain points in the stage.
 	 * 
-	 * @return An integer of the rider's mountain points.
+	 * @param riderId Rider's ID.
+	 * @return An integer of the rider's mountain points, or 0 if the
+     * rider has no results in the stage.
 	 * 
 	 */
     public int getRiderMountainPoints(int riderId) {
-        int[] ranks = getRidersRanks();
-        int i;
-        for (i = 0; i < ranks.length; i++) {
-            if (ranks[i] == riderId) {
-                break;
-            }
-        }
-        return getRidersMountainPoints()[i];
+        StageClassification classification = getClassification();
+        int position = classification.getPosition(riderId);
+        return position < 0 ? 0 : classification.getMountainPoints()[position];
     }
 }
@@ -0,0 +1,119 @@
+package cycling;
+
+/**
+ * Immutable snapshot of a stage's classification, holding every result's
+ * rank, times and points as they were when the snapshot was computed.
+ * <p>
+ * Every array is in rank order, so index 0 is the rider with the lowest
+ * elapsed time. The arrays are shared with every caller of the getters and
+ * must not be modified; public portal methods return copies.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+final class StageClassification {
+
+	private final long version;
+	private final int[] riderIds;
+	private final long[] elapsedTimes;
+	private final long[] adjustedElapsedTimes;
+	private final int[] points;
+	private final int[] mountainPoints;
+	private final IntIntMap positions;
+
+	public StageClassification(long version, int[] riderIds, long[] elapsedTimes, long[] adjustedElapsedTimes,
+			int[] points, int[] mountainPoints) {
+		this.version = version;
+		this.riderIds = riderIds;
+		this.elapsedTimes = elapsedTimes;
+		this.adjustedElapsedTimes = adjustedElapsedTimes;
+		this.points = points;
+		this.mountainPoints = mountainPoints;
+		this.positions = new IntIntMap();
+		for (int i = 0; i < riderIds.length; i++) {
+			this.positions.put(riderIds[i], i);
+		}
+	}
+
+	/**
+	 * Get the modification count of the stage when the snapshot was computed.
+	 *
+	 * @return The stage version the snapshot reflects.
+	 *
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Get the number of riders in the classification.
+	 *
+	 * @return The number of riders with results.
+	 *
+	 */
+	public int size() {
+		return this.riderIds.length;
+	}
+
+	/**
+	 * Get the position of a rider in the classification.
+	 *
+	 * @param riderId Rider's ID.
+	 * @return The rider's position, or -1 if the rider has no result.
+	 *
+	 */
+	public int getPosition(int riderId) {
+		return this.positions.get(riderId);
+	}
+
+	/**
+	 * Get the rider IDs in rank order.
+	 *
+	 * @return The shared array of rider IDs.
+	 *
+	 */
+	public int[] getRiderIds() {
+		return this.riderIds;
+	}
+
+	/**
+	 * Get the elapsed times in rank order.
+	 *
+	 * @return The shared array of elapsed times in nanoseconds.
+	 *
+	 */
+	public long[] getElapsedTimes() {
+		return this.elapsedTimes;
+	}
+
+	/**
+	 * Get the adjusted elapsed times in rank order.
+	 *
+	 * @return The shared array of adjusted elapsed times in nanoseconds.
+	 *
+	 */
+	public long[] getAdjustedElapsedTimes() {
+		return this.adjustedElapsedTimes;
+	}
+
+	/**
+	 * Get the points in rank order.
+	 *
+	 * @return The shared array of points.
+	 *
+	 */
+	public int[] getPoints() {
+		return this.points;
+	}
+
+	/**
+	 * Get the mountain points in rank order.
+	 *
+	 * @return The shared array of mountain points.
+	 *
+	 */
+	public int[] getMountainPoints() {
+		return this.mountainPoints;
+	}
+}
@@ -0,0 +1,439 @@
+package cycling;
+
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A subscription to the top riders of a stage, kept up to date incrementally
+ * as results are added to and deleted from the stage.
+ * <p>
+ * The stage reports each added and deleted result on the thread that changed
+ * it, which only updates the top riders in place. Once the stage has released
+ * its locks it flushes the leaderboard, which schedules a delivery, so an
+ * executor that runs deliveries on the calling thread cannot block the stage.
+ * The deliveries run on the subscription's executor one at a time, and each one
+ * sends the listener the positions that changed since the last update it was
+ * sent, so a slow listener gets fewer, larger updates rather than holding up
+ * the stage. When a rider on the leaderboard is deleted, the rider who moves
+ * up into the last place may not be known, so the leaderboard is refilled from
+ * the stage's classification on the executor.
+ * <p>
+ * Riders on equal times are ranked in the order their result rows were
+ * claimed, as in the stage's classification, so each rider's row is kept with
+ * them. When the stage moves its rows the leaderboard is refilled.
+ * <p>
+ * A listener that throws, or an executor that rejects a delivery, never
+ * affects the stage: the exception is passed to the delivering thread's
+ * uncaught exception handler, and the subscription carries on with the next
+ * change.
+ *
+ * @author Charlie Goldstraw, Charlie MacDonald-Smith
+ * @version 1.0
+ *
+ */
+public final class StageLeaderboard {
+
+	private final Stage stage;
+	private final int k;
+	private final LeaderboardListener listener;
+	private final Executor executor;
+
+	// The current top riders, in rank order, guarded by this object's monitor.
+	private int size;
+	private final int[] riderIds;
+	private final long[] elapsedTimes;
+	private final int[] rows;
+	// Set when the leaderboard may be missing riders who should have moved up.
+	private boolean stale = true;
+	// Set when the top riders changed and no delivery has been scheduled yet.
+	private boolean changed;
+	// While a refill is computing the classification, every change is logged
+	// so that it can be applied again to the refilled leaderboard.
+	private boolean refilling;
+	private int logSize;
+	private int[] logRiderIds = new int[8];
+	private long[] logElapsedTimes = new long[8];
+	private int[] logRows = new int[8];
+
+	// The leaderboard as last delivered, only touched by the delivery loop.
+	private int deliveredSize;
+	private final int[] deliveredRiderIds;
+	private final long[] deliveredTimes;
+	private final AtomicInteger deliveryRequests = new AtomicInteger();
+	private volatile boolean cancelled;
+
+	StageLeaderboard(Stage stage, int k, LeaderboardListener listener, Executor executor) {
+		if (k <= 0) {
+			throw new IllegalArgumentException("The leaderboard must hold at least one rider.");
+		}
+		this.stage = stage;
+		this.k = k;
+		this.listener = listener;
+		this.executor = executor;
+		this.riderIds = new int[k];
+		this.elapsedTimes = new long[k];
+		this.rows = new int[k];
+		this.deliveredRiderIds = new int[k];
+		this.deliveredTimes = new long[k];
+	}
+
+	/**
+	 * Get the number of riders the leaderboard holds at most.
+	 *
+	 * @return The leaderboard's capacity.
+	 *
+	 */
+	public int getK() {
+		return this.k;
+	}
+
+	/**
+	 * Stop the subscription. No updates are delivered once this returns, apart
+	 * from one that is already being delivered.
+	 *
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		this.stage.removeLeaderboard(this);
+	}
+
+	/**
+	 * Record that a rider's result was added to the stage.
+	 *
+	 * @param riderId Rider's ID.
+	 * @param elapsedTime The rider's elapsed time in nanoseconds.
+	 * @param row The rider's result row.
+	 *
+	 */
+	void resultAdded(int riderId, long elapsedTime, int row) {
+		synchronized (this) {
+			if (this.refilling) {
+				log(riderId, elapsedTime, row);
+			}
+			if (insert(riderId, elapsedTime, row)) {
+				this.changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Record that a rider's result was deleted from the stage.
+	 *
+	 * @param riderId Rider's ID.
+	 *
+	 */
+	void resultRemoved(int riderId) {
+		synchronized (this) {
+			if (this.refilling) {
+				log(riderId, -1, -1);
+			}
+			if (remove(riderId)) {
+				this.changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Record that the stage moved its result rows, so the rows the leaderboard
+	 * holds no longer order its riders. The next delivery refills it.
+	 *
+	 */
+	synchronized void rowsMoved() {
+		this.stale = true;
+	}
+
+	/**
+	 * Schedule a delivery if the top riders changed since the last flush. The
+	 * stage calls this without holding its results, as the delivery may run on
+	 * the calling thread and read them.
+	 *
+	 */
+	void flushChanges() {
+		synchronized (this) {
+			if (!this.changed) {
+				return;
+			}
+			this.changed = false;
+		}
+		scheduleDelivery();
+	}
+
+	/**
+	 * Schedule a delivery, unless one is already scheduled or running, in
+	 * which case that delivery will run again once it finishes. If the
+	 * executor rejects the delivery, the request is dropped so that a later
+	 * change can schedule one again.
+	 *
+	 */
+	void scheduleDelivery() {
+		if (this.deliveryRequests.getAndIncrement() == 0) {
+			try {
+				this.executor.execute(this::deliver);
+			} catch (RuntimeException e) {
+				// Usually a RejectedExecutionException from an executor that
+				// has been shut down.
+				this.deliveryRequests.set(0);
+				report(e);
+			}
+		}
+	}
+
+	/**
+	 * Deliver the changes since the last delivery, repeating until no more
+	 * deliveries have been requested.
+	 *
+	 */
+	private void deliver() {
+		while (true) {
+			int requests = this.deliveryRequests.get();
+			if (!this.cancelled) {
+				try {
+					refill();
+					LeaderboardUpdate update = getUpdate();
+					if (update != null) {
+						this.listener.leaderboardChanged(update);
+					}
+				} catch (RuntimeException e) {
+					report(e);
+				}
+			}
+			if (this.deliveryRequests.addAndGet(-requests) == 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Pass an exception from the listener or the executor to the current
+	 * thread's uncaught exception handler, without stopping the thread.
+	 *
+	 * @param e The exception.
+	 *
+	 */
+	private static void report(RuntimeException e) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	/**
+	 * Refill the leaderboard from the stage's classification while it is stale.
+	 * The classification is computed without holding the leaderboard, and the
+	 * changes made meanwhile are applied again afterwards.
+	 *
+	 */
+	private void refill() {
+		while (true) {
+			synchronized (this) {
+				if (!this.stale) {
+					return;
+				}
+				this.stale = false;
+				this.refilling = true;
+				this.logSize = 0;
+			}
+			int[] rankedRiderIds;
+			long[] rankedTimes;
+			int[] rankedRows;
+			try {
+				StageClassification classification = this.stage.getClassification();
+				rankedRiderIds = Arrays.copyOf(classification.getRiderIds(),
+						Math.min(this.k, classification.size()));
+				rankedTimes = classification.getElapsedTimes();
+				// If the rows move after this, the leaderboard is stale again.
+				rankedRows = this.stage.getRowsOf(rankedRiderIds);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					this.stale = true;
+					this.refilling = false;
+				}
+				throw e;
+			}
+			synchronized (this) {
+				this.size = rankedRiderIds.length;
+				System.arraycopy(rankedRiderIds, 0, this.riderIds, 0, this.size);
+				System.arraycopy(rankedTimes, 0, this.elapsedTimes, 0, this.size);
+				System.arraycopy(rankedRows, 0, this.rows, 0, this.size);
+				for (int i = 0; i < this.logSize; i++) {
+					if (this.logElapsedTimes[i] < 0) {
+						remove(this.logRiderIds[i]);
+					} else {
+						insert(this.logRiderIds[i], this.logElapsedTimes[i], this.logRows[i]);
+					}
+				}
+				this.refilling = false;
+				this.logSize = 0;
+			}
+		}
+	}
+
+	/**
+	 * Compare the leaderboard with the one last delivered.
+	 *
+	 * @return The changed positions, or null if nothing changed.
+	 *
+	 */
+	private LeaderboardUpdate getUpdate() {
+		int size;
+		int[] riderIds;
+		long[] adjustedTimes;
+		synchronized (this) {
+			size = this.size;
+			riderIds = Arrays.copyOf(this.riderIds, size);
+			adjustedTimes = getAdjustedElapsedTimes();
+		}
+		int maxSize = Math.max(size, this.deliveredSize);
+		int[] positions = new int[maxSize];
+		int changes = 0;
+		for (int i = 0; i < maxSize; i++) {
+			boolean changed = i >= size || i >= this.deliveredSize
+				|| riderIds[i] != this.deliveredRiderIds[i] || adjustedTimes[i] != this.deliveredTimes[i];
+			if (changed) {
+				positions[changes] = i;
+				changes++;
+			}
+		}
+		if (changes == 0) {
+			return null;
+		}
+		positions = Arrays.copyOf(positions, changes);
+		int[] changedRiderIds = new int[changes];
+		LocalTime[] changedTimes = new LocalTime[changes];
+		for (int c = 0; c < changes; c++) {
+			int position = positions[c];
+			if (position < size) {
+				changedRiderIds[c] = riderIds[position];
+				changedTimes[c] = LocalTime.ofNanoOfDay(adjustedTimes[position]);
+			} else {
+				changedRiderIds[c] = -1;
+			}
+		}
+		System.arraycopy(riderIds, 0, this.deliveredRiderIds, 0, size);
+		System.arraycopy(adjustedTimes, 0, this.deliveredTimes, 0, size);
+		this.deliveredSize = size;
+		return new LeaderboardUpdate(this.stage.getId(), size, positions, changedRiderIds, changedTimes);
+	}
+
+	/**
+	 * Get the adjusted elapsed times of the riders on the leaderboard. A rider
+	 * within 1 second of the rider before them gets that rider's adjusted time,
+	 * which only depends on the riders ahead, so the top riders alone are
+	 * enough. Time trials are not adjusted.
+	 *
+	 * @return The adjusted elapsed times in nanoseconds, in rank order.
+	 *
+	 */
+	private long[] getAdjustedElapsedTimes() {
+		long[] adjustedTimes = Arrays.copyOf(this.elapsedTimes, this.size);
+		if (this.stage.getStageType() == StageType.TT) {
+			return adjustedTimes;
+		}
+		for (int i = 1; i < this.size; i++) {
+			if (this.elapsedTimes[i] - this.elapsedTimes[i - 1] <= 1000000000L) {
+				adjustedTimes[i] = adjustedTimes[i - 1];
+			}
+		}
+		return adjustedTimes;
+	}
+
+	/**
+	 * Insert a rider into the leaderboard if they belong on it. A rider on an
+	 * equal time to riders already on it goes after those whose rows were
+	 * claimed first, even if their results were reported later.
+	 *
+	 * @param riderId Rider's ID.
+	 * @param elapsedTime The rider's elapsed time in nanoseconds.
+	 * @param row The rider's result row.
+	 * @return True if the leaderboard changed.
+	 *
+	 */
+	private boolean insert(int riderId, long elapsedTime, int row) {
+		if (indexOf(riderId) >= 0) {
+			return false;
+		}
+		if (this.size == this.k && !ranksBefore(elapsedTime, row, this.k - 1)) {
+			return false;
+		}
+		int position = this.size;
+		while (position > 0 && ranksBefore(elapsedTime, row, position - 1)) {
+			position--;
+		}
+		int moved = Math.min(this.size, this.k - 1) - position;
+		System.arraycopy(this.riderIds, position, this.riderIds, position + 1, moved);
+		System.arraycopy(this.elapsedTimes, position, this.elapsedTimes, position + 1, moved);
+		System.arraycopy(this.rows, position, this.rows, position + 1, moved);
+		this.riderIds[position] = riderId;
+		this.elapsedTimes[position] = elapsedTime;
+		this.rows[position] = row;
+		this.size = Math.min(this.size + 1, this.k);
+		return true;
+	}
+
+	/**
+	 * Remove a rider from the leaderboard, marking it stale if it was full, as
+	 * another rider may now belong in the last place.
+	 *
+	 * @param riderId Rider's ID.
+	 * @return True if the rider was on the leaderboard.
+	 *
+	 */
+	private boolean remove(int riderId) {
+		int position = indexOf(riderId);
+		if (position < 0) {
+			return false;
+		}
+		System.arraycopy(this.riderIds, position + 1, this.riderIds, position, this.size - position - 1);
+		System.arraycopy(this.elapsedTimes, position + 1, this.elapsedTimes, position, this.size - position - 1);
+		System.arraycopy(this.rows, position + 1, this.rows, position, this.size - position - 1);
+		if (this.size == this.k) {
+			this.stale = true;
+		}
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * Check if a result ranks ahead of the rider at a position, by elapsed
+	 * time and then by row.
+	 *
+	 * @param elapsedTime The result's elapsed time in nanoseconds.
+	 * @param row The result's row.
+	 * @param position The position on the leaderboard.
+	 * @return True if the result ranks ahead.
+	 *
+	 */
+	private boolean ranksBefore(long elapsedTime, int row, int position) {
+		return elapsedTime < this.elapsedTimes[position]
+			|| (elapsedTime == this.elapsedTimes[position] && row < this.rows[position]);
+	}
+
+	private int indexOf(int riderId) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.riderIds[i] == riderId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Log a change made while a refill is computing the classification.
+	 *
+	 * @param riderId Rider's ID.
+	 * @param elapsedTime The rider's elapsed time, or -1 if the result was deleted.
+	 * @param row The rider's result row, or -1 if the result was deleted.
+	 *
+	 */
+	private void log(int riderId, long elapsedTime, int row) {
+		if (this.logSize == this.logRiderIds.length) {
+			this.logRiderIds = Arrays.copyOf(this.logRiderIds, this.logSize * 2);
+			this.logElapsedTimes = Arrays.copyOf(this.logElapsedTimes, this.logSize * 2);
+			this.logRows = Arrays.copyOf(this.logRows, this.logSize * 2);
+		}
+		this.logRiderIds[this.logSize] = riderId;
+		this.logElapsedTimes[this.logSize] = elapsedTime;
+		this.logRows[this.logSize] = row;
+		this.logSize++;
+	}
+}
@@ -12,6 +12,7 @@ import java.util.ArrayList;
  */
 
 public class Team implements Serializable {
+    private static final long serialVersionUID = 3589195078223034830L;
     private int teamId;
     private String name;
     private String description;
@@ -86,4 +87,14 @@ public class Team implements Serializable {
     public int getId() {
         return this.teamId;
     }
+
+    /**
+	 * Get the description of the team.
+	 * 
+	 * @return The String containing the description of the team.
+	 * 
+	 */
+    public String getDescription() {
+        return this.description;
+    }
 }